@@ -1,159 +1,5777 @@
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import javax.management.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.locks.*;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 class Account {
-    public double balance;
+    // Balance in cents. Written only while holding lock; readers outside the lock use snapshot()
+    public volatile long balance;
+    // Part of balance promised to prepared cross-shard transfers (ShardParticipant); same locking as balance
+    volatile long held;
     public String accountNumber;
-    public int pin;
+    public final long number;
+    // PinHasher credential; replaced under lock, read without it
+    public volatile String pinHash;
     public String name;
-    private static final String USER_FILE = "users.csv";
+    private final AccountStore store;
+    private final TransactionJournal journal;
+    final ReentrantLock lock = new ReentrantLock();
+    // Newest committed state, replaced by SnapshotClock.commit
+    private volatile AccountSnapshot snapshot;
+    
+    public Account(String accountNumber, String pinHash, String name, long balance, AccountStore store, TransactionJournal journal) {
+        this.accountNumber = accountNumber;
+        this.number = Long.parseLong(accountNumber);
+        this.pinHash = pinHash;
+        this.name = name;
+        this.balance = balance;
+        this.store = store;
+        this.journal = journal;
+        this.snapshot = new AccountSnapshot(0, accountNumber, name, balance, 0, null);
+    }
+    
+    // Balance and name as of the last committed operation, without locking
+    public AccountSnapshot snapshot() {
+        return snapshot;
+    }
+    
+    // Newest snapshot at or before version, or null if it has already been dropped
+    AccountSnapshot snapshotAt(long version) {
+        for (AccountSnapshot s = snapshot; s != null; s = s.previous) {
+            if (s.version <= version) {
+                return s;
+            }
+        }
+        return null;
+    }
+    
+    // Installs the current fields as snapshot version. Versions at or below floor are only
+    // kept down to the newest of them, which is all a reader pinned at floor can need.
+    void publish(long version, long floor) {
+        AccountSnapshot s = new AccountSnapshot(version, accountNumber, name, balance, held, snapshot);
+        for (AccountSnapshot p = s; p != null; p = p.previous) {
+            if (p.version <= floor) {
+                p.previous = null;
+                break;
+            }
+        }
+        snapshot = s;
+    }
+    
+    // Persists this account's current state through the configured store
+    // Throws UncheckedIOException if the store could not write it
+    public void saveUserDetails() {
+        long start = System.nanoTime();
+        boolean saved = false;
+        try {
+            store.save(this);
+            saved = true;
+        } finally {
+            BankMetrics.INSTANCE.record(BankMetrics.Op.PERSIST, start, saved);
+        }
+    }
+    
+    public String toRecord() {
+        return accountNumber + "," + pinHash + "," + name + "," + Money.format(balance);
+    }
+    
+    public void logTransaction(String transaction) {
+        long start = System.nanoTime();
+        journal.append(accountNumber, transaction);
+        BankMetrics.INSTANCE.record(BankMetrics.Op.LOG_APPEND, start, true);
+    }
+    
+    // counterparty is the other account of a transfer, 0 otherwise; key is the
+    // operation's idempotency key, or null
+    public void logTransaction(TransactionRecord.Type type, long amount, long counterparty, String key) {
+        long start = System.nanoTime();
+        journal.append(accountNumber, type, amount, counterparty, key);
+        BankMetrics.INSTANCE.record(BankMetrics.Op.LOG_APPEND, start, true);
+    }
+}
+
+// Immutable committed state of an account. Account.snapshot() is the newest; older ones
+// stay linked through previous while a SnapshotClock.read might still ask for them.
+final class AccountSnapshot {
+    final long version;
+    final String accountNumber;
+    final String name;
+    final long balance;
+    // Part of balance held for prepared cross-shard transfers
+    final long held;
+    volatile AccountSnapshot previous;
+    
+    AccountSnapshot(long version, String accountNumber, String name, long balance, long held, AccountSnapshot previous) {
+        this.version = version;
+        this.accountNumber = accountNumber;
+        this.name = name;
+        this.balance = balance;
+        this.held = held;
+        this.previous = previous;
+    }
+}
+
+// Versions for account snapshots, MVCC style. A writer changes balance and held under the
+// account locks and, before releasing them, calls commit with every account it changed:
+// that takes the next version, installs a snapshot of each account and publishes the
+// version. Versions are published in order, a commit waiting for the one before it (which
+// is only installing snapshots), so once v is published every commit up to v is in place.
+// Single-account reads take Account.snapshot() and never wait. read() returns several
+// accounts as of one published version, which it pins so writers keep the snapshots it
+// needs. A writer prunes nothing newer than what was published when it started, so a pin
+// is safe once published has not moved while it was being added; otherwise read() pins again.
+class SnapshotClock {
+    static final SnapshotClock INSTANCE = new SnapshotClock();
+    
+    private static class Pin implements Comparable<Pin> {
+        final long version;
+        final long serial;
+        
+        Pin(long version, long serial) {
+            this.version = version;
+            this.serial = serial;
+        }
+        
+        public int compareTo(Pin other) {
+            int c = Long.compare(version, other.version);
+            return c != 0 ? c : Long.compare(serial, other.serial);
+        }
+    }
+    
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong serials = new AtomicLong();
+    private final ConcurrentSkipListSet<Pin> pins = new ConcurrentSkipListSet<>();
+    private final LongAdder retries = new LongAdder();
+    
+    // Call while holding the lock of every account in changed
+    void commit(Account... changed) {
+        long floor = published.get();
+        long version = next.incrementAndGet();
+        Pin oldest = pins.isEmpty() ? null : pins.first();
+        if (oldest != null) {
+            floor = Math.min(floor, oldest.version);
+        }
+        for (Account acc : changed) {
+            acc.publish(version, floor);
+        }
+        while (published.get() != version - 1) {
+            Thread.yield();
+        }
+        published.set(version);
+    }
+    
+    // Snapshots of accounts all as of the same commit, so a transfer between two of them
+    // shows on both or on neither
+    List<AccountSnapshot> read(Collection<Account> accounts) {
+        while (true) {
+            Pin pin = new Pin(published.get(), serials.incrementAndGet());
+            pins.add(pin);
+            try {
+                if (published.get() != pin.version) {
+                    retries.increment();
+                    continue;
+                }
+                List<AccountSnapshot> view = new ArrayList<>(accounts.size());
+                for (Account acc : accounts) {
+                    view.add(acc.snapshotAt(pin.version));
+                }
+                return view;
+            } finally {
+                pins.remove(pin);
+            }
+        }
+    }
+    
+    long retries() {
+        return retries.sum();
+    }
+    
+    // Readers checking balance and name while writers transfer between the same accounts:
+    // once reading under the account lock (what a consistent read needed before snapshots),
+    // once from snapshots. An auditor meanwhile sums all balances, from the live fields and
+    // from read(); only the live sum can catch a transfer half-applied.
+    static void benchmark(int accountsCount, int readers, int writers, int seconds) throws Exception {
+        if (System.getProperty("bank.journal") == null) {
+            System.setProperty("bank.journal", "async");
+        }
+        if (System.getProperty("bank.pin.iterations") == null) {
+            System.setProperty("bank.pin.iterations", "1000");
+        }
+        Path dir = Files.createTempDirectory("bank-snapshots");
+        ParallelCsvLoader.writeSynthetic(dir, accountsCount);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ATM atm = new ATM(dir.toString());
+        System.setOut(console);
+        List<Account> all = new ArrayList<>(atm.allAccounts());
+        long expected = 0;
+        for (Account acc : all) {
+            expected += acc.balance;
+        }
+        
+        System.out.printf("%d accounts, %d readers, %d writers, %d s per mode%n", accountsCount, readers, writers, seconds);
+        System.out.printf("%-10s %14s %10s %10s %10s %12s %14s %14s%n", "reads", "reads/s", "p50 ns", "p99 ns", "p999 ns",
+                "transfers/s", "torn live sums", "torn snapshots");
+        for (boolean snapshots : new boolean[] { false, true }) {
+            AtomicBoolean running = new AtomicBoolean(true);
+            LatencyHistogram latency = new LatencyHistogram();
+            LongAdder transfers = new LongAdder();
+            LongAdder tornLive = new LongAdder();
+            LongAdder tornSnapshot = new LongAdder();
+            List<Thread> threads = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                threads.add(new Thread(() -> {
+                    Random random = new Random();
+                    while (running.get()) {
+                        Account from = all.get(random.nextInt(all.size()));
+                        if (atm.transfer(from, all.get(random.nextInt(all.size())).accountNumber, 1 + random.nextInt(100)) == TransferResult.SUCCESS) {
+                            transfers.increment();
+                        }
+                    }
+                }));
+            }
+            for (int r = 0; r < readers; r++) {
+                threads.add(new Thread(() -> {
+                    Random random = new Random();
+                    long sink = 0;
+                    while (running.get()) {
+                        Account acc = all.get(random.nextInt(all.size()));
+                        long start = System.nanoTime();
+                        if (snapshots) {
+                            AccountSnapshot s = acc.snapshot();
+                            sink += s.balance + s.name.length();
+                        } else {
+                            acc.lock.lock();
+                            try {
+                                sink += acc.balance + acc.name.length();
+                            } finally {
+                                acc.lock.unlock();
+                            }
+                        }
+                        latency.record(System.nanoTime() - start);
+                    }
+                    if (sink == 42) {
+                        System.out.print("");
+                    }
+                }));
+            }
+            long total = expected;
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    long live = 0;
+                    for (Account acc : all) {
+                        live += acc.balance;
+                    }
+                    if (live != total) {
+                        tornLive.increment();
+                    }
+                    long consistent = 0;
+                    for (AccountSnapshot s : INSTANCE.read(all)) {
+                        consistent += s.balance;
+                    }
+                    if (consistent != total) {
+                        tornSnapshot.increment();
+                    }
+                }
+            }));
+            for (Thread t : threads) {
+                t.start();
+            }
+            long began = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            running.set(false);
+            for (Thread t : threads) {
+                t.join();
+            }
+            double elapsed = (System.nanoTime() - began) / 1e9;
+            System.out.printf("%-10s %14.0f %10d %10d %10d %12.0f %14d %14d%n", snapshots ? "snapshot" : "locked",
+                    latency.count() / elapsed, latency.percentile(0.5), latency.percentile(0.99), latency.percentile(0.999),
+                    transfers.sum() / elapsed, tornLive.sum(), tornSnapshot.sum());
+        }
+        System.out.println(INSTANCE.retries() + " snapshot reads restarted");
+        atm.close();
+    }
+}
+
+// Salted PBKDF2 PIN hashes, written as pbkdf2$<iterations>$<salt>$<hash> with the salt and
+// hash in base64. A credential that is a plain int (any int Scanner.nextInt() accepted, so
+// also negative or ten digits) is a plaintext PIN from before hashing; it still verifies,
+// and ATM replaces it with a hash on the first successful login.
+class PinHasher {
+    static final int ITERATIONS = Integer.getInteger("bank.pin.iterations", 210000);
+    static final int SALT_BYTES = 16;
+    static final int HASH_BYTES = 32;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    static String hash(int pin) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return format(ITERATIONS, salt, derive(pin, salt, ITERATIONS));
+    }
+    
+    static String format(int iterations, byte[] salt, byte[] hash) {
+        Base64.Encoder base64 = Base64.getEncoder();
+        return "pbkdf2$" + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+    }
+    
+    static boolean verify(String credential, int pin) {
+        if (isLegacy(credential)) {
+            return Integer.parseInt(credential) == pin;
+        }
+        String[] parts = credential.split("\\$");
+        if (parts.length != 4 || !parts[0].equals("pbkdf2")) {
+            return false;
+        }
+        Base64.Decoder base64 = Base64.getDecoder();
+        byte[] expected = base64.decode(parts[3]);
+        return MessageDigest.isEqual(expected, derive(pin, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+    }
+    
+    static boolean isLegacy(String credential) {
+        int start = credential.startsWith("-") || credential.startsWith("+") ? 1 : 0;
+        if (credential.length() == start) {
+            return false;
+        }
+        // ASCII only: Integer.parseInt would also take other scripts' digits
+        for (int i = start; i < credential.length(); i++) {
+            char c = credential.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        try {
+            Integer.parseInt(credential);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    
+    // Plaintext PINs and hashes made with fewer iterations than configured are upgraded
+    static boolean needsRehash(String credential) {
+        return isLegacy(credential) || iterations(credential) < ITERATIONS;
+    }
+    
+    static int iterations(String credential) {
+        int from = credential.indexOf('$') + 1;
+        return Integer.parseInt(credential.substring(from, credential.indexOf('$', from)));
+    }
+    
+    private static byte[] derive(int pin, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(Integer.toString(pin).toCharArray(), salt, iterations, HASH_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " unavailable", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+// Recently verified (account, PIN) pairs, so a returning session skips the slow hash.
+// Entries are keyed by an HMAC of account and PIN under a random per-process key, so no
+// PIN is held in memory. An entry expires after ttlMillis, and each of the SEGMENTS
+// access-ordered maps evicts its least recently used entry beyond its share of the
+// capacity. An entry only matches while the account still has the credential it was
+// verified against. Failed logins are never cached.
+class CredentialCache {
+    private static final int SEGMENTS = 16;
+    
+    private static class Entry {
+        final String credential;
+        final long expires;
+        
+        Entry(String credential, long expires) {
+            this.credential = credential;
+            this.expires = expires;
+        }
+    }
+    
+    private final List<LinkedHashMap<String, Entry>> segments;
+    private final long ttlNanos;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    
+    CredentialCache(int capacity, long ttlMillis) {
+        int perSegment = Math.max(1, capacity / SEGMENTS);
+        int count = capacity > 0 ? SEGMENTS : 0;
+        segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            segments.add(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > perSegment;
+                }
+            });
+        }
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        key = new SecretKeySpec(secret, "HmacSHA256");
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+    
+    static CredentialCache fromSystemProperties() {
+        return new CredentialCache(Integer.getInteger("bank.pin.cache", 100000),
+                Long.getLong("bank.pin.cacheSeconds", 300) * 1000);
+    }
+    
+    boolean contains(Account acc, int pin) {
+        if (segments.isEmpty()) {
+            return false;
+        }
+        String k = key(acc, pin);
+        LinkedHashMap<String, Entry> segment = segment(k);
+        boolean hit;
+        synchronized (segment) {
+            Entry e = segment.get(k);
+            if (e != null && e.expires - System.nanoTime() <= 0) {
+                segment.remove(k);
+                e = null;
+            }
+            hit = e != null && e.credential.equals(acc.pinHash);
+        }
+        (hit ? hits : misses).increment();
+        return hit;
+    }
+    
+    void put(Account acc, int pin) {
+        if (segments.isEmpty()) {
+            return;
+        }
+        String k = key(acc, pin);
+        LinkedHashMap<String, Entry> segment = segment(k);
+        synchronized (segment) {
+            segment.put(k, new Entry(acc.pinHash, System.nanoTime() + ttlNanos));
+        }
+    }
+    
+    void clear() {
+        for (LinkedHashMap<String, Entry> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+    
+    int size() {
+        int size = 0;
+        for (LinkedHashMap<String, Entry> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+    
+    String report() {
+        return String.format("credential cache: %d entries, %d hits, %d misses%n", size(), hits.sum(), misses.sum());
+    }
+    
+    private LinkedHashMap<String, Entry> segment(String k) {
+        return segments.get(k.hashCode() & (SEGMENTS - 1));
+    }
+    
+    private String key(Account acc, int pin) {
+        Mac mac = macs.get();
+        mac.update(ByteBuffer.allocate(12).putLong(acc.number).putInt(pin).array());
+        return Base64.getEncoder().encodeToString(mac.doFinal());
+    }
+    
+    // Login throughput against a fresh ATM, first with every login hashing and then with
+    // the cache in front. Each thread logs in to random accounts for the given time.
+    static void benchmark(int threads, int accountsCount, int seconds) throws Exception {
+        if (System.getProperty("bank.journal") == null) {
+            System.setProperty("bank.journal", "async");
+        }
+        String dir = Files.createTempDirectory("bank-login").toString();
+        ATM atm = new ATM(dir);
+        List<Account> list = new ArrayList<>();
+        for (int i = 0; i < accountsCount; i++) {
+            list.add(atm.openAccount("Login " + i, 1000 + i, 0));
+        }
+        System.out.printf("%d accounts, %d iterations, %d threads%n", accountsCount, PinHasher.ITERATIONS, threads);
+        for (boolean cached : new boolean[] { false, true }) {
+            CredentialCache cache = cached ? fromSystemProperties() : new CredentialCache(0, 0);
+            atm.credentialCache(cache);
+            LongAdder logins = new LongAdder();
+            LongAdder failed = new LongAdder();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    Random random = new Random();
+                    while (System.nanoTime() < deadline) {
+                        int i = random.nextInt(accountsCount);
+                        if (atm.authenticate(list.get(i).accountNumber, 1000 + i) == null) {
+                            failed.increment();
+                        }
+                        logins.increment();
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread w : workers) {
+                w.join();
+            }
+            System.out.printf("%-10s %10.1f logins/s, %d failed%n", cached ? "cached" : "uncached",
+                    logins.sum() / (double) seconds, failed.sum());
+            if (cached) {
+                System.out.print(cache.report());
+            }
+        }
+        atm.close();
+    }
+}
+
+// One entry of an account's transaction history. The type, amount in cents and
+// counterparty (0 if none) are stored next to the display text, so reports never have to
+// parse it. Records written before types existed come back as NOTE and are classified
+// from their text by classify.
+class TransactionRecord {
+    // Stored by ordinal: only ever add new types at the end
+    enum Type {
+        NOTE, OPEN, DEPOSIT, WITHDRAWAL, TRANSFER_OUT, TRANSFER_IN;
+        
+        // Effect of a record of this type on the account balance
+        long signed(long amount) {
+            switch (this) {
+                case WITHDRAWAL:
+                case TRANSFER_OUT:
+                    return -amount;
+                case NOTE:
+                    return 0;
+                default:
+                    return amount;
+            }
+        }
+    }
+    
+    private static final java.util.regex.Pattern LEGACY = java.util.regex.Pattern.compile(
+            "(Initial deposit:|Deposited|Withdrawn|Transferred|Received) (-?[0-9]+(?:\\.[0-9]*)?)(?: (?:to|from) account ([0-9]+))?.*");
+    
+    final long account;
+    final long epochSecond;
+    final Type type;
+    final long amount;
+    final long counterparty;
+    final String text;
+    // Idempotency key the operation was submitted with, or null
+    final String key;
+    
+    TransactionRecord(long account, long epochSecond, Type type, long amount, long counterparty, String text) {
+        this(account, epochSecond, type, amount, counterparty, text, null);
+    }
+    
+    TransactionRecord(long account, long epochSecond, Type type, long amount, long counterparty, String text, String key) {
+        this.account = account;
+        this.epochSecond = epochSecond;
+        this.type = type;
+        this.amount = amount;
+        this.counterparty = counterparty;
+        this.text = text;
+        this.key = key;
+    }
+    
+    // The text ATM has always written for each type
+    static String describe(Type type, long amount, long counterparty) {
+        String money = Money.format(amount);
+        switch (type) {
+            case OPEN:
+                return "Initial deposit: " + money;
+            case DEPOSIT:
+                return "Deposited " + money;
+            case WITHDRAWAL:
+                return "Withdrawn " + money;
+            case TRANSFER_OUT:
+                return "Transferred " + money + " to account " + counterparty;
+            case TRANSFER_IN:
+                return "Received " + money + " from account " + counterparty;
+            default:
+                return money;
+        }
+    }
+    
+    // Types a line written by describe (or by the old free-text logger); anything else stays a NOTE
+    static TransactionRecord classify(long account, long epochSecond, String text) {
+        java.util.regex.Matcher m = LEGACY.matcher(text);
+        if (!m.matches()) {
+            return new TransactionRecord(account, epochSecond, Type.NOTE, 0, 0, text);
+        }
+        Type type;
+        switch (m.group(1)) {
+            case "Initial deposit:": type = Type.OPEN; break;
+            case "Deposited": type = Type.DEPOSIT; break;
+            case "Withdrawn": type = Type.WITHDRAWAL; break;
+            case "Transferred": type = Type.TRANSFER_OUT; break;
+            default: type = Type.TRANSFER_IN; break;
+        }
+        if ((type == Type.TRANSFER_OUT || type == Type.TRANSFER_IN) && m.group(3) == null) {
+            return new TransactionRecord(account, epochSecond, Type.NOTE, 0, 0, text);
+        }
+        long counterparty = m.group(3) != null ? Long.parseLong(m.group(3)) : 0;
+        return new TransactionRecord(account, epochSecond, type, Money.parse(m.group(2)), counterparty, text);
+    }
+}
+
+// Transaction history for all accounts in one segmented log under <directory>/txlog.
+// Records are appended to the active segment-<id>.log as
+//   int type << 24 | keyed << 23 | length | long account | long epoch second
+//   | [long amount | long counterparty] | [short key length | UTF-8 key] | UTF-8 line
+// where amount and counterparty are only present when the type is not NOTE (type 0, which
+// is also what every record written before types existed reads as), the key only when the
+// keyed bit is set, and length covers key and line. The active segment is rolled once it reaches SEGMENT_BYTES. Sealing a segment writes
+// segment-<id>.idx: a table sorted by account of (account, record count, position of its
+// offsets) followed by the offsets themselves, so a sealed segment is searched without
+// scanning it. In memory each account only keeps which segments hold its records and how
+// many. A background compactor rewrites runs of small or unclustered sealed segments into
+// one segment with each account's records stored together. Opening seals and compacts, so
+// only one TransactionHistory at a time may have a directory: it holds a lock on txlog/LOCK
+// until close (or until its process dies), and opening a directory already held fails.
+class TransactionHistory {
+    private static final long SEGMENT_BYTES = Long.getLong("bank.txlog.segmentBytes", 64L << 20);
+    private static final int IDX_MAGIC = 0x54584958; // "TXIX"
+    private static final int IDX_HEADER = 20;
+    private static final int IDX_ENTRY = 20;
+    private static final int RECORD_HEADER = 20;
+    private static final int TYPED_FIELDS = 16;
+    private static final int MAX_LINE = 0x7FFFFF;
+    private static final int KEYED = 0x800000;
     private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     
-    public Account(String accountNumber, int pin, String name, double balance) {
-        this.accountNumber = accountNumber;
-        this.pin = pin;
-        this.name = name;
-        this.balance = balance;
-        saveUserDetails();
+    // Segments holding an account's records, oldest first, with its record count in each
+    private static class AccountLog {
+        int[] segments = new int[2];
+        int[] counts = new int[2];
+        int used;
+        long total;
+        
+        void add(int segment, int n) {
+            if (used > 0 && segments[used - 1] == segment) {
+                counts[used - 1] += n;
+            } else {
+                if (used == segments.length) {
+                    segments = Arrays.copyOf(segments, used * 2);
+                    counts = Arrays.copyOf(counts, used * 2);
+                }
+                segments[used] = segment;
+                counts[used] = n;
+                used++;
+            }
+            total += n;
+        }
+        
+        // Collapses the entries for segments first..last into one entry for segment first
+        void merge(int first, int last) {
+            int out = 0;
+            for (int i = 0; i < used; i++) {
+                if (segments[i] >= first && segments[i] <= last && out > 0 && segments[out - 1] == first) {
+                    counts[out - 1] += counts[i];
+                    continue;
+                }
+                segments[out] = segments[i] >= first && segments[i] <= last ? first : segments[i];
+                counts[out] = counts[i];
+                out++;
+            }
+            used = out;
+        }
+    }
+    
+    private static class LongList {
+        long[] values = new long[4];
+        int size;
+        
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+    
+    private static class Segment {
+        final int id;
+        // Last id the segment covers: a compacted segment keeps its first source's id and
+        // the next segment's id follows its last source's
+        final int lastId;
+        final FileChannel log;
+        final MappedByteBuffer idx;
+        final int accounts;
+        final boolean clustered;
+        final long size;
+        
+        Segment(int id, FileChannel log, MappedByteBuffer idx) throws IOException {
+            this.id = id;
+            this.log = log;
+            this.idx = idx;
+            this.lastId = idx.getInt(8);
+            this.accounts = idx.getInt(16);
+            this.clustered = idx.getInt(12) != 0;
+            this.size = log.size();
+        }
+        
+        // Position of the account's table entry, or -1
+        int find(long account) {
+            int lo = 0;
+            int hi = accounts - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long key = idx.getLong(IDX_HEADER + mid * IDX_ENTRY);
+                if (key < account) {
+                    lo = mid + 1;
+                } else if (key > account) {
+                    hi = mid - 1;
+                } else {
+                    return IDX_HEADER + mid * IDX_ENTRY;
+                }
+            }
+            return -1;
+        }
+        
+        long offset(int entry, long k) {
+            return idx.getLong((int) (idx.getLong(entry + 12) + k * 8));
+        }
+    }
+    
+    private final Path dir;
+    private final Map<Long, AccountLog> accounts = new ConcurrentHashMap<>();
+    private final TreeMap<Integer, Segment> sealed = new TreeMap<>();
+    // Readers hold the read lock while they touch segment files; index updates and
+    // compaction swaps take the write lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object appendLock = new Object();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "txlog-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // Open scans (see beginScan); compaction waits while there are any
+    private final AtomicInteger scans = new AtomicInteger();
+    private Map<Long, LongList> activeOffsets = new HashMap<>();
+    private int activeId;
+    private FileChannel active;
+    private long activeSize;
+    private FileChannel lockFile;
+    
+    // Throws IllegalStateException if another TransactionHistory has the directory open
+    public TransactionHistory(String directory) {
+        dir = Paths.get(directory, "txlog");
+        boolean fresh = !Files.isDirectory(dir);
+        try {
+            Files.createDirectories(dir);
+            lock();
+            open();
+        } catch (IOException e) {
+            unlock();
+            throw new UncheckedIOException("Cannot open transaction log in " + dir, e);
+        }
+        if (fresh) {
+            try {
+                int migrated = migrate(directory);
+                if (migrated > 0) {
+                    System.out.println("Migrated " + migrated + " transaction history files into " + dir);
+                }
+            } catch (IOException e) {
+                System.out.println("Error migrating transaction history: " + e.getMessage());
+            }
+        }
+    }
+    
+    private void lock() throws IOException {
+        lockFile = FileChannel.open(dir.resolve("LOCK"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock held;
+        try {
+            held = lockFile.tryLock();
+        } catch (OverlappingFileLockException e) {
+            held = null;
+        }
+        if (held == null) {
+            unlock();
+            throw new IllegalStateException("Transaction log " + dir + " is in use by another process");
+        }
+    }
+    
+    // Closing the channel releases the lock
+    private void unlock() {
+        if (lockFile != null) {
+            try {
+                lockFile.close();
+            } catch (IOException e) {
+                // released with the channel anyway
+            }
+            lockFile = null;
+        }
+    }
+    
+    private Path logFile(int id) {
+        return dir.resolve(String.format("segment-%08d.log", id));
+    }
+    
+    private Path idxFile(int id) {
+        return dir.resolve(String.format("segment-%08d.idx", id));
+    }
+    
+    private static int segmentId(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(8, 16));
+    }
+    
+    // Finishes an interrupted compaction, loads every sealed segment's table, seals any
+    // segment left without an index and starts a new active segment
+    private void open() throws IOException {
+        try (DirectoryStream<Path> compacted = Files.newDirectoryStream(dir, "segment-*.compact.idx")) {
+            for (Path idx : compacted) {
+                finishCompaction(segmentId(idx));
+            }
+        }
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, "segment-*.log")) {
+            for (Path log : logs) {
+                if (!log.getFileName().toString().contains("compact")) {
+                    ids.add(segmentId(log));
+                }
+            }
+        }
+        Collections.sort(ids);
+        for (Iterator<Integer> it = ids.iterator(); it.hasNext(); ) {
+            int id = it.next();
+            if (!Files.exists(idxFile(id)) && Files.size(logFile(id)) == 0) {
+                Files.delete(logFile(id));
+                it.remove();
+            }
+        }
+        for (int id : ids) {
+            if (!Files.exists(idxFile(id))) {
+                recover(id);
+            }
+            Segment segment = openSealed(id);
+            sealed.put(id, segment);
+            for (int i = 0; i < segment.accounts; i++) {
+                int entry = IDX_HEADER + i * IDX_ENTRY;
+                accounts.computeIfAbsent(segment.idx.getLong(entry), k -> new AccountLog()).add(id, segment.idx.getInt(entry + 8));
+            }
+        }
+        activeId = ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1;
+        active = FileChannel.open(logFile(activeId), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSize = 0;
+    }
+    
+    private Segment openSealed(int id) throws IOException {
+        FileChannel log = FileChannel.open(logFile(id), StandardOpenOption.READ);
+        try (FileChannel idx = FileChannel.open(idxFile(id), StandardOpenOption.READ)) {
+            return new Segment(id, log, idx.map(FileChannel.MapMode.READ_ONLY, 0, idx.size()));
+        }
+    }
+    
+    // A segment without an index was active when the process stopped: scan it, cut off a
+    // torn last record and seal it
+    private void recover(int id) throws IOException {
+        Map<Long, LongList> offsets = new HashMap<>();
+        try (FileChannel ch = FileChannel.open(logFile(id), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            while (position + RECORD_HEADER <= size) {
+                header.clear();
+                readFully(ch, header, position);
+                int word = header.getInt(0);
+                if (word < 0 || position + recordLength(word) > size) {
+                    break;
+                }
+                offsets.computeIfAbsent(header.getLong(4), k -> new LongList()).add(position);
+                position += recordLength(word);
+            }
+            ch.truncate(position);
+        }
+        writeIndex(idxFile(id), offsets, id, id, false);
+    }
+    
+    // Size of a whole record from its first word
+    private static int recordLength(int word) {
+        return textOffset(word) + (word & MAX_LINE);
+    }
+    
+    private static int textOffset(int word) {
+        return RECORD_HEADER + ((word >>> 24) != 0 ? TYPED_FIELDS : 0);
+    }
+    
+    // Decodes the record at offset; header must hold at least RECORD_HEADER bytes
+    private static TransactionRecord readRecord(FileChannel ch, long offset, ByteBuffer header) throws IOException {
+        header.clear().limit(RECORD_HEADER);
+        readFully(ch, header, offset);
+        int word = header.getInt(0);
+        ByteBuffer rest = ByteBuffer.allocate(recordLength(word) - RECORD_HEADER);
+        readFully(ch, rest, offset + RECORD_HEADER);
+        return decode(word, header.getLong(4), header.getLong(12), rest, 0);
+    }
+    
+    // rest holds the bytes after the fixed header, starting at index from
+    private static TransactionRecord decode(int word, long account, long epochSecond, ByteBuffer rest, int from) {
+        int type = word >>> 24;
+        int at = from + (type != 0 ? TYPED_FIELDS : 0);
+        int length = word & MAX_LINE;
+        String key = null;
+        if ((word & KEYED) != 0) {
+            byte[] k = new byte[rest.getShort(at)];
+            rest.get(at + 2, k);
+            key = new String(k, StandardCharsets.UTF_8);
+            at += 2 + k.length;
+            length -= 2 + k.length;
+        }
+        byte[] line = new byte[length];
+        rest.get(at, line);
+        String text = new String(line, StandardCharsets.UTF_8);
+        if (type == 0) {
+            return TransactionRecord.classify(account, epochSecond, text);
+        }
+        return new TransactionRecord(account, epochSecond, TransactionRecord.Type.values()[type],
+                rest.getLong(from), rest.getLong(from + 8), text, key);
+    }
+    
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+    
+    private static void writeIndex(Path file, Map<Long, LongList> offsets, int firstId, int lastId, boolean clustered) throws IOException {
+        Long[] keys = offsets.keySet().toArray(new Long[0]);
+        Arrays.sort(keys);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(IDX_MAGIC);
+            out.writeInt(firstId);
+            out.writeInt(lastId);
+            out.writeInt(clustered ? 1 : 0);
+            out.writeInt(keys.length);
+            long position = IDX_HEADER + (long) keys.length * IDX_ENTRY;
+            for (Long key : keys) {
+                LongList list = offsets.get(key);
+                out.writeLong(key);
+                out.writeInt(list.size);
+                out.writeLong(position);
+                position += list.size * 8L;
+            }
+            for (Long key : keys) {
+                LongList list = offsets.get(key);
+                for (int i = 0; i < list.size; i++) {
+                    out.writeLong(list.values[i]);
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Appends a batch of journal entries with a single write, rolling the segment first if
+    // full. An entry that cannot be written (too long, or a key on an untyped record) is left
+    // out and returned, and the rest of the batch is still written.
+    public List<TransactionJournal.Entry> append(List<TransactionJournal.Entry> batch, boolean force) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 80);
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<TransactionJournal.Entry> entries = new ArrayList<>(batch.size());
+        List<TransactionJournal.Entry> rejected = new ArrayList<>();
+        int[] starts = new int[batch.size()];
+        for (TransactionJournal.Entry e : batch) {
+            byte[] line = e.line.getBytes(StandardCharsets.UTF_8);
+            byte[] key = e.key != null ? e.key.getBytes(StandardCharsets.UTF_8) : null;
+            int length = line.length + (key != null ? 2 + key.length : 0);
+            if (length > MAX_LINE || (key != null && (key.length > Short.MAX_VALUE || e.type == TransactionRecord.Type.NOTE))) {
+                rejected.add(e);
+                continue;
+            }
+            starts[entries.size()] = out.size();
+            entries.add(e);
+            out.writeInt(e.type.ordinal() << 24 | (key != null ? KEYED : 0) | length);
+            out.writeLong(Long.parseLong(e.accountNumber));
+            out.writeLong(e.epochSecond);
+            if (e.type != TransactionRecord.Type.NOTE) {
+                out.writeLong(e.amount);
+                out.writeLong(e.counterparty);
+            }
+            if (key != null) {
+                out.writeShort(key.length);
+                out.write(key);
+            }
+            out.write(line);
+        }
+        if (entries.isEmpty()) {
+            return rejected;
+        }
+        
+        synchronized (appendLock) {
+            if (active == null) {
+                throw new IOException("Transaction log is closed");
+            }
+            if (activeSize > 0 && activeSize + out.size() > SEGMENT_BYTES) {
+                roll(true);
+            }
+            long base = activeSize;
+            ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+            while (buf.hasRemaining()) {
+                active.write(buf, base + buf.position());
+            }
+            if (force) {
+                active.force(false);
+            }
+            activeSize += out.size();
+            
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < entries.size(); i++) {
+                    long account = Long.parseLong(entries.get(i).accountNumber);
+                    activeOffsets.computeIfAbsent(account, k -> new LongList()).add(base + starts[i]);
+                    accounts.computeIfAbsent(account, k -> new AccountLog()).add(activeId, 1);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return rejected;
+    }
+    
+    // Seals the active segment and, unless closing, opens the next one. Called with appendLock held.
+    private void roll(boolean openNext) throws IOException {
+        active.force(false);
+        writeIndex(idxFile(activeId), activeOffsets, activeId, activeId, false);
+        Segment segment = openSealed(activeId);
+        FileChannel next = openNext
+                ? FileChannel.open(logFile(activeId + 1), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : null;
+        lock.writeLock().lock();
+        try {
+            active.close();
+            sealed.put(activeId, segment);
+            activeOffsets = new HashMap<>();
+            activeId++;
+            active = next;
+            activeSize = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleCompaction();
+    }
+    
+    private void scheduleCompaction() {
+        if (compacting.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                try {
+                    while (compactOnce()) {
+                        // keep going while there is work
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error compacting transaction log: " + e.getMessage());
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+    
+    // Picks the oldest run of consecutive sealed segments that are small or not yet
+    // clustered, up to SEGMENT_BYTES in total, and rewrites it as one clustered segment
+    // that takes the id of the first segment in the run. A lone clustered segment has
+    // nothing to gain and is passed over.
+    boolean compactOnce() throws IOException {
+        List<Segment> run = new ArrayList<>();
+        long total = 0;
+        lock.readLock().lock();
+        try {
+            for (Segment segment : sealed.values()) {
+                boolean candidate = !segment.clustered || segment.size < SEGMENT_BYTES / 2;
+                boolean adjacent = run.isEmpty() || run.get(run.size() - 1).lastId + 1 == segment.id;
+                if (candidate && adjacent && total + segment.size <= SEGMENT_BYTES) {
+                    run.add(segment);
+                    total += segment.size;
+                    continue;
+                }
+                if (worthCompacting(run)) {
+                    break;
+                }
+                run.clear();
+                total = 0;
+                if (candidate) {
+                    run.add(segment);
+                    total = segment.size;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (!worthCompacting(run) || scans.get() > 0) {
+            return false;
+        }
+        
+        int first = run.get(0).id;
+        int last = run.get(run.size() - 1).lastId;
+        TreeSet<Long> keys = new TreeSet<>();
+        for (Segment segment : run) {
+            for (int i = 0; i < segment.accounts; i++) {
+                keys.add(segment.idx.getLong(IDX_HEADER + i * IDX_ENTRY));
+            }
+        }
+        
+        Path compactLog = dir.resolve(String.format("segment-%08d.compact.log", first));
+        Map<Long, LongList> offsets = new HashMap<>();
+        try (FileChannel out = FileChannel.open(compactLog, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            for (long account : keys) {
+                LongList list = new LongList();
+                for (Segment segment : run) {
+                    int entry = segment.find(account);
+                    if (entry < 0) {
+                        continue;
+                    }
+                    int count = segment.idx.getInt(entry + 8);
+                    for (int k = 0; k < count; k++) {
+                        long offset = segment.offset(entry, k);
+                        header.clear();
+                        readFully(segment.log, header, offset);
+                        ByteBuffer record = ByteBuffer.allocate(recordLength(header.getInt(0)));
+                        readFully(segment.log, record, offset);
+                        record.flip();
+                        list.add(position);
+                        while (record.hasRemaining()) {
+                            position += out.write(record);
+                        }
+                    }
+                }
+                offsets.put(account, list);
+            }
+            out.force(false);
+        }
+        writeIndex(dir.resolve(String.format("segment-%08d.compact.idx", first)), offsets, first, last, true);
+        
+        lock.writeLock().lock();
+        try {
+            if (scans.get() > 0) {
+                Files.delete(compactLog);
+                Files.delete(dir.resolve(String.format("segment-%08d.compact.idx", first)));
+                return false;
+            }
+            for (Segment segment : run) {
+                segment.log.close();
+                sealed.remove(segment.id);
+            }
+            finishCompaction(first);
+            sealed.put(first, openSealed(first));
+            for (long account : keys) {
+                accounts.get(account).merge(first, last);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+    
+    private static boolean worthCompacting(List<Segment> run) {
+        return run.size() > 1 || (run.size() == 1 && !run.get(0).clustered);
+    }
+    
+    // Replaces the source segments of a finished compaction with its output; safe to repeat
+    private void finishCompaction(int first) throws IOException {
+        Path compactIdx = dir.resolve(String.format("segment-%08d.compact.idx", first));
+        int last;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(compactIdx))) {
+            in.readInt();
+            in.readInt();
+            last = in.readInt();
+        }
+        for (int id = first; id <= last; id++) {
+            Files.deleteIfExists(idxFile(id));
+            if (id != first) {
+                Files.deleteIfExists(logFile(id));
+            }
+        }
+        Path compactLog = dir.resolve(String.format("segment-%08d.compact.log", first));
+        if (Files.exists(compactLog)) {
+            Files.move(compactLog, logFile(first), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(compactIdx, idxFile(first), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Imports legacy <accountNumber>.txt files (one account at a time, so each account's
+    // records end up together) and moves them to <directory>/legacy-logs
+    public int migrate(String directory) throws IOException {
+        Path legacy = Paths.get(directory, "legacy-logs");
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(directory), "[1-9]?????????.txt")) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().matches("\\d{10}\\.txt")) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            String accountNumber = file.getFileName().toString().substring(0, 10);
+            List<TransactionJournal.Entry> entries = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    long time = Math.max(parseTime(line), 0);
+                    TransactionRecord r = TransactionRecord.classify(Long.parseLong(accountNumber), time, line.trim());
+                    entries.add(new TransactionJournal.Entry(accountNumber, r.type, r.amount, r.counterparty, null, r.text, time, false));
+                }
+            }
+            if (!entries.isEmpty()) {
+                for (TransactionJournal.Entry e : append(entries, false)) {
+                    System.out.println("Skipped a transaction too long to keep for account " + accountNumber + ": "
+                            + e.line.substring(0, Math.min(40, e.line.length())) + "...");
+                }
+            }
+            Files.createDirectories(legacy);
+            Files.move(file, legacy.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(Paths.get(directory, accountNumber + ".idx"));
+        }
+        synchronized (appendLock) {
+            active.force(false);
+        }
+        return files.size();
+    }
+    
+    public long count(String accountNumber) {
+        AccountLog log = accounts.get(Long.parseLong(accountNumber));
+        if (log == null) {
+            return 0;
+        }
+        lock.readLock().lock();
+        try {
+            return log.total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Entries [from, to) in log order
+    public List<String> range(String accountNumber, long from, long to) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (TransactionRecord r : records(accountNumber, from, to)) {
+            lines.add(r.text);
+        }
+        return lines;
+    }
+    
+    public List<TransactionRecord> records(String accountNumber, long from, long to) throws IOException {
+        List<TransactionRecord> records = new ArrayList<>();
+        read(Long.parseLong(accountNumber), from, to, records);
+        return records;
+    }
+    
+    // Reads records [from, to) of one account
+    private void read(long account, long from, long to, List<TransactionRecord> records) throws IOException {
+        AccountLog log = accounts.get(account);
+        if (log == null) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            from = Math.max(0, from);
+            to = Math.min(to, log.total);
+            long before = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            for (int s = 0; s < log.used && before < to; s++) {
+                long count = log.counts[s];
+                if (before + count > from) {
+                    int id = log.segments[s];
+                    Segment segment = sealed.get(id);
+                    FileChannel ch = segment != null ? segment.log : active;
+                    int entry = segment != null ? segment.find(account) : -1;
+                    LongList activeList = segment == null ? activeOffsets.get(account) : null;
+                    for (long k = Math.max(0, from - before); k < count && before + k < to; k++) {
+                        long offset = segment != null ? segment.offset(entry, k) : activeList.values[(int) k];
+                        records.add(readRecord(ch, offset, header));
+                    }
+                }
+                before += count;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public List<String> last(String accountNumber, int n) throws IOException {
+        long total = count(accountNumber);
+        return range(accountNumber, total - n, total);
+    }
+    
+    // Page 1 holds the first pageSize entries
+    public List<String> page(String accountNumber, int page, int pageSize) throws IOException {
+        long from = (long) (page - 1) * pageSize;
+        return range(accountNumber, from, from + pageSize);
+    }
+    
+    // Entries dated from start up to and including end. Binary-searches the first entry
+    // at or after start, then reads forward in pages until an entry is past end.
+    public List<String> between(String accountNumber, LocalDateTime start, LocalDateTime end) throws IOException {
+        long account = Long.parseLong(accountNumber);
+        long from = start.atZone(ZoneId.systemDefault()).toEpochSecond();
+        long to = end.atZone(ZoneId.systemDefault()).toEpochSecond();
+        long total = count(accountNumber);
+        long lo = 0;
+        long hi = total;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (timeAt(account, mid) < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        
+        List<String> result = new ArrayList<>();
+        for (long i = lo; i < total; i += 64) {
+            List<TransactionRecord> page = new ArrayList<>();
+            read(account, i, i + 64, page);
+            for (TransactionRecord r : page) {
+                if (r.epochSecond > to) {
+                    return result;
+                }
+                result.add(r.text);
+            }
+        }
+        return result;
+    }
+    
+    private long timeAt(long account, long index) throws IOException {
+        List<TransactionRecord> one = new ArrayList<>(1);
+        read(account, index, index + 1, one);
+        return one.isEmpty() ? Long.MAX_VALUE : one.get(0).epochSecond;
+    }
+    
+    // Seals the active segment and holds off compaction until endScan, so the returned
+    // sealed segments (id -> number of accounts in its table) stay as they are while
+    // scan reads them
+    Map<Integer, Integer> beginScan() throws IOException {
+        scans.incrementAndGet();
+        synchronized (appendLock) {
+            if (active != null && activeSize > 0) {
+                roll(true);
+            }
+        }
+        Map<Integer, Integer> segments = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : sealed.values()) {
+                segments.put(segment.id, segment.accounts);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return segments;
+    }
+    
+    void endScan() {
+        if (scans.decrementAndGet() == 0) {
+            scheduleCompaction();
+        }
+    }
+    
+    // Calls action for every record of table entries [first, last) of a sealed segment.
+    // The segment is read through its own read-only mapping, so records scattered over an
+    // unclustered segment cost no more than records stored together.
+    void scan(int id, int first, int last, java.util.function.Consumer<TransactionRecord> action) throws IOException {
+        lock.readLock().lock();
+        try {
+            Segment segment = sealed.get(id);
+            MappedByteBuffer log = segment.size <= Integer.MAX_VALUE
+                    ? segment.log.map(FileChannel.MapMode.READ_ONLY, 0, segment.size)
+                    : null;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            for (int i = first; i < last; i++) {
+                int entry = IDX_HEADER + i * IDX_ENTRY;
+                int count = segment.idx.getInt(entry + 8);
+                for (int k = 0; k < count; k++) {
+                    long offset = segment.offset(entry, k);
+                    if (log == null) {
+                        action.accept(readRecord(segment.log, offset, header));
+                        continue;
+                    }
+                    int at = (int) offset;
+                    action.accept(decode(log.getInt(at), log.getLong(at + 4), log.getLong(at + 12), log, at + RECORD_HEADER));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Seals the active segment so the next start does not have to scan it
+    public void close() {
+        synchronized (appendLock) {
+            if (active == null) {
+                return;
+            }
+            try {
+                if (activeSize > 0) {
+                    roll(false);
+                } else {
+                    active.close();
+                    active = null;
+                    Files.deleteIfExists(logFile(activeId));
+                }
+            } catch (IOException e) {
+                System.out.println("Error sealing transaction log: " + e.getMessage());
+            }
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        unlock();
+    }
+    
+    // Appends a batch and then scans, the way report and IdempotencyCache.restore do, for
+    // several rounds. Passes if compaction merges the sealed segments back into one after
+    // every round and every account still reads back all its records in order.
+    static boolean check(int rounds, int perRound) throws IOException, InterruptedException {
+        TransactionHistory history = new TransactionHistory(Files.createTempDirectory("txlog-check").toString());
+        boolean ok = true;
+        try {
+            for (int round = 1; round <= rounds; round++) {
+                List<TransactionJournal.Entry> batch = new ArrayList<>(perRound);
+                for (int i = 0; i < perRound; i++) {
+                    batch.add(new TransactionJournal.Entry(String.valueOf(1000000000L + i % 10), TransactionRecord.Type.DEPOSIT,
+                            100, 0, null, "Deposited 1.00 in round " + round, round, false));
+                }
+                history.append(batch, false);
+                history.beginScan();
+                history.endScan();
+                while (history.compacting.get()) {
+                    Thread.sleep(10);
+                }
+                int segments;
+                history.lock.readLock().lock();
+                try {
+                    segments = history.sealed.size();
+                } finally {
+                    history.lock.readLock().unlock();
+                }
+                System.out.println("round " + round + ": " + segments + " sealed segments");
+                ok &= segments == 1;
+            }
+            for (int a = 0; a < 10; a++) {
+                String account = String.valueOf(1000000000L + a);
+                List<TransactionRecord> records = history.records(account, 0, Long.MAX_VALUE);
+                long expected = (long) rounds * (perRound / 10 + (a < perRound % 10 ? 1 : 0));
+                for (int i = 1; i < records.size(); i++) {
+                    ok &= records.get(i - 1).epochSecond <= records.get(i).epochSecond;
+                }
+                ok &= records.size() == expected && history.count(account) == expected;
+            }
+        } finally {
+            history.close();
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+    
+    // Lines end with " on yyyy-MM-dd HH:mm:ss"; anything unparseable sorts first
+    static long parseTime(String line) {
+        line = line.trim();
+        if (line.length() < 19) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return LocalDateTime.parse(line.substring(line.length() - 19), FORMATTER).atZone(ZoneId.systemDefault()).toEpochSecond();
+        } catch (java.time.format.DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
+
+// Fixed-bucket latency histogram: exact below 16 ns, then 16 linear sub-buckets per power
+// of two (about 6% relative error). Recording is a couple of bit operations and three
+// atomic adds (the bucket, the count and the sum), plus a compare-and-set when it raises
+// the maximum, with no locks or allocation, so it can stay on in production.
+class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    private static int index(long value) {
+        if (value < SUB) {
+            return (int) Math.max(value, 0);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((value >>> shift) & (SUB - 1));
+    }
+    
+    private static long lowerBound(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = index / SUB - 1;
+        return (long) (SUB + index % SUB) << shift;
+    }
+    
+    public void record(long nanos) {
+        counts.incrementAndGet(index(nanos));
+        total.incrementAndGet();
+        sum.addAndGet(nanos);
+        if (nanos > max.get()) {
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+    
+    public long count() {
+        return total.get();
+    }
+    
+    public long max() {
+        return max.get();
+    }
+    
+    public double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+    
+    // Lower bound of the bucket holding the given quantile (0..1)
+    public long percentile(double quantile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return lowerBound(i);
+            }
+        }
+        return max.get();
+    }
+}
+
+// Operation metrics for the bank: a latency histogram and success/failure counters per
+// operation, plus a counter per TransferResult. Published over JMX as bank:type=BankMetrics
+// and, with -Dbank.metrics.dump=<seconds>, written to metrics.txt every interval.
+class BankMetrics implements DynamicMBean {
+    enum Op { LOGIN, DEPOSIT, WITHDRAW, TRANSFER, PERSIST, LOG_APPEND }
+    
+    static final BankMetrics INSTANCE = new BankMetrics();
+    
+    private final LatencyHistogram[] latency = new LatencyHistogram[Op.values().length];
+    private final AtomicLongArray succeeded = new AtomicLongArray(Op.values().length);
+    private final AtomicLongArray failed = new AtomicLongArray(Op.values().length);
+    private final AtomicLongArray transfers = new AtomicLongArray(TransferResult.values().length);
+    
+    private BankMetrics() {
+        for (Op op : Op.values()) {
+            latency[op.ordinal()] = new LatencyHistogram();
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("bank:type=BankMetrics"));
+        } catch (JMException e) {
+            System.out.println("Metrics not published over JMX: " + e.getMessage());
+        }
+        long interval = Long.getLong("bank.metrics.dump", 0);
+        if (interval > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            });
+            dumper.scheduleAtFixedRate(() -> dump("metrics.txt"), interval, interval, TimeUnit.SECONDS);
+        }
+    }
+    
+    public void record(Op op, long startNanos, boolean ok) {
+        latency[op.ordinal()].record(System.nanoTime() - startNanos);
+        (ok ? succeeded : failed).incrementAndGet(op.ordinal());
+    }
+    
+    public void transfer(TransferResult result, long startNanos) {
+        transfers.incrementAndGet(result.ordinal());
+        record(Op.TRANSFER, startNanos, result == TransferResult.SUCCESS);
+    }
+    
+    public LatencyHistogram latency(Op op) {
+        return latency[op.ordinal()];
+    }
+    
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-11s %10s %8s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "ok", "failed", "mean us", "p50 us", "p90 us", "p99 us", "p999 us", "max us"));
+        for (Op op : Op.values()) {
+            LatencyHistogram h = latency[op.ordinal()];
+            sb.append(String.format("%-11s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    op, succeeded.get(op.ordinal()), failed.get(op.ordinal()), h.mean() / 1e3,
+                    h.percentile(0.5) / 1e3, h.percentile(0.9) / 1e3, h.percentile(0.99) / 1e3,
+                    h.percentile(0.999) / 1e3, h.max() / 1e3));
+        }
+        for (TransferResult r : TransferResult.values()) {
+            sb.append(String.format("transfers %-20s %10d%n", r, transfers.get(r.ordinal())));
+        }
+        return sb.toString();
+    }
+    
+    private void dump(String file) {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+            out.println("=== " + LocalDateTime.now());
+            out.print(report());
+        } catch (IOException e) {
+            System.out.println("Error writing metrics.");
+        }
+    }
+    
+    // JMX attributes: <op>.ok, <op>.failed, <op>.p50Micros, <op>.p99Micros, <op>.maxMicros,
+    // transfers.<RESULT> and report
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (attribute.equals("report")) {
+            return report();
+        }
+        String[] parts = attribute.split("\\.", 2);
+        if (parts.length == 2 && parts[0].equals("transfers")) {
+            try {
+                return transfers.get(TransferResult.valueOf(parts[1]).ordinal());
+            } catch (IllegalArgumentException e) {
+                throw new AttributeNotFoundException(attribute);
+            }
+        }
+        Op op;
+        try {
+            op = Op.valueOf(parts[0]);
+        } catch (IllegalArgumentException e) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        LatencyHistogram h = latency[op.ordinal()];
+        switch (parts.length == 2 ? parts[1] : "") {
+            case "ok": return succeeded.get(op.ordinal());
+            case "failed": return failed.get(op.ordinal());
+            case "p50Micros": return h.percentile(0.5) / 1e3;
+            case "p99Micros": return h.percentile(0.99) / 1e3;
+            case "maxMicros": return h.max() / 1e3;
+            default: throw new AttributeNotFoundException(attribute);
+        }
+    }
+    
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+    
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException e) {
+                // skipped, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+    
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+    
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+    
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        attributes.add(new MBeanAttributeInfo("report", "java.lang.String", "Text dump of all metrics", true, false, false));
+        for (Op op : Op.values()) {
+            attributes.add(new MBeanAttributeInfo(op + ".ok", "long", op + " successes", true, false, false));
+            attributes.add(new MBeanAttributeInfo(op + ".failed", "long", op + " failures", true, false, false));
+            attributes.add(new MBeanAttributeInfo(op + ".p50Micros", "double", op + " median latency", true, false, false));
+            attributes.add(new MBeanAttributeInfo(op + ".p99Micros", "double", op + " 99th percentile latency", true, false, false));
+            attributes.add(new MBeanAttributeInfo(op + ".maxMicros", "double", op + " maximum latency", true, false, false));
+        }
+        for (TransferResult r : TransferResult.values()) {
+            attributes.add(new MBeanAttributeInfo("transfers." + r, "long", "Transfers ending in " + r, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Bank operation metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
+
+// Hands out unique 10-digit account numbers: a 9-digit sequence number followed by a Luhn
+// check digit. Sequence numbers are leased from accounts.seq in blocks of BLOCK; the file
+// holds the first number not yet leased, so after a restart allocation resumes past every
+// block that was ever handed out (the unused rest of the last block is skipped). Within a
+// block numbers come from an atomic counter, so threads only synchronize to lease a block.
+class AccountNumberAllocator {
+    private static final int BLOCK = 10000;
+    private static final long FIRST = 100000000L;
+    private static final long LAST = 999999999L;
+    
+    private static final class Lease {
+        final AtomicLong next;
+        final long end;
+        
+        Lease(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+    
+    private final Path file;
+    private volatile Lease lease = new Lease(0, 0);
+    
+    public AccountNumberAllocator(String file) {
+        this.file = Paths.get(file);
+    }
+    
+    public String next() {
+        while (true) {
+            Lease current = lease;
+            long sequence = current.next.getAndIncrement();
+            if (sequence < current.end) {
+                return String.valueOf(sequence * 10 + checkDigit(sequence));
+            }
+            renew(current);
+        }
+    }
+    
+    private synchronized void renew(Lease exhausted) {
+        if (lease != exhausted) {
+            return;
+        }
+        try {
+            long start = FIRST;
+            if (Files.exists(file)) {
+                start = Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim());
+            }
+            long end = Math.min(start + BLOCK, LAST + 1);
+            if (start > LAST) {
+                throw new IllegalStateException("Account numbers exhausted");
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ch.write(ByteBuffer.wrap(Long.toString(end).getBytes(StandardCharsets.US_ASCII)));
+                ch.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lease = new Lease(start, end);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot lease account numbers from " + file, e);
+        }
+    }
+    
+    // Luhn check digit for the given digits
+    static int checkDigit(long digits) {
+        int sum = 0;
+        boolean twice = true;
+        for (long d = digits; d > 0; d /= 10) {
+            int v = (int) (d % 10);
+            if (twice) {
+                v *= 2;
+                if (v > 9) {
+                    v -= 9;
+                }
+            }
+            sum += v;
+            twice = !twice;
+        }
+        return (10 - sum % 10) % 10;
+    }
+    
+    static boolean isValid(String accountNumber) {
+        if (accountNumber == null || !accountNumber.matches("\\d{10}")) {
+            return false;
+        }
+        long value = Long.parseLong(accountNumber);
+        return checkDigit(value / 10) == value % 10;
+    }
+    
+    // Allocates from many threads at once and checks that no number repeats
+    public static void benchmark(int threads, int perThread) throws Exception {
+        Path dir = Files.createTempDirectory("bank-seq");
+        AccountNumberAllocator allocator = new AccountNumberAllocator(dir.resolve("accounts.seq").toString());
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    String number = allocator.next();
+                    if (!seen.add(number) || !isValid(number)) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d numbers from %d threads in %.2f s (%.0f/s), %d duplicate or invalid%n",
+                seen.size(), threads, seconds, threads * (double) perThread / seconds, duplicates.get());
+        
+        AccountNumberAllocator restarted = new AccountNumberAllocator(dir.resolve("accounts.seq").toString());
+        String after = restarted.next();
+        System.out.println("After restart: " + after + (seen.contains(after) ? " (REUSED)" : " (new)"));
+    }
+}
+
+// Amounts are kept as long cents so repeated deposits and transfers never drift
+final class Money {
+    private Money() {}
+    
+    // Parses "12", "12.5" or "12.50"; anything past the second decimal is rounded
+    static long parse(String amount) {
+        return new BigDecimal(amount.trim()).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+    
+    static String format(long cents) {
+        return BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+}
+
+// Open-addressing hash table from long account number to Account.
+// Keys live in a flat long array (0 marks an empty slot, account numbers are never 0),
+// so there is no String key or map entry object per account. Lookups are lock-free:
+// a value is stored before its key, and a resized table is only published once full.
+class AccountIndex {
+    private static final class Table {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<Account> values;
+        final int mask;
+        
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+    
+    private volatile Table table;
+    private int size;
+    
+    public AccountIndex() {
+        this(1024);
+    }
+    
+    public AccountIndex(int expected) {
+        table = new Table(Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1);
+    }
+    
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+    
+    public Account get(long key) {
+        Table t = table;
+        for (int i = hash(key) & t.mask; ; i = (i + 1) & t.mask) {
+            long k = t.keys.get(i);
+            if (k == key) {
+                return t.values.get(i);
+            }
+            if (k == 0) {
+                return null;
+            }
+        }
+    }
+    
+    // Returns null for anything that is not a valid account number
+    public Account get(String accountNumber) {
+        if (accountNumber == null || accountNumber.isEmpty() || accountNumber.length() > 18) {
+            return null;
+        }
+        long key = 0;
+        for (int i = 0; i < accountNumber.length(); i++) {
+            char c = accountNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+            key = key * 10 + (c - '0');
+        }
+        return get(key);
+    }
+    
+    // Inserts acc unless its number is taken; returns the existing account in that case
+    public synchronized Account putIfAbsent(Account acc) {
+        Account existing = get(acc.number);
+        if (existing == null) {
+            put(acc);
+        }
+        return existing;
+    }
+    
+    public synchronized void put(Account acc) {
+        if ((size + 1) * 2 > table.keys.length()) {
+            Table bigger = new Table(table.keys.length() * 2);
+            Table old = table;
+            for (int i = 0; i < old.keys.length(); i++) {
+                long k = old.keys.get(i);
+                if (k != 0) {
+                    insert(bigger, k, old.values.get(i));
+                }
+            }
+            table = bigger;
+        }
+        if (insert(table, acc.number, acc)) {
+            size++;
+        }
+    }
+    
+    private static boolean insert(Table t, long key, Account acc) {
+        for (int i = hash(key) & t.mask; ; i = (i + 1) & t.mask) {
+            long k = t.keys.get(i);
+            if (k == key) {
+                t.values.set(i, acc);
+                return false;
+            }
+            if (k == 0) {
+                t.values.set(i, acc);
+                t.keys.set(i, key);
+                return true;
+            }
+        }
+    }
+    
+    public synchronized int size() {
+        return size;
+    }
+    
+    // Grows the table once up front so a bulk load does not rehash repeatedly
+    public synchronized void ensureCapacity(int expected) {
+        if (expected * 2 > table.keys.length()) {
+            Table bigger = new Table(Integer.highestOneBit(expected * 2 - 1) << 1);
+            Table old = table;
+            for (int i = 0; i < old.keys.length(); i++) {
+                long k = old.keys.get(i);
+                if (k != 0) {
+                    insert(bigger, k, old.values.get(i));
+                }
+            }
+            table = bigger;
+        }
+    }
+    
+    // Inserts a batch under a single lock acquisition
+    public synchronized void putAll(List<Account> batch) {
+        ensureCapacity(size + batch.size());
+        for (Account acc : batch) {
+            if (insert(table, acc.number, acc)) {
+                size++;
+            }
+        }
+    }
+    
+    public List<Account> values() {
+        Table t = table;
+        List<Account> list = new ArrayList<>();
+        for (int i = 0; i < t.keys.length(); i++) {
+            if (t.keys.get(i) != 0) {
+                list.add(t.values.get(i));
+            }
+        }
+        return list;
+    }
+    
+    // Compares heap per entry and lookup throughput against HashMap<String, Account>
+    public static void benchmark(int n) {
+        Account[] all = new Account[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = new Account(String.valueOf(1000000000L + i * 7919L), "1234", "Bench", 0, null, null);
+        }
+        String[] probes = new String[n];
+        for (int i = 0; i < n; i++) {
+            probes[i] = new String(all[(int) ((i * 31L) % n)].accountNumber);
+        }
+        
+        long before = usedHeap();
+        Map<String, Account> map = new HashMap<>();
+        for (Account acc : all) {
+            map.put(acc.accountNumber, acc);
+        }
+        long mapBytes = usedHeap() - before;
+        
+        before = usedHeap();
+        AccountIndex index = new AccountIndex();
+        for (Account acc : all) {
+            index.put(acc);
+        }
+        long indexBytes = usedHeap() - before;
+        
+        System.out.printf("HashMap<String, Account>: %.1f bytes/account%n", (double) mapBytes / n);
+        System.out.printf("AccountIndex:             %.1f bytes/account%n", (double) indexBytes / n);
+        
+        for (int round = 0; round < 3; round++) {
+            long found = 0;
+            long start = System.nanoTime();
+            for (String probe : probes) {
+                if (map.get(probe) != null) {
+                    found++;
+                }
+            }
+            long mapNanos = System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            for (String probe : probes) {
+                if (index.get(probe) != null) {
+                    found++;
+                }
+            }
+            long indexNanos = System.nanoTime() - start;
+            System.out.printf("round %d: HashMap %.1f M lookups/s, AccountIndex %.1f M lookups/s (%d hits)%n",
+                    round + 1, n * 1e3 / mapNanos, n * 1e3 / indexNanos, found);
+        }
+    }
+    
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
+
+// Collects transaction log lines from all accounts and writes them in batches.
+//   SYNC  - every entry is written and fsynced before append() returns
+//   GROUP - a writer thread commits a batch every groupMillis or groupRecords entries,
+//           fsyncs once per touched file and then releases all waiting callers
+//   ASYNC - append() returns immediately; batches are written without fsync
+class TransactionJournal {
+    enum Mode { SYNC, GROUP, ASYNC }
+    
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    
+    static class Entry {
+        final String accountNumber;
+        final TransactionRecord.Type type;
+        final long amount;
+        final long counterparty;
+        final String key;
+        final String line;
+        final long epochSecond;
+        final long enqueued = System.nanoTime();
+        final CountDownLatch done;
+        
+        Entry(String accountNumber, String line, long epochSecond, boolean wait) {
+            this(accountNumber, TransactionRecord.Type.NOTE, 0, 0, null, line, epochSecond, wait);
+        }
+        
+        Entry(String accountNumber, TransactionRecord.Type type, long amount, long counterparty, String key,
+              String line, long epochSecond, boolean wait) {
+            this.accountNumber = accountNumber;
+            this.type = type;
+            this.amount = amount;
+            this.counterparty = counterparty;
+            this.key = key;
+            this.line = line;
+            this.epochSecond = epochSecond;
+            this.done = wait ? new CountDownLatch(1) : null;
+        }
+        
+        // A typed entry with the standard text, stamped with the given time
+        static Entry of(String accountNumber, TransactionRecord.Type type, long amount, long counterparty, LocalDateTime at) {
+            return new Entry(accountNumber, type, amount, counterparty, null,
+                    TransactionRecord.describe(type, amount, counterparty) + " on " + at.format(FORMATTER),
+                    at.atZone(ZoneId.systemDefault()).toEpochSecond(), false);
+        }
+    }
+    
+    private final TransactionHistory history;
+    private final Mode mode;
+    private final int groupRecords;
+    private final long groupMillis;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Thread shutdownHook;
+    private volatile boolean running = true;
+    // Queued by close() to wake the writer; never written
+    private static final Entry WAKE_UP = new Entry(null, null, 0, false);
+    
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final long started = System.nanoTime();
+    
+    public TransactionJournal(String directory, Mode mode, int groupRecords, long groupMillis) {
+        this.history = new TransactionHistory(directory);
+        this.mode = mode;
+        this.groupRecords = groupRecords;
+        this.groupMillis = groupMillis;
+        if (mode == Mode.SYNC) {
+            writer = null;
+            shutdownHook = null;
+        } else {
+            writer = new Thread(this::run, "transaction-journal");
+            writer.setDaemon(true);
+            writer.start();
+            shutdownHook = new Thread(this::close);
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+    }
+    
+    // Mode and batching limits come from -Dbank.journal=sync|group|async,
+    // -Dbank.journal.records and -Dbank.journal.millis
+    public static TransactionJournal fromSystemProperties(String directory) {
+        Mode mode = Mode.valueOf(System.getProperty("bank.journal", "group").toUpperCase());
+        int groupRecords = Integer.getInteger("bank.journal.records", 256);
+        long groupMillis = Long.getLong("bank.journal.millis", 5);
+        return new TransactionJournal(directory, mode, groupRecords, groupMillis);
+    }
+    
+    public TransactionHistory history() {
+        return history;
+    }
+    
+    public void append(String accountNumber, String transaction) {
+        LocalDateTime now = LocalDateTime.now();
+        String line = transaction + " on " + now.format(FORMATTER);
+        enqueue(new Entry(accountNumber, line, now.atZone(ZoneId.systemDefault()).toEpochSecond(), mode == Mode.GROUP));
+    }
+    
+    public void append(String accountNumber, TransactionRecord.Type type, long amount, long counterparty, String key) {
+        LocalDateTime now = LocalDateTime.now();
+        String line = TransactionRecord.describe(type, amount, counterparty) + " on " + now.format(FORMATTER);
+        enqueue(new Entry(accountNumber, type, amount, counterparty, key, line, now.atZone(ZoneId.systemDefault()).toEpochSecond(), mode == Mode.GROUP));
+    }
+    
+    private void enqueue(Entry entry) {
+        if (mode == Mode.SYNC) {
+            synchronized (this) {
+                write(Collections.singletonList(entry));
+            }
+            return;
+        }
+        
+        // Once closed there is no writer left to take the entry or release its caller. If
+        // close() starts right after the add, the entry is taken back while still queued;
+        // otherwise the writer or close() writes it.
+        if (!running || (queue.add(entry) && !running && queue.remove(entry))) {
+            System.out.println("Error saving transaction history: journal is closed.");
+            return;
+        }
+        if (entry.done != null) {
+            try {
+                entry.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    // Writes a large set of entries (see Entry.of) as one batch on the caller's thread, whatever the mode
+    public void appendAll(List<Entry> batch) {
+        synchronized (this) {
+            write(batch);
+        }
+    }
+    
+    private void run() {
+        List<Entry> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null || first == WAKE_UP) {
+                    continue;
+                }
+                batch.add(first);
+                if (mode == Mode.GROUP) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupMillis);
+                    while (batch.size() < groupRecords) {
+                        long remaining = deadline - System.nanoTime();
+                        Entry next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                } else {
+                    queue.drainTo(batch, groupRecords - 1);
+                }
+                batch.remove(WAKE_UP);
+                write(batch);
+            } catch (InterruptedException e) {
+                running = false;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+    
+    // Writes one batch to the transaction log with a single write, fsynced unless ASYNC
+    private void write(List<Entry> batch) {
+        try {
+            for (Entry e : history.append(batch, mode != Mode.ASYNC)) {
+                System.out.println("Error saving transaction history: record for account " + e.accountNumber + " is too long.");
+            }
+        } catch (IOException ex) {
+            System.out.println("Error saving transaction history.");
+        }
+        
+        long now = System.nanoTime();
+        for (Entry e : batch) {
+            long latency = now - e.enqueued;
+            totalLatency.addAndGet(latency);
+            maxLatency.accumulateAndGet(latency, Math::max);
+            if (e.done != null) {
+                e.done.countDown();
+            }
+        }
+        records.addAndGet(batch.size());
+        batches.incrementAndGet();
+    }
+    
+    // Stops the writer after everything queued so far has been written
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        if (writer != null) {
+            queue.add(WAKE_UP);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // Entries added while the writer was stopping
+            List<Entry> late = new ArrayList<>();
+            queue.drainTo(late);
+            late.remove(WAKE_UP);
+            if (!late.isEmpty()) {
+                write(late);
+            }
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // already shutting down
+            }
+        }
+        history.close();
+    }
+    
+    public String report() {
+        long n = records.get();
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return String.format("%s: %d records in %d batches, %.0f records/s, avg latency %.3f ms, max latency %.3f ms",
+                mode, n, batches.get(), n / seconds,
+                n == 0 ? 0.0 : totalLatency.get() / 1e6 / n, maxLatency.get() / 1e6);
+    }
+    
+    // Runs the same multi-threaded append workload against each mode and prints its report
+    public static void benchmark(int threads, int perThread, int accountsCount) throws Exception {
+        for (Mode mode : Mode.values()) {
+            Path dir = Files.createTempDirectory("journal-" + mode.name().toLowerCase());
+            TransactionJournal journal = new TransactionJournal(dir.toString(), mode, 256, 5);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                workers[t] = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        journal.append(String.valueOf(1000000000L + (id * perThread + i) % accountsCount), "Deposited " + i);
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread w : workers) {
+                w.join();
+            }
+            journal.close();
+            System.out.println(journal.report());
+        }
+    }
+}
+
+// Persistence backend for accounts, chosen with -Dbank.store=ledger|mapped
+interface AccountStore {
+    // Populates the account map at startup without writing anything back
+    void load();
+    
+    void save(Account acc);
+    
+    // Persists a changed pinHash
+    void saveCredential(Account acc);
+    
+    // Persists many accounts as one commit (used by batch settlement)
+    void saveAll(Collection<Account> changed);
+    
+    // Flushes everything and exports the current balances to users.csv
+    void close();
+}
+
+// Append-only balance ledger. users.csv is the snapshot; every change appends one
+// record in the same format to the ledger file, and once the ledger grows past
+// COMPACT_THRESHOLD records a fresh snapshot is written and the ledger is truncated.
+// Replaying a full record is idempotent, so a crash between the two steps is harmless.
+// A record that cannot be written fails the save with an UncheckedIOException.
+class BalanceLedger implements AccountStore {
+    private static final int COMPACT_THRESHOLD = 10000;
+    private final String snapshotFile;
+    private final String ledgerFile;
+    private final AccountIndex accounts;
+    private final TransactionJournal journal;
+    private FileOutputStream out;
+    private int records;
+    // Cross-shard transfer state (see ShardParticipant) rides in a fifth field of the account
+    // record it changes, xfer:<txid>:<P|C|A>:<delta>:<counterparty>[:<idempotency key>], so
+    // the balance and the transfer state reach the ledger in one write. Names cannot hold a
+    // comma (ATM.validName), so only a tag makes a fifth field. The key comes last as it may
+    // itself contain ':' or ','. Prepared transfers without an outcome
+    // yet are kept here and carried into the new ledger by compaction.
+    private final Map<String, String[]> prepared = new LinkedHashMap<>();
+    private static final String TAG = "xfer:";
+    // Aborted txids (txid -> epoch second), so a PREPARE that arrives after its transfer was
+    // aborted is refused. An abort of a transfer never prepared here has no account to ride
+    // on and is a line of its own, xfer:<txid>:A:<epoch second>. Compaction carries them
+    // for ABORT_SECONDS.
+    private static final long ABORT_SECONDS = Long.getLong("bank.cluster.abortSeconds", 86400);
+    private final Map<String, Long> aborted = new LinkedHashMap<>();
+    // Lines the last compaction carried into the new ledger
+    private int carried;
+    
+    public BalanceLedger(String snapshotFile, String ledgerFile, AccountIndex accounts, TransactionJournal journal) {
+        this.snapshotFile = snapshotFile;
+        this.ledgerFile = ledgerFile;
+        this.accounts = accounts;
+        this.journal = journal;
+    }
+    
+    // Rebuilds the account map from the latest snapshot plus the ledger tail
+    public void load() {
+        try {
+            ParallelCsvLoader.load(snapshotFile, accounts, this, journal);
+        } catch (IOException e) {
+            System.out.println("User data not found. Creating a new database.");
+        }
+        
+        try (BufferedReader br = new BufferedReader(new FileReader(ledgerFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                apply(line);
+                records++;
+            }
+        } catch (IOException e) {}
+        
+        open(true);
+    }
+    
+    private void apply(String line) {
+        String[] details = line.split(",", 5);
+        if (details.length == 1 && line.startsWith(TAG)) {
+            String[] parts = line.substring(TAG.length()).split(":");
+            if (parts.length == 3 && parts[1].equals("A") && parts[2].matches("\\d{1,18}")) {
+                abortedAt(parts[0], Long.parseLong(parts[2]));
+            } else {
+                System.out.println("Skipping ledger record: malformed transfer tag " + line);
+            }
+            return;
+        }
+        if (details.length == 5) {
+            try {
+                tag(details[0], details[4]);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Skipping ledger record for account " + details[0] + ": " + e.getMessage());
+                return;
+            }
+        }
+        if (details.length == 4 || details.length == 5) {
+            Account existing = accounts.get(details[0]);
+            if (existing != null) {
+                existing.pinHash = details[1];
+                existing.name = details[2];
+                existing.balance = Money.parse(details[3]);
+                SnapshotClock.INSTANCE.commit(existing);
+            } else {
+                accounts.put(new Account(details[0], details[1], details[2], Money.parse(details[3]), this, journal));
+            }
+        }
+    }
+    
+    private void open(boolean append) {
+        try {
+            out = new FileOutputStream(ledgerFile, append);
+        } catch (IOException e) {
+            System.out.println("Error opening balance ledger.");
+        }
+    }
+    
+    // Nothing is buffered, so a failed close loses no records
+    private void closeLedger() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.out.println("Error closing balance ledger.");
+            }
+            out = null;
+        }
+    }
+    
+    // Lines go out in one unbuffered write (in the platform charset, as load reads them), so
+    // nothing of a failed write is left in a buffer to reach the file later
+    private void append(String lines) {
+        try {
+            out.write(lines.getBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write balance ledger " + ledgerFile, e);
+        }
+    }
+    
+    public synchronized void save(Account acc) {
+        if (out == null) {
+            return;
+        }
+        append(acc.toRecord() + "\n");
+        if (++records - carried >= COMPACT_THRESHOLD) {
+            compact();
+        }
+    }
+    
+    public void saveCredential(Account acc) {
+        save(acc);
+    }
+    
+    // Writes the account together with a cross-shard transfer state change; state is
+    // P (prepared), C (committed) or A (aborted); key is the sender's idempotency key or null.
+    // Returns false, writing nothing, for a P of a transfer that was already aborted.
+    public synchronized boolean saveTransfer(Account acc, String txid, char state, long delta, long counterparty, String key) {
+        if (state == 'P' && aborted.containsKey(txid)) {
+            return false;
+        }
+        if (out == null) {
+            return true;
+        }
+        String tag = TAG + txid + ":" + state + ":" + delta + ":" + counterparty + (key != null ? ":" + key : "");
+        append(acc.toRecord() + "," + tag + "\n");
+        tag(acc.accountNumber, tag);
+        if (++records - carried >= COMPACT_THRESHOLD) {
+            compact();
+        }
+        return true;
+    }
+    
+    // Records the abort of a transfer that has nothing prepared here. Returns null, or the
+    // account of a PREPARE that got in first; that one has to be aborted the usual way.
+    public synchronized String saveAbort(String txid) {
+        String[] p = prepared.get(txid);
+        if (p != null) {
+            return p[0];
+        }
+        if (aborted.containsKey(txid)) {
+            return null;
+        }
+        long now = Instant.now().getEpochSecond();
+        if (out != null) {
+            append(TAG + txid + ":A:" + now + "\n");
+        }
+        abortedAt(txid, now);
+        if (out != null) {
+            if (++records - carried >= COMPACT_THRESHOLD) {
+                compact();
+            }
+        }
+        return null;
+    }
+    
+    private void abortedAt(String txid, long epochSecond) {
+        if (epochSecond > Instant.now().getEpochSecond() - ABORT_SECONDS) {
+            aborted.put(txid, epochSecond);
+        }
+    }
+    
+    // txid -> {account, delta, counterparty[, key]} for every prepared transfer without an outcome
+    public synchronized Map<String, String[]> prepared() {
+        return new LinkedHashMap<>(prepared);
+    }
+    
+    // Throws IllegalArgumentException for anything that is not a well-formed tag
+    private void tag(String accountNumber, String tag) {
+        if (!tag.startsWith(TAG)) {
+            throw new IllegalArgumentException("unexpected fifth field, not a transfer tag");
+        }
+        String[] parts = tag.substring(TAG.length()).split(":", 5);
+        if (parts.length < 4 || parts[0].isEmpty() || !parts[1].matches("[PCA]")
+                || !parts[2].matches("-?\\d{1,18}") || !parts[3].matches("\\d{1,18}")) {
+            throw new IllegalArgumentException("malformed transfer tag " + tag);
+        }
+        if (parts[1].equals("P")) {
+            prepared.put(parts[0], parts.length == 5 ? new String[] { accountNumber, parts[2], parts[3], parts[4] }
+                    : new String[] { accountNumber, parts[2], parts[3] });
+        } else {
+            prepared.remove(parts[0]);
+            if (parts[1].equals("A")) {
+                abortedAt(parts[0], Instant.now().getEpochSecond());
+            }
+        }
+    }
+    
+    public synchronized void saveAll(Collection<Account> changed) {
+        if (out == null) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Account acc : changed) {
+            lines.append(acc.toRecord()).append('\n');
+        }
+        append(lines.toString());
+        records += changed.size();
+        if (records - carried >= COMPACT_THRESHOLD) {
+            compact();
+        }
+    }
+    
+    // Writes a full snapshot to users.csv and starts an empty ledger
+    public synchronized void compact() {
+        File tmp = new File(snapshotFile + ".tmp");
+        try (PrintWriter snap = new PrintWriter(new BufferedWriter(new FileWriter(tmp)))) {
+            for (Account acc : accounts.values()) {
+                snap.println(acc.toRecord());
+            }
+            if (snap.checkError()) {
+                throw new IOException("write failed");
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing snapshot.");
+            return;
+        }
+        
+        try {
+            Files.move(tmp.toPath(), new File(snapshotFile).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error replacing snapshot.");
+            return;
+        }
+        
+        // The new ledger starts with the prepared transfers and recent aborts and replaces the
+        // old one in a single rename; until then replaying the old ledger over the new
+        // snapshot is harmless
+        long cutoff = Instant.now().getEpochSecond() - ABORT_SECONDS;
+        aborted.values().removeIf(at -> at <= cutoff);
+        File ledgerTmp = new File(ledgerFile + ".tmp");
+        try (PrintWriter pending = new PrintWriter(new BufferedWriter(new FileWriter(ledgerTmp)))) {
+            for (Map.Entry<String, Long> a : aborted.entrySet()) {
+                pending.println(TAG + a.getKey() + ":A:" + a.getValue());
+            }
+            for (Map.Entry<String, String[]> p : prepared.entrySet()) {
+                Account acc = accounts.get(p.getValue()[0]);
+                pending.println(acc.toRecord() + "," + TAG + p.getKey() + ":P:" + p.getValue()[1] + ":" + p.getValue()[2]
+                        + (p.getValue().length > 3 ? ":" + p.getValue()[3] : ""));
+            }
+            if (pending.checkError()) {
+                throw new IOException("write failed");
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing ledger.");
+            return;
+        }
+        closeLedger();
+        try {
+            Files.move(ledgerTmp.toPath(), new File(ledgerFile).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error replacing ledger.");
+        }
+        open(true);
+        records = prepared.size() + aborted.size();
+        carried = records;
+    }
+    
+    public synchronized void close() {
+        if (records > carried) {
+            compact();
+        }
+        closeLedger();
+    }
+}
+
+// Fixed-width binary account file accessed through a MappedByteBuffer.
+// Layout: a 16 byte header (magic, version, slot count) followed by 128 byte slots:
+//   0   long   account number
+//   8   short  name length
+//   10  bytes  name (UTF-8, up to NAME_BYTES)
+//   64  int    PBKDF2 iterations, or 0 for a plaintext PIN from before hashing
+//   68  bytes  salt (or the plaintext PIN as an int)
+//   84  bytes  hash
+//   116 long   balance in cents
+// Each account keeps its slot for life, so a balance update is a single 8 byte write.
+// Version 1 and 2 files had 64 byte slots with an int PIN at 8, the name at 12 and the
+// balance at 56 (a double in version 1); they are rewritten in this layout on load.
+class MappedAccountStore implements AccountStore {
+    private static final int MAGIC = 0x42414E4B; // "BANK"
+    private static final int VERSION = 3;
+    private static final int HEADER = 16;
+    private static final int SLOT = 128;
+    private static final int NAME_BYTES = 54;
+    private static final int CREDENTIAL_OFFSET = 64;
+    private static final int BALANCE_OFFSET = 116;
+    private static final int OLD_SLOT = 64;
+    
+    private final String dataFile;
+    private final String csvFile;
+    private final AccountIndex accounts;
+    private final TransactionJournal journal;
+    private final Map<String, Integer> slots = new HashMap<>();
+    // Balance writes share the read lock; growing the mapping takes the write lock
+    private final ReadWriteLock mapping = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int count;
+    
+    public MappedAccountStore(String dataFile, String csvFile, AccountIndex accounts, TransactionJournal journal) {
+        this.dataFile = dataFile;
+        this.csvFile = csvFile;
+        this.accounts = accounts;
+        this.journal = journal;
+    }
+    
+    public void load() {
+        boolean exists = new File(dataFile).exists();
+        try {
+            channel = FileChannel.open(Paths.get(dataFile), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            map(Math.max(channel.size(), HEADER + 1024L * SLOT));
+        } catch (IOException e) {
+            System.out.println("Error opening account store: " + e.getMessage());
+            return;
+        }
+        
+        if (!exists || buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, 0);
+            importCsv();
+            return;
+        }
+        
+        count = buffer.getInt(8);
+        int version = buffer.getInt(4);
+        if (version < VERSION) {
+            upgrade(version);
+            return;
+        }
+        byte[] name = new byte[NAME_BYTES];
+        for (int slot = 0; slot < count; slot++) {
+            int base = HEADER + slot * SLOT;
+            String accountNumber = String.valueOf(buffer.getLong(base));
+            int nameLength = buffer.getShort(base + 8);
+            buffer.get(base + 10, name, 0, nameLength);
+            accounts.put(new Account(accountNumber, readCredential(base), new String(name, 0, nameLength, StandardCharsets.UTF_8),
+                    buffer.getLong(base + BALANCE_OFFSET), this, journal));
+            slots.put(accountNumber, slot);
+        }
+    }
+    
+    // Reads a version 1 or 2 file, keeps it as accounts.dat.v<version> and writes the
+    // accounts into a new file
+    private void upgrade(int version) {
+        byte[] name = new byte[42];
+        List<Account> old = new ArrayList<>(count);
+        for (int slot = 0; slot < count; slot++) {
+            int base = HEADER + slot * OLD_SLOT;
+            String accountNumber = String.valueOf(buffer.getLong(base));
+            int nameLength = buffer.getShort(base + 12);
+            buffer.get(base + 14, name, 0, nameLength);
+            long balance = version == 1
+                    ? Money.parse(Double.toString(buffer.getDouble(base + 56)))
+                    : buffer.getLong(base + 56);
+            old.add(new Account(accountNumber, String.valueOf(buffer.getInt(base + 8)),
+                    new String(name, 0, nameLength, StandardCharsets.UTF_8), balance, this, journal));
+        }
+        try {
+            channel.close();
+            buffer = null;
+            Files.move(Paths.get(dataFile), Paths.get(dataFile + ".v" + version), StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(Paths.get(dataFile), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            map(HEADER + Math.max(1024L, old.size()) * SLOT);
+        } catch (IOException e) {
+            System.out.println("Error upgrading account store: " + e.getMessage());
+            return;
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        count = 0;
+        buffer.putInt(8, 0);
+        accounts.putAll(old);
+        for (Account acc : old) {
+            save(acc);
+        }
+        buffer.force();
+    }
+    
+    private String readCredential(int base) {
+        int iterations = buffer.getInt(base + CREDENTIAL_OFFSET);
+        if (iterations == 0) {
+            return String.valueOf(buffer.getInt(base + CREDENTIAL_OFFSET + 4));
+        }
+        byte[] salt = new byte[PinHasher.SALT_BYTES];
+        byte[] hash = new byte[PinHasher.HASH_BYTES];
+        buffer.get(base + CREDENTIAL_OFFSET + 4, salt);
+        buffer.get(base + CREDENTIAL_OFFSET + 4 + salt.length, hash);
+        return PinHasher.format(iterations, salt, hash);
+    }
+    
+    // Called with the mapping lock held
+    private void writeCredential(int base, String credential) {
+        if (PinHasher.isLegacy(credential)) {
+            buffer.putInt(base + CREDENTIAL_OFFSET, 0);
+            buffer.putInt(base + CREDENTIAL_OFFSET + 4, Integer.parseInt(credential));
+            return;
+        }
+        String[] parts = credential.split("\\$");
+        buffer.putInt(base + CREDENTIAL_OFFSET, Integer.parseInt(parts[1]));
+        buffer.put(base + CREDENTIAL_OFFSET + 4, Base64.getDecoder().decode(parts[2]));
+        buffer.put(base + CREDENTIAL_OFFSET + 4 + PinHasher.SALT_BYTES, Base64.getDecoder().decode(parts[3]));
+    }
+    
+    // First start with the binary store: take the accounts from users.csv
+    private void importCsv() {
+        try {
+            ParallelCsvLoader.load(csvFile, accounts, this, journal);
+            for (Account acc : accounts.values()) {
+                save(acc);
+            }
+        } catch (IOException e) {
+            System.out.println("User data not found. Creating a new database.");
+        }
+    }
+    
+    private void map(long size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+    
+    public void save(Account acc) {
+        Integer slot;
+        synchronized (slots) {
+            slot = slots.get(acc.accountNumber);
+            if (slot == null) {
+                insert(acc);
+                return;
+            }
+        }
+        
+        mapping.readLock().lock();
+        try {
+            buffer.putLong(HEADER + slot * SLOT + BALANCE_OFFSET, acc.balance);
+        } finally {
+            mapping.readLock().unlock();
+        }
+    }
+    
+    public void saveCredential(Account acc) {
+        Integer slot;
+        synchronized (slots) {
+            slot = slots.get(acc.accountNumber);
+            if (slot == null) {
+                insert(acc);
+                return;
+            }
+        }
+        
+        mapping.readLock().lock();
+        try {
+            writeCredential(HEADER + slot * SLOT, acc.pinHash);
+        } finally {
+            mapping.readLock().unlock();
+        }
+    }
+    
+    public void saveAll(Collection<Account> changed) {
+        for (Account acc : changed) {
+            save(acc);
+        }
+        mapping.readLock().lock();
+        try {
+            buffer.force();
+        } finally {
+            mapping.readLock().unlock();
+        }
+    }
+    
+    // Called with the slots monitor held
+    private void insert(Account acc) {
+        int slot = count;
+        long needed = HEADER + (long) (slot + 1) * SLOT;
+        mapping.writeLock().lock();
+        try {
+            if (needed > buffer.capacity()) {
+                map(Math.max(needed, buffer.capacity() * 2L));
+            }
+            int base = HEADER + slot * SLOT;
+            byte[] name = acc.name.getBytes(StandardCharsets.UTF_8);
+            int nameLength = Math.min(name.length, NAME_BYTES);
+            buffer.putLong(base, acc.number);
+            buffer.putShort(base + 8, (short) nameLength);
+            buffer.put(base + 10, name, 0, nameLength);
+            writeCredential(base, acc.pinHash);
+            buffer.putLong(base + BALANCE_OFFSET, acc.balance);
+            count = slot + 1;
+            buffer.putInt(8, count);
+        } catch (IOException e) {
+            System.out.println("Error growing account store: " + e.getMessage());
+            return;
+        } finally {
+            mapping.writeLock().unlock();
+        }
+        slots.put(acc.accountNumber, slot);
+    }
+    
+    public void close() {
+        if (buffer == null) {
+            return;
+        }
+        buffer.force();
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(csvFile)))) {
+            for (Account acc : accounts.values()) {
+                out.println(acc.toRecord());
+            }
+        } catch (IOException e) {
+            System.out.println("Error exporting users.csv.");
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {}
+        buffer = null;
+    }
+}
+
+// Bulk loader for users.csv-format files. The file is split into chunks that are parsed
+// in parallel on the common fork-join pool, each from its own read-only mapping. A chunk
+// owns every line that starts inside it, so boundaries need no coordination. Nothing is
+// written back while loading.
+class ParallelCsvLoader extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final long CHUNK = 4L << 20;
+    private static final int MAX_LINE = 64 << 10;
+    
+    private final FileChannel channel;
+    private final long size;
+    private final long start;
+    private final long end;
+    private final AccountIndex accounts;
+    private final AccountStore store;
+    private final TransactionJournal journal;
+    private final AtomicLong loaded;
+    
+    private ParallelCsvLoader(FileChannel channel, long size, long start, long end, AccountIndex accounts,
+                              AccountStore store, TransactionJournal journal, AtomicLong loaded) {
+        this.channel = channel;
+        this.size = size;
+        this.start = start;
+        this.end = end;
+        this.accounts = accounts;
+        this.store = store;
+        this.journal = journal;
+        this.loaded = loaded;
+    }
+    
+    // Returns the number of accounts loaded; throws if the file cannot be opened
+    public static long load(String file, AccountIndex accounts, AccountStore store, TransactionJournal journal) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long size = channel.size();
+            accounts.ensureCapacity(accounts.size() + (int) Math.min(Integer.MAX_VALUE / 4, size / 32));
+            AtomicLong loaded = new AtomicLong();
+            ForkJoinPool.commonPool().invoke(new ParallelCsvLoader(channel, size, 0, size, accounts, store, journal, loaded));
+            return loaded.get();
+        }
+    }
+    
+    protected void compute() {
+        if (end - start > CHUNK) {
+            long mid = start + (end - start) / 2;
+            invokeAll(new ParallelCsvLoader(channel, size, start, mid, accounts, store, journal, loaded),
+                      new ParallelCsvLoader(channel, size, mid, end, accounts, store, journal, loaded));
+            return;
+        }
+        
+        long from = Math.max(0, start - 1);
+        long to = Math.min(size, end + MAX_LINE);
+        ByteBuffer buf;
+        try {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        int pos = (int) (start - from);
+        int limit = (int) (end - from);
+        // Skip the partial line that belongs to the previous chunk
+        if (start > 0 && buf.get(pos - 1) != '\n') {
+            while (pos < buf.limit() && buf.get(pos) != '\n') {
+                pos++;
+            }
+            pos++;
+        }
+        
+        List<Account> batch = new ArrayList<>();
+        byte[] line = new byte[256];
+        while (pos < limit) {
+            int lineEnd = pos;
+            while (lineEnd < buf.limit() && buf.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int length = lineEnd - pos;
+            if (length > 0 && buf.get(lineEnd - 1) == '\r') {
+                length--;
+            }
+            if (line.length < length) {
+                line = new byte[length];
+            }
+            buf.get(pos, line, 0, length);
+            Account acc = parse(line, length);
+            if (acc != null) {
+                batch.add(acc);
+            }
+            pos = lineEnd + 1;
+        }
+        accounts.putAll(batch);
+        loaded.addAndGet(batch.size());
+    }
+    
+    // Same acceptance rule as the original loader: exactly four comma separated fields
+    private Account parse(byte[] line, int length) {
+        int[] commas = new int[3];
+        int found = 0;
+        for (int i = 0; i < length; i++) {
+            if (line[i] == ',') {
+                if (found == 3) {
+                    return null;
+                }
+                commas[found++] = i;
+            }
+        }
+        if (found != 3 || commas[0] == 0) {
+            return null;
+        }
+        String accountNumber = new String(line, 0, commas[0], StandardCharsets.ISO_8859_1);
+        String pin = new String(line, commas[0] + 1, commas[1] - commas[0] - 1, StandardCharsets.ISO_8859_1);
+        String name = new String(line, commas[1] + 1, commas[2] - commas[1] - 1, StandardCharsets.UTF_8);
+        long balance = parseCents(line, commas[2] + 1, length);
+        return new Account(accountNumber, pin, name, balance, store, journal);
+    }
+    
+    // Fast path for plain "123", "123.4" and "123.45"; everything else goes through Money.parse
+    private static long parseCents(byte[] line, int from, int to) {
+        long units = 0;
+        int decimals = -1;
+        boolean negative = from < to && line[from] == '-';
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            byte b = line[i];
+            if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (b >= '0' && b <= '9' && decimals < 2) {
+                units = units * 10 + (b - '0');
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else {
+                return Money.parse(new String(line, from, to - from, StandardCharsets.ISO_8859_1));
+            }
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            units *= 10;
+        }
+        return negative ? -units : units;
+    }
+    
+    // Writes a users.csv with n synthetic accounts and times a cold ATM start over it
+    public static void benchmark(int n) throws IOException {
+        Path dir = Files.createTempDirectory("bank-load");
+        writeSynthetic(dir, n);
+        System.out.println("Wrote " + n + " accounts to " + dir.resolve("users.csv"));
+        new ATM(dir.toString());
+    }
+    
+    // Account i gets number 1000000000 + i and PIN 1000 + i % 9000
+    static void writeSynthetic(Path dir, int n) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(dir.resolve("users.csv").toFile()), 1 << 20))) {
+            for (int i = 0; i < n; i++) {
+                out.println((1000000000L + i) + "," + (1000 + i % 9000) + ",Customer " + i + "," + (i % 100000 + 1000) + "." + (i % 100));
+            }
+        }
+    }
+}
+
+// Applies a file of transfer instructions ("sender,receiver,amount" per line) with the
+// same rules as ATM.transfer. Instructions are assigned to waves: an instruction runs one
+// wave after the last earlier instruction touching either of its accounts. Instructions in
+// one wave touch disjoint accounts and run in parallel, and every account sees its
+// instructions in file order, so the outcome equals applying the file sequentially.
+// Balances are committed once at the end and the log entries are written as one batch.
+class SettlementEngine {
+    private static final int PARALLEL_WAVE = 1024;
+    
+    private final ATM atm;
+    
+    public SettlementEngine(ATM atm) {
+        this.atm = atm;
+    }
+    
+    public void settle(String instructionFile, String resultFile) throws IOException {
+        long t0 = System.nanoTime();
+        List<String> lines = Files.readAllLines(Paths.get(instructionFile));
+        int n = lines.size();
+        Account[] senders = new Account[n];
+        Account[] receivers = new Account[n];
+        long[] amounts = new long[n];
+        TransferResult[] results = new TransferResult[n];
+        String[] malformed = new String[n];
+        
+        for (int i = 0; i < n; i++) {
+            String[] parts = lines.get(i).split(",");
+            if (parts.length != 3) {
+                malformed[i] = "MALFORMED";
+                continue;
+            }
+            try {
+                amounts[i] = Money.parse(parts[2]);
+            } catch (NumberFormatException | ArithmeticException e) {
+                malformed[i] = "MALFORMED";
+                continue;
+            }
+            senders[i] = atm.find(parts[0].trim());
+            receivers[i] = atm.find(parts[1].trim());
+            if (senders[i] == null) {
+                results[i] = TransferResult.NO_SENDER;
+            } else if (receivers[i] == null) {
+                results[i] = TransferResult.NO_RECEIVER;
+            } else if (amounts[i] <= 0) {
+                results[i] = TransferResult.INVALID_AMOUNT;
+            }
+        }
+        
+        // Wave assignment, then a counting sort of instruction numbers by wave
+        Map<Account, Integer> lastWave = new IdentityHashMap<>();
+        int[] wave = new int[n];
+        int waves = 0;
+        for (int i = 0; i < n; i++) {
+            if (results[i] != null || malformed[i] != null) {
+                wave[i] = -1;
+                continue;
+            }
+            int w = 1 + Math.max(lastWave.getOrDefault(senders[i], -1), lastWave.getOrDefault(receivers[i], -1));
+            wave[i] = w;
+            lastWave.put(senders[i], w);
+            lastWave.put(receivers[i], w);
+            waves = Math.max(waves, w + 1);
+        }
+        int[] waveStart = new int[waves + 1];
+        for (int w : wave) {
+            if (w >= 0) {
+                waveStart[w + 1]++;
+            }
+        }
+        for (int w = 0; w < waves; w++) {
+            waveStart[w + 1] += waveStart[w];
+        }
+        int[] order = new int[waveStart[waves]];
+        int[] fill = Arrays.copyOf(waveStart, waves);
+        for (int i = 0; i < n; i++) {
+            if (wave[i] >= 0) {
+                order[fill[wave[i]]++] = i;
+            }
+        }
+        long t1 = System.nanoTime();
+        
+        for (int w = 0; w < waves; w++) {
+            java.util.stream.IntStream range = java.util.stream.IntStream.range(waveStart[w], waveStart[w + 1]);
+            if (waveStart[w + 1] - waveStart[w] >= PARALLEL_WAVE) {
+                range = range.parallel();
+            }
+            range.forEach(k -> {
+                int i = order[k];
+                results[i] = atm.move(senders[i], receivers[i], amounts[i], false);
+            });
+        }
+        long t2 = System.nanoTime();
+        
+        Set<Account> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<TransactionJournal.Entry> log = new ArrayList<>();
+        LocalDateTime now = LocalDateTime.now();
+        int succeeded = 0;
+        for (int i = 0; i < n; i++) {
+            if (results[i] == TransferResult.SUCCESS) {
+                succeeded++;
+                changed.add(senders[i]);
+                changed.add(receivers[i]);
+                log.add(TransactionJournal.Entry.of(senders[i].accountNumber, TransactionRecord.Type.TRANSFER_OUT, amounts[i], receivers[i].number, now));
+                log.add(TransactionJournal.Entry.of(receivers[i].accountNumber, TransactionRecord.Type.TRANSFER_IN, amounts[i], senders[i].number, now));
+            }
+        }
+        atm.store().saveAll(changed);
+        atm.journal().appendAll(log);
+        
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(resultFile)))) {
+            for (int i = 0; i < n; i++) {
+                out.println((i + 1) + "," + lines.get(i) + "," + (malformed[i] != null ? malformed[i] : results[i].name()));
+            }
+        }
+        long t3 = System.nanoTime();
+        
+        System.out.printf("%d instructions, %d succeeded, %d rejected, %d waves%n", n, succeeded, n - succeeded, waves);
+        System.out.printf("parse+schedule %d ms, apply %d ms, commit %d ms, total %d ms (%.0f instructions/s)%n",
+                (t1 - t0) / 1000000, (t2 - t1) / 1000000, (t3 - t2) / 1000000, (t3 - t0) / 1000000, n * 1e9 / (t3 - t0));
+    }
+    
+    // Writes n random transfers between the ATM's existing accounts
+    public static void generate(ATM atm, String file, int n) throws IOException {
+        List<Account> all = new ArrayList<>(atm.allAccounts());
+        Random random = new Random(42);
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (int i = 0; i < n; i++) {
+                Account from = all.get(random.nextInt(all.size()));
+                Account to = all.get(random.nextInt(all.size()));
+                out.println(from.accountNumber + "," + to.accountNumber + "," + Money.format(1 + random.nextInt(50000)));
+            }
+        }
+    }
+}
+
+// Month-end reports over the transaction log: daily deposit, withdrawal and transfer
+// totals, the top accounts by volume and a statement file per active account. The sealed
+// segments' account tables are cut into slices that are scanned in parallel on the common
+// fork-join pool. Memory grows with the accounts and days in the period, not with the
+// number of records.
+class TransactionAnalytics extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final int SLICE = 2048;
+    private static final int STATEMENT_PAGE = 1024;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    
+    private final TransactionHistory history;
+    private final int segment;
+    private final int first;
+    private final int last;
+    private final long from;
+    private final long to;
+    // epoch day -> {deposits, withdrawals, transfers, records}
+    private final ConcurrentHashMap<Long, long[]> days;
+    // account -> {money in, money out, records}
+    private final ConcurrentHashMap<Long, long[]> volume;
+    
+    private TransactionAnalytics(TransactionHistory history, int segment, int first, int last, long from, long to,
+                                 ConcurrentHashMap<Long, long[]> days, ConcurrentHashMap<Long, long[]> volume) {
+        this.history = history;
+        this.segment = segment;
+        this.first = first;
+        this.last = last;
+        this.from = from;
+        this.to = to;
+        this.days = days;
+        this.volume = volume;
+    }
+    
+    @Override
+    protected void compute() {
+        if (last - first > SLICE) {
+            int mid = (first + last) >>> 1;
+            invokeAll(new TransactionAnalytics(history, segment, first, mid, from, to, days, volume),
+                    new TransactionAnalytics(history, segment, mid, last, from, to, days, volume));
+            return;
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        Map<Long, long[]> localDays = new HashMap<>();
+        Map<Long, long[]> localVolume = new HashMap<>();
+        try {
+            history.scan(segment, first, last, r -> {
+                if (r.epochSecond < from || r.epochSecond >= to || r.type == TransactionRecord.Type.NOTE) {
+                    return;
+                }
+                long[] day = localDays.computeIfAbsent(LocalDate.ofInstant(Instant.ofEpochSecond(r.epochSecond), zone).toEpochDay(), k -> new long[4]);
+                long[] account = localVolume.computeIfAbsent(r.account, k -> new long[3]);
+                switch (r.type) {
+                    case OPEN:
+                    case DEPOSIT:
+                        day[0] += r.amount;
+                        break;
+                    case WITHDRAWAL:
+                        day[1] += r.amount;
+                        break;
+                    case TRANSFER_OUT:
+                        day[2] += r.amount;
+                        break;
+                    default:
+                        break;
+                }
+                day[3]++;
+                account[r.type.signed(r.amount) >= 0 ? 0 : 1] += r.amount;
+                account[2]++;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        localDays.forEach((k, v) -> days.merge(k, v, TransactionAnalytics::add));
+        localVolume.forEach((k, v) -> volume.merge(k, v, TransactionAnalytics::add));
+    }
+    
+    private static long[] add(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] += b[i];
+        }
+        return a;
+    }
+    
+    // Prints the report for the dates start..end inclusive and, if statements is not null,
+    // writes statement-<account>.txt there for every account with activity in the period
+    public static void report(TransactionHistory history, LocalDate start, LocalDate end, int top, Path statements) throws IOException {
+        ZoneId zone = ZoneId.systemDefault();
+        long from = start.atStartOfDay(zone).toEpochSecond();
+        long to = end.plusDays(1).atStartOfDay(zone).toEpochSecond();
+        ConcurrentHashMap<Long, long[]> days = new ConcurrentHashMap<>();
+        ConcurrentHashMap<Long, long[]> volume = new ConcurrentHashMap<>();
+        
+        long t0 = System.nanoTime();
+        Map<Integer, Integer> segments = history.beginScan();
+        try {
+            List<TransactionAnalytics> tasks = new ArrayList<>();
+            segments.forEach((id, accounts) -> tasks.add(new TransactionAnalytics(history, id, 0, accounts, from, to, days, volume)));
+            ForkJoinTask.invokeAll(tasks);
+        } finally {
+            history.endScan();
+        }
+        long t1 = System.nanoTime();
+        
+        long records = 0;
+        System.out.printf("%-10s %14s %14s %14s %10s%n", "date", "deposits", "withdrawals", "transfers", "records");
+        for (Map.Entry<Long, long[]> e : new TreeMap<>(days).entrySet()) {
+            long[] d = e.getValue();
+            records += d[3];
+            System.out.printf("%-10s %14s %14s %14s %10d%n", LocalDate.ofEpochDay(e.getKey()),
+                    Money.format(d[0]), Money.format(d[1]), Money.format(d[2]), d[3]);
+        }
+        System.out.printf("%d records for %d accounts in %d segments, scanned in %d ms with %d threads%n", records, volume.size(),
+                segments.size(), (t1 - t0) / 1000000, ForkJoinPool.getCommonPoolParallelism());
+        
+        PriorityQueue<Map.Entry<Long, long[]>> heap = new PriorityQueue<>(
+                Comparator.comparingLong((Map.Entry<Long, long[]> e) -> e.getValue()[0] + e.getValue()[1]));
+        for (Map.Entry<Long, long[]> e : volume.entrySet()) {
+            heap.add(e);
+            if (heap.size() > top) {
+                heap.poll();
+            }
+        }
+        List<Map.Entry<Long, long[]>> ranked = new ArrayList<>(heap);
+        ranked.sort(heap.comparator().reversed());
+        System.out.printf("Top %d accounts by volume%n%-10s %14s %14s %10s%n", top, "account", "in", "out", "records");
+        for (Map.Entry<Long, long[]> e : ranked) {
+            long[] v = e.getValue();
+            System.out.printf("%-10d %14s %14s %10d%n", e.getKey(), Money.format(v[0]), Money.format(v[1]), v[2]);
+        }
+        
+        if (statements != null) {
+            Files.createDirectories(statements);
+            try {
+                volume.keySet().parallelStream().forEach(account -> {
+                    try {
+                        statement(history, String.valueOf(account), start, end, from, to, statements);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            System.out.printf("Wrote %d statements to %s in %d ms%n", volume.size(), statements, (System.nanoTime() - t1) / 1000000);
+        }
+    }
+    
+    // Opening balance is the sum of the account's typed records before the period, so it
+    // only matches the account's real balance if its whole history is in the log
+    private static void statement(TransactionHistory history, String accountNumber, LocalDate start, LocalDate end,
+                                  long from, long to, Path dir) throws IOException {
+        long total = history.count(accountNumber);
+        long balance = 0;
+        boolean opened = false;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(dir.resolve("statement-" + accountNumber + ".txt")))) {
+            out.println("Statement for account " + accountNumber + ", " + start + " to " + end);
+            pages:
+            for (long i = 0; i < total; i += STATEMENT_PAGE) {
+                for (TransactionRecord r : history.records(accountNumber, i, i + STATEMENT_PAGE)) {
+                    if (r.epochSecond >= to) {
+                        break pages;
+                    }
+                    if (r.epochSecond >= from && !opened) {
+                        out.println("Opening balance: " + Money.format(balance));
+                        opened = true;
+                    }
+                    balance += r.type.signed(r.amount);
+                    if (opened) {
+                        String time = LocalDateTime.ofInstant(Instant.ofEpochSecond(r.epochSecond), ZoneId.systemDefault()).format(TIME);
+                        out.printf("%s %-12s %12s  %s%n", time, r.type, Money.format(r.type.signed(r.amount)), r.text);
+                    }
+                }
+            }
+            if (!opened) {
+                out.println("Opening balance: " + Money.format(balance));
+            }
+            out.println("Closing balance: " + Money.format(balance));
+        }
+    }
+}
+
+// Line-based TCP front end for an ATM, one thread per connection (virtual threads when the
+// JVM has them). Requests and replies are single lines; HISTORY replies "OK <n>" followed
+// by n lines.
+//   CREATE <pin> <amount> <name>    -> OK <accountNumber>
+//   LOGIN <accountNumber> <pin>     -> OK <name>
+//   DEPOSIT <amount> [key] | WITHDRAW <amount> [key] | BALANCE | HISTORY [n]
+//   TRANSFER <accountNumber> <amount> [key]
+//   LOGOUT | QUIT
+// A client that retries a DEPOSIT, WITHDRAW or TRANSFER with the same idempotency key gets
+// the first attempt's reply without the money moving again.
+class ATMServer {
+    private final ATM atm;
+    private final int port;
+    private final AtomicInteger sessions = new AtomicInteger();
+    // Set when this server is a cluster shard; adds PEER and, once a connection has sent the
+    // cluster secret with it, the PREPARE/COMMIT/ABORT/TOTAL commands
+    private final ShardParticipant participant;
+    private static final Set<String> PEER_COMMANDS = new HashSet<>(Arrays.asList("PREPARE", "COMMIT", "ABORT", "TOTAL"));
+    private final TraceRecorder trace = TraceRecorder.fromSystemProperties();
+    
+    public ATMServer(ATM atm, int port) {
+        this(atm, port, null);
+    }
+    
+    public ATMServer(ATM atm, int port, ShardParticipant participant) {
+        this.atm = atm;
+        this.port = port;
+        this.participant = participant;
+    }
+    
+    // Executors.newVirtualThreadPerTaskExecutor() on JDK 21+, a cached pool otherwise
+    static ExecutorService perTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
+    public void serve() throws IOException {
+        ExecutorService executor = perTaskExecutor();
+        try (ServerSocket server = new ServerSocket()) {
+            server.setReuseAddress(true);
+            // A shard is only reached through its router, which runs on the same host
+            server.bind(participant != null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port) : new InetSocketAddress(port), 4096);
+            System.out.println("ATM server listening on port " + server.getLocalPort());
+            while (true) {
+                Socket socket = server.accept();
+                Session session = new Session(socket, executor);
+                executor.execute(session::start);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    // One connection, read and answered by a task on the server's executor. A LOGIN whose
+    // PIN has to be checked against its hash ends that task; the check's completion sends
+    // the reply and starts a new task that carries on reading, so no session thread waits
+    // on the verifier pool. Only one task at a time ever touches a session.
+    private final class Session {
+        private final Socket socket;
+        private final Executor executor;
+        private final int traceSession = trace != null ? trace.session() : 0;
+        private BufferedReader in;
+        private PrintWriter out;
+        private Account acc;
+        private boolean peer;
+        
+        Session(Socket socket, Executor executor) {
+            this.socket = socket;
+            this.executor = executor;
+        }
+        
+        void start() {
+            sessions.incrementAndGet();
+            try {
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            resume();
+        }
+        
+        // Serves commands until the connection ends or a login has to wait for its check
+        private void resume() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.trim().split(" ", 2);
+                    String command = parts[0].toUpperCase();
+                    String rest = parts.length > 1 ? parts[1].trim() : "";
+                    if (command.equals("QUIT")) {
+                        out.println("OK bye");
+                        out.flush();
+                        break;
+                    }
+                    if (participant != null && command.equals("PEER")) {
+                        peer = participant.admits(rest);
+                        out.println(peer ? "OK" : "ERR not authorized");
+                        out.flush();
+                        continue;
+                    }
+                    if (participant != null && PEER_COMMANDS.contains(command) && !peer) {
+                        out.println("ERR not authorized");
+                        out.flush();
+                        continue;
+                    }
+                    if (command.equals("LOGIN")) {
+                        CompletableFuture<Account> login;
+                        try {
+                            String[] args = rest.split(" ");
+                            login = atm.authenticateAsync(args[0], Integer.parseInt(args[1]));
+                        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                            out.println("ERR bad arguments");
+                            out.flush();
+                            continue;
+                        }
+                        if (!login.isDone()) {
+                            login.whenComplete((found, e) -> carryOn(() -> loggedIn(rest, found, e)));
+                            return;
+                        }
+                        loggedIn(rest, login.getNow(null), null);
+                        continue;
+                    }
+                    try {
+                        acc = handle(command, rest, acc, out, traceSession);
+                        if (trace != null && !command.equals("CREATE")) {
+                            trace.record(traceSession, command, rest.isEmpty() ? new String[0] : rest.split(" "), acc);
+                        }
+                    } catch (NumberFormatException | ArithmeticException | ArrayIndexOutOfBoundsException e) {
+                        out.println("ERR bad arguments");
+                    } catch (IOException e) {
+                        out.println("ERR " + e.getMessage());
+                    } catch (UncheckedIOException e) {
+                        // the store could not save the change, which was not made
+                        System.out.println(e.getMessage() + ": " + e.getCause());
+                        out.println("ERR storage unavailable");
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // connection dropped
+            }
+            close();
+        }
+        
+        // Runs step and then the rest of the session as a new task
+        private void carryOn(Runnable step) {
+            try {
+                executor.execute(() -> {
+                    step.run();
+                    resume();
+                });
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+        
+        private void loggedIn(String rest, Account found, Throwable failure) {
+            acc = found;
+            out.println(found != null ? "OK " + found.name : failure != null ? "ERR login failed" : "ERR Invalid credentials");
+            out.flush();
+            if (trace != null) {
+                trace.record(traceSession, "LOGIN", rest.split(" "), acc);
+            }
+        }
+        
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+            sessions.decrementAndGet();
+        }
+    }
+    
+    // Returns the account logged in after the command
+    private Account handle(String command, String rest, Account acc, PrintWriter out, int traceSession) throws IOException {
+        String[] args = rest.isEmpty() ? new String[0] : rest.split(" ");
+        if (participant != null) {
+            switch (command) {
+                case "PREPARE": {
+                    long delta = Long.parseLong(args[2]);
+                    String extra = args.length > 4 ? args[4] : null;
+                    out.println(delta < 0 ? participant.prepareDebit(args[0], args[1], -delta, args[3], extra)
+                            : participant.prepareCredit(args[0], args[1], delta, args[3], extra));
+                    return acc;
+                }
+                case "COMMIT":
+                    out.println(participant.commit(args[0]));
+                    return acc;
+                case "ABORT":
+                    out.println(participant.abort(args[0]));
+                    return acc;
+                case "TOTAL":
+                    out.println(participant.total());
+                    return acc;
+            }
+        }
+        switch (command) {
+            case "CREATE": {
+                String[] fields = rest.split(" ", 3);
+                if (!ATM.validName(fields[2])) {
+                    out.println("ERR Names cannot contain commas.");
+                    return acc;
+                }
+                Account created = atm.openAccount(fields[2], Integer.parseInt(fields[0]), Money.parse(fields[1]));
+                out.println("OK " + created.accountNumber);
+                if (trace != null) {
+                    trace.created(traceSession, created, Money.parse(fields[1]));
+                }
+                return acc;
+            }
+            case "LOGOUT":
+                out.println("OK");
+                return null;
+        }
+        
+        if (acc == null) {
+            out.println("ERR not logged in");
+            return null;
+        }
+        switch (command) {
+            case "DEPOSIT": {
+                long amount = Money.parse(args[0]);
+                if (amount <= 0) {
+                    out.println("ERR invalid amount");
+                } else if (atm.deposit(acc, amount, args.length > 1 ? args[1] : null) == TransferResult.INVALID_KEY) {
+                    out.println("ERR " + TransferResult.INVALID_KEY.message);
+                } else {
+                    out.println("OK " + Money.format(acc.snapshot().balance));
+                }
+                break;
+            }
+            case "WITHDRAW": {
+                TransferResult result = atm.withdraw(acc, Money.parse(args[0]), args.length > 1 ? args[1] : null);
+                if (result == TransferResult.SUCCESS) {
+                    out.println("OK " + Money.format(acc.snapshot().balance));
+                } else if (result == TransferResult.INVALID_KEY) {
+                    out.println("ERR " + result.message);
+                } else {
+                    out.println("ERR Insufficient balance or invalid amount.");
+                }
+                break;
+            }
+            case "BALANCE":
+                out.println("OK " + Money.format(acc.snapshot().balance));
+                break;
+            case "HISTORY": {
+                List<String> lines = atm.history().last(acc.accountNumber, args.length > 0 ? Integer.parseInt(args[0]) : 10);
+                out.println("OK " + lines.size());
+                for (String l : lines) {
+                    out.println(l);
+                }
+                break;
+            }
+            case "TRANSFER": {
+                TransferResult result = atm.transfer(acc, args[0], Money.parse(args[1]), args.length > 2 ? args[2] : null);
+                out.println((result == TransferResult.SUCCESS ? "OK " : "ERR ") + result.message);
+                break;
+            }
+            default:
+                out.println("ERR unknown command");
+        }
+        return acc;
+    }
+}
+
+// Opens many concurrent sessions against an ATMServer, each creating an account and then
+// running a deposit / withdraw / balance / transfer / history mix, and reports throughput
+class ATMLoadClient {
+    // Returns requests per second
+    public static double run(String host, int port, int sessions, int opsPerSession) throws Exception {
+        ExecutorService executor = ATMServer.perTaskExecutor();
+        AtomicLong requests = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong totalLatency = new AtomicLong();
+        AtomicLong maxLatency = new AtomicLong();
+        String[] sink = new String[1];
+        
+        // One shared receiver for all transfers
+        try (Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            out.println("CREATE 1234 0 Load Sink");
+            sink[0] = in.readLine().substring(3);
+        }
+        
+        CountDownLatch done = new CountDownLatch(sessions);
+        long started = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            final int id = i;
+            executor.execute(() -> {
+                try (Socket socket = new Socket(host, port);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                     PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+                    String accountNumber = call(in, out, "CREATE 1234 1000 Load " + id, requests, errors, totalLatency, maxLatency).substring(3);
+                    call(in, out, "LOGIN " + accountNumber + " 1234", requests, errors, totalLatency, maxLatency);
+                    for (int op = 0; op < opsPerSession; op++) {
+                        switch (op % 5) {
+                            case 0: call(in, out, "DEPOSIT 10", requests, errors, totalLatency, maxLatency); break;
+                            case 1: call(in, out, "WITHDRAW 5", requests, errors, totalLatency, maxLatency); break;
+                            case 2: call(in, out, "BALANCE", requests, errors, totalLatency, maxLatency); break;
+                            case 3: call(in, out, "TRANSFER " + sink[0] + " 1", requests, errors, totalLatency, maxLatency); break;
+                            default:
+                                String reply = call(in, out, "HISTORY 3", requests, errors, totalLatency, maxLatency);
+                                for (int n = Integer.parseInt(reply.substring(3)); n > 0; n--) {
+                                    in.readLine();
+                                }
+                        }
+                    }
+                    out.println("QUIT");
+                    in.readLine();
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        executor.shutdown();
+        double seconds = (System.nanoTime() - started) / 1e9;
+        long n = requests.get();
+        System.out.printf("%d sessions, %d requests, %d errors in %.2f s: %.0f requests/s, avg %.3f ms, max %.3f ms%n",
+                sessions, n, errors.get(), seconds, n / seconds, n == 0 ? 0.0 : totalLatency.get() / 1e6 / n, maxLatency.get() / 1e6);
+        return n / seconds;
+    }
+    
+    private static String call(BufferedReader in, PrintWriter out, String request, AtomicLong requests, AtomicLong errors,
+                               AtomicLong totalLatency, AtomicLong maxLatency) throws IOException {
+        long start = System.nanoTime();
+        out.println(request);
+        String reply = in.readLine();
+        long latency = System.nanoTime() - start;
+        requests.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        maxLatency.accumulateAndGet(latency, Math::max);
+        if (reply == null) {
+            throw new EOFException("server closed the connection");
+        }
+        if (!reply.startsWith("OK")) {
+            errors.incrementAndGet();
+        }
+        return reply;
+    }
+}
+
+// Fixture for the JMH benchmarks in src/jmh (BankBenchmarks). JMH cannot generate code for
+// classes in the unnamed package, and named packages cannot refer to it, so the benchmarks
+// create this reflectively and get each hot path as a Callable from operations(); the
+// measured calls are plain interface calls. A fixture holds an ATM over n synthetic
+// accounts in a temporary directory. The journal runs in ASYNC mode and PINs are hashed
+// with 1000 iterations unless -Dbank.journal and -Dbank.pin.iterations say otherwise, so
+// account creation and the journal's fsyncs do not drown out everything else.
+class BankBenchmark implements Closeable {
+    private final Path dir;
+    private final Path loadDir;
+    private final ATM atm;
+    private final Account[] all;
+    private final int n;
+    private final Random random = new Random(1);
+    
+    BankBenchmark(int n) throws IOException {
+        if (System.getProperty("bank.journal") == null) {
+            System.setProperty("bank.journal", "async");
+        }
+        if (System.getProperty("bank.pin.iterations") == null) {
+            System.setProperty("bank.pin.iterations", "1000");
+        }
+        this.n = n;
+        dir = Files.createTempDirectory("bank-bench");
+        ParallelCsvLoader.writeSynthetic(dir, n);
+        // loadUsers opens its own ATMs on a copy, never on the directory atm is using
+        loadDir = Files.createTempDirectory("bank-bench-load");
+        copyTree(dir, loadDir);
+        atm = quietly(() -> new ATM(dir.toString()));
+        all = atm.allAccounts().toArray(new Account[0]);
+    }
+    
+    Map<String, Callable<Object>> operations() {
+        Map<String, Callable<Object>> operations = new LinkedHashMap<>();
+        operations.put("ATM.loadUsers", () -> {
+            ATM loaded = quietly(() -> new ATM(loadDir.toString()));
+            loaded.close();
+            return loaded;
+        });
+        operations.put("ATM.login", () -> {
+            int k = random.nextInt(n);
+            return atm.authenticate(String.valueOf(1000000000L + k), 1000 + k % 9000);
+        });
+        operations.put("ATM.transferMoney", () -> atm.transfer(all[random.nextInt(n)], all[random.nextInt(n)].accountNumber, 1));
+        operations.put("Account.saveUserDetails", () -> {
+            Account acc = all[random.nextInt(n)];
+            acc.saveUserDetails();
+            return acc;
+        });
+        operations.put("Account.logTransaction", () -> {
+            Account acc = all[random.nextInt(n)];
+            acc.logTransaction("Deposited 1.00");
+            return acc;
+        });
+        operations.put("ATM.createAccount", () -> atm.openAccount("Bench", 1234, 100));
+        return operations;
+    }
+    
+    public void close() throws IOException {
+        atm.close();
+        deleteTree(loadDir);
+        deleteTree(dir);
+    }
+    
+    // ATM prints on start; keep it out of the benchmark output
+    private static <T> T quietly(Callable<T> task) throws IOException {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            return task.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            System.setOut(console);
+        }
+    }
+    
+    private static void copyTree(Path from, Path to) throws IOException {
+        try (java.util.stream.Stream<Path> paths = Files.walk(from)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                Path target = to.resolve(from.relativize(p).toString());
+                if (Files.isDirectory(p)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(p, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+    
+    private static void deleteTree(Path root) throws IOException {
+        try (java.util.stream.Stream<Path> paths = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
+
+// Anonymized request trace of an ATMServer, enabled with -Dbank.trace=<file>, in the
+// format Workload replays. Account numbers become aliases (@0, @1, ... in order of first
+// appearance), PINs and idempotency keys are dropped, and a failed login is marked "bad".
+class TraceRecorder implements Closeable {
+    private final PrintWriter out;
+    private final long started = System.nanoTime();
+    private final ConcurrentHashMap<String, Integer> aliases = new ConcurrentHashMap<>();
+    private final AtomicInteger nextAlias = new AtomicInteger();
+    private final AtomicInteger nextSession = new AtomicInteger();
+    
+    TraceRecorder(Path file) throws IOException {
+        out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+        out.println("# BankAccountPro trace");
+    }
+    
+    // Null unless bank.trace is set; the trace is closed when the JVM exits
+    static TraceRecorder fromSystemProperties() {
+        String file = System.getProperty("bank.trace");
+        if (file == null) {
+            return null;
+        }
+        try {
+            TraceRecorder recorder = new TraceRecorder(Paths.get(file));
+            Runtime.getRuntime().addShutdownHook(new Thread(recorder::close));
+            return recorder;
+        } catch (IOException e) {
+            System.out.println("Cannot write trace " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    int session() {
+        return nextSession.incrementAndGet();
+    }
+    
+    private String alias(String accountNumber) {
+        return "@" + aliases.computeIfAbsent(accountNumber, n -> nextAlias.getAndIncrement());
+    }
+    
+    void created(int session, Account acc, long balance) {
+        write(session, "CREATE " + alias(acc.accountNumber) + " " + Money.format(balance));
+    }
+    
+    // A request after it was handled; loggedIn is the session's account afterwards
+    void record(int session, String command, String[] args, Account loggedIn) {
+        switch (command) {
+            case "LOGIN":
+                write(session, "LOGIN " + alias(args[0]) + (loggedIn == null ? " bad" : ""));
+                break;
+            case "DEPOSIT":
+            case "WITHDRAW":
+                write(session, command + " " + args[0]);
+                break;
+            case "TRANSFER":
+                write(session, "TRANSFER " + alias(args[0]) + " " + args[1]);
+                break;
+            case "HISTORY":
+                write(session, args.length > 0 ? "HISTORY " + args[0] : "HISTORY");
+                break;
+            case "BALANCE":
+            case "LOGOUT":
+                write(session, command);
+                break;
+        }
+    }
+    
+    private synchronized void write(int session, String request) {
+        out.println(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " s" + session + " " + request);
+    }
+    
+    public synchronized void close() {
+        out.close();
+    }
+}
+
+// Generates and replays session scripts against an in-process ATM. A script is text, one
+// request per line:
+//   <millis> <session> <request>
+// with requests in the ATMServer protocol, except that accounts are aliases (@<n>) and no
+// PINs are given:
+//   CREATE @n <balance>, LOGIN @n [bad], LOGOUT, DEPOSIT <amount>, WITHDRAW <amount>,
+//   BALANCE, HISTORY [n], TRANSFER @n <amount>
+// Lines are in time order, and the requests of one session run in order. Aliases that are
+// used but never created are opened before the replay starts, with the balance from an
+// optional "ACCOUNTS <n> <balance>" line (1000.00 otherwise). TraceRecorder writes
+// production traces in this format.
+class Workload {
+    private static final String[] OPS = { "create", "deposit", "withdraw", "balance", "transfer", "history" };
+    
+    private static class Request {
+        final long millis;
+        final String session;
+        final String command;
+        final String[] args;
+        
+        Request(long millis, String session, String command, String[] args) {
+            this.millis = millis;
+            this.session = session;
+            this.command = command;
+            this.args = args;
+        }
+    }
+    
+    // Session mix as op:weight pairs (bank.workload.mix); create is the share of sessions
+    // that open a new account instead of logging in to an existing one
+    private static Map<String, Integer> mix() {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String pair : System.getProperty("bank.workload.mix", "create:5,deposit:25,withdraw:20,balance:25,transfer:20,history:10").split(",")) {
+            String[] kv = pair.split(":");
+            if (!Arrays.asList(OPS).contains(kv[0])) {
+                throw new IllegalArgumentException("unknown operation " + kv[0] + " in bank.workload.mix");
+            }
+            mix.put(kv[0], Integer.parseInt(kv[1]));
+        }
+        return mix;
+    }
+    
+    // Zipf-distributed account choice: rank k is picked with weight 1 / (k + 1)^skew, so
+    // skew 0 is uniform and skew 1 sends most traffic to a few hot accounts
+    private static class Zipf {
+        private final double[] cdf;
+        
+        Zipf(int n, double skew) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, skew);
+                cdf[k] = sum;
+            }
+            for (int k = 0; k < n; k++) {
+                cdf[k] /= sum;
+            }
+        }
+        
+        int next(Random random) {
+            int i = Arrays.binarySearch(cdf, random.nextDouble());
+            return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+        }
+    }
+    
+    // Sessions start evenly spread so that the whole script runs at about rate requests
+    // per second, with bank.workload.think milliseconds between requests of a session;
+    // rate 0 leaves every time at 0 for an unpaced replay.
+    static List<String> generate(int sessions, int opsPerSession, int accounts, double skew, double rate, long seed) {
+        Map<String, Integer> mix = mix();
+        int creates = mix.getOrDefault("create", 0);
+        int weights = 0;
+        for (Map.Entry<String, Integer> e : mix.entrySet()) {
+            weights += e.getKey().equals("create") ? 0 : e.getValue();
+        }
+        long think = Long.getLong("bank.workload.think", 10);
+        double spacing = rate > 0 ? (opsPerSession + 2) * 1000.0 / rate : 0;
+        Random random = new Random(seed);
+        Zipf zipf = new Zipf(accounts, skew);
+        int nextAlias = accounts;
+        
+        List<long[]> order = new ArrayList<>();
+        List<String> requests = new ArrayList<>();
+        for (int s = 0; s < sessions; s++) {
+            List<String> session = new ArrayList<>();
+            if (random.nextInt(100) < creates) {
+                session.add("CREATE @" + nextAlias++ + " " + Money.format(100 * (1 + random.nextInt(2000))));
+            } else {
+                session.add("LOGIN @" + zipf.next(random));
+            }
+            for (int i = 0; i < opsPerSession; i++) {
+                int pick = random.nextInt(Math.max(weights, 1));
+                String op = "balance";
+                for (Map.Entry<String, Integer> e : mix.entrySet()) {
+                    if (e.getKey().equals("create")) {
+                        continue;
+                    }
+                    if (pick < e.getValue()) {
+                        op = e.getKey();
+                        break;
+                    }
+                    pick -= e.getValue();
+                }
+                switch (op) {
+                    case "deposit":
+                        session.add("DEPOSIT " + Money.format(1 + random.nextInt(20000)));
+                        break;
+                    case "withdraw":
+                        session.add("WITHDRAW " + Money.format(1 + random.nextInt(20000)));
+                        break;
+                    case "transfer":
+                        session.add("TRANSFER @" + zipf.next(random) + " " + Money.format(1 + random.nextInt(5000)));
+                        break;
+                    case "history":
+                        session.add("HISTORY 10");
+                        break;
+                    default:
+                        session.add("BALANCE");
+                }
+            }
+            session.add("LOGOUT");
+            long start = (long) (s * spacing);
+            for (int i = 0; i < session.size(); i++) {
+                long millis = rate > 0 ? start + i * think : 0;
+                order.add(new long[] { millis, requests.size() });
+                requests.add(millis + " s" + s + " " + session.get(i));
+            }
+        }
+        order.sort(Comparator.comparingLong((long[] o) -> o[0]).thenComparingLong(o -> o[1]));
+        List<String> lines = new ArrayList<>(requests.size() + 2);
+        lines.add("# sessions " + sessions + ", " + opsPerSession + " ops each, skew " + skew + ", mix " + mix);
+        lines.add("ACCOUNTS " + accounts + " 1000.00");
+        for (long[] o : order) {
+            lines.add(requests.get((int) o[1]));
+        }
+        return lines;
+    }
+    
+    // Replays the script on threads workers (each session stays on one worker) against an
+    // ATM in directory. With speed > 0 requests are sent at their script time divided by
+    // speed, and latency is measured from that time, so a stalled ATM shows up as latency
+    // instead of as fewer requests; speed 0 sends each worker's requests back to back.
+    static void replay(List<String> lines, int threads, double speed, String directory) throws Exception {
+        long defaultBalance = 100000;
+        List<Request> requests = new ArrayList<>();
+        Set<Integer> used = new TreeSet<>();
+        Set<Integer> created = new HashSet<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] f = line.split(" ");
+            if (f[0].equals("ACCOUNTS")) {
+                for (int i = 0; i < Integer.parseInt(f[1]); i++) {
+                    used.add(i);
+                }
+                defaultBalance = Money.parse(f[2]);
+                continue;
+            }
+            Request r = new Request(Long.parseLong(f[0]), f[1], f[2].toUpperCase(), Arrays.copyOfRange(f, 3, f.length));
+            if (r.args.length > 0 && r.args[0].startsWith("@")) {
+                int alias = Integer.parseInt(r.args[0].substring(1));
+                (r.command.equals("CREATE") ? created : used).add(alias);
+            }
+            requests.add(r);
+        }
+        used.removeAll(created);
+        
+        if (System.getProperty("bank.pin.iterations") == null) {
+            System.setProperty("bank.pin.iterations", "1000");
+        }
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ATM atm;
+        try {
+            atm = new ATM(directory);
+        } finally {
+            System.setOut(console);
+        }
+        ConcurrentHashMap<Integer, Account> accounts = new ConcurrentHashMap<>();
+        for (int alias : used) {
+            accounts.put(alias, atm.openAccount("Replay " + alias, 1234, defaultBalance));
+        }
+        
+        List<List<Request>> perWorker = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            perWorker.add(new ArrayList<>());
+        }
+        for (Request r : requests) {
+            perWorker.get(Math.floorMod(r.session.hashCode(), threads)).add(r);
+        }
+        Map<String, LatencyHistogram> latency = new TreeMap<>();
+        Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+        for (String op : new String[] { "CREATE", "LOGIN", "LOGOUT", "DEPOSIT", "WITHDRAW", "BALANCE", "HISTORY", "TRANSFER" }) {
+            latency.put(op, new LatencyHistogram());
+            errors.put(op, new LongAdder());
+        }
+        LatencyHistogram all = new LatencyHistogram();
+        
+        System.out.printf("Replaying %d requests on %d threads (%d accounts opened first)%n", requests.size(), threads, used.size());
+        long began = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            List<Request> mine = perWorker.get(t);
+            workers[t] = new Thread(() -> {
+                Map<String, Account> sessions = new HashMap<>();
+                for (Request r : mine) {
+                    long start = System.nanoTime();
+                    if (speed > 0) {
+                        long due = began + (long) (TimeUnit.MILLISECONDS.toNanos(r.millis) / speed);
+                        while ((start = System.nanoTime()) < due) {
+                            LockSupport.parkNanos(due - start);
+                        }
+                        start = due;
+                    }
+                    boolean ok;
+                    try {
+                        ok = execute(atm, accounts, sessions, r);
+                    } catch (RuntimeException | IOException e) {
+                        ok = false;
+                    }
+                    long nanos = System.nanoTime() - start;
+                    LatencyHistogram h = latency.get(r.command);
+                    if (h != null) {
+                        h.record(nanos);
+                        if (!ok) {
+                            errors.get(r.command).increment();
+                        }
+                    }
+                    all.record(nanos);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        double seconds = (System.nanoTime() - began) / 1e9;
+        atm.close();
+        
+        System.out.printf("%-10s %10s %8s %10s %10s %10s %10s%n", "request", "count", "errors", "p50 us", "p99 us", "p999 us", "max us");
+        for (Map.Entry<String, LatencyHistogram> e : latency.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            if (h.count() > 0) {
+                System.out.printf("%-10s %10d %8d %10.1f %10.1f %10.1f %10.1f%n", e.getKey(), h.count(), errors.get(e.getKey()).sum(),
+                        h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3, h.max() / 1e3);
+            }
+        }
+        System.out.printf("%-10s %10d %8s %10.1f %10.1f %10.1f %10.1f%n", "all", all.count(), "",
+                all.percentile(0.5) / 1e3, all.percentile(0.99) / 1e3, all.percentile(0.999) / 1e3, all.max() / 1e3);
+        System.out.printf("%.2f s, %.0f requests/s%n", seconds, all.count() / seconds);
+    }
+    
+    // Runs one request for its session; false if the ATM refused it
+    private static boolean execute(ATM atm, Map<Integer, Account> accounts, Map<String, Account> sessions, Request r) throws IOException {
+        Account acc = sessions.get(r.session);
+        switch (r.command) {
+            case "CREATE": {
+                Account opened = atm.openAccount("Replay " + r.args[0], 1234, Money.parse(r.args[1]));
+                accounts.put(alias(r.args[0]), opened);
+                sessions.put(r.session, opened);
+                return true;
+            }
+            case "LOGIN": {
+                Account target = accounts.get(alias(r.args[0]));
+                Account found = target == null ? null
+                        : atm.authenticate(target.accountNumber, r.args.length > 1 && r.args[1].equals("bad") ? 0 : 1234);
+                if (found == null) {
+                    sessions.remove(r.session);
+                    return r.args.length > 1;
+                }
+                sessions.put(r.session, found);
+                return true;
+            }
+            case "LOGOUT":
+                return sessions.remove(r.session) != null;
+        }
+        if (acc == null) {
+            return false;
+        }
+        switch (r.command) {
+            case "DEPOSIT":
+                return atm.deposit(acc, Money.parse(r.args[0]), null) == TransferResult.SUCCESS;
+            case "WITHDRAW":
+                return atm.withdraw(acc, Money.parse(r.args[0]), null) == TransferResult.SUCCESS;
+            case "BALANCE":
+                return acc.snapshot() != null;
+            case "HISTORY":
+                atm.history().last(acc.accountNumber, r.args.length > 0 ? Integer.parseInt(r.args[0]) : 10);
+                return true;
+            case "TRANSFER": {
+                Account receiver = accounts.get(alias(r.args[0]));
+                return receiver != null && atm.transfer(acc, receiver.accountNumber, Money.parse(r.args[1])) == TransferResult.SUCCESS;
+            }
+            default:
+                return false;
+        }
+    }
+    
+    private static int alias(String arg) {
+        return Integer.parseInt(arg.substring(1));
+    }
+}
+
+// Consistent hashing of account numbers onto shards: every shard owns VNODES points on a
+// ring of 64-bit hashes and an account belongs to the first point at or after its hash.
+// Going from n to n + 1 shards moves about 1/(n + 1) of the accounts.
+class ShardRing {
+    private static final int VNODES = 128;
+    private final long[] points;
+    private final int[] owners;
+    
+    ShardRing(int shards) {
+        long[][] pairs = new long[shards * VNODES][];
+        for (int shard = 0; shard < shards; shard++) {
+            for (int v = 0; v < VNODES; v++) {
+                pairs[shard * VNODES + v] = new long[] { mix(((long) shard << 32) | v), shard };
+            }
+        }
+        Arrays.sort(pairs, Comparator.comparingLong(p -> p[0]));
+        points = new long[pairs.length];
+        owners = new int[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            points[i] = pairs[i][0];
+            owners[i] = (int) pairs[i][1];
+        }
+    }
+    
+    int shardFor(long account) {
+        int i = Arrays.binarySearch(points, mix(account));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+    
+    int shardFor(String accountNumber) {
+        return shardFor(Long.parseLong(accountNumber));
+    }
+    
+    // SplitMix64 finalizer
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+}
+
+// The secret a router and its shards share, from -Dbank.cluster.secret. A shard only takes
+// PREPARE, COMMIT, ABORT and TOTAL on a connection that has sent PEER <secret>, and only
+// prepares a credit with the proof (an HMAC of the transfer) that the sender's shard
+// returned for the matching debit.
+final class ClusterSecret {
+    private final String value;
+    private final SecretKeySpec key;
+    
+    ClusterSecret(String value) {
+        this.value = value;
+        this.key = new SecretKeySpec(value.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+    
+    static ClusterSecret fromSystemProperties() {
+        String value = System.getProperty("bank.cluster.secret");
+        if (value == null || value.isEmpty() || value.contains(" ")) {
+            throw new IllegalStateException("A cluster needs -Dbank.cluster.secret, the same on the router and every shard");
+        }
+        return new ClusterSecret(value);
+    }
+    
+    // A fresh random secret for clusters started by ShardCluster
+    static String generate() {
+        byte[] bytes = new byte[24];
+        new SecureRandom().nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+    
+    String value() {
+        return value;
+    }
+    
+    boolean matches(String candidate) {
+        return MessageDigest.isEqual(value.getBytes(StandardCharsets.UTF_8), candidate.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    String proof(String txid, String sender, String receiver, long amount) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            byte[] digest = mac.doFinal((txid + " " + sender + " " + receiver + " " + amount).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    boolean verify(String proof, String txid, String sender, String receiver, long amount) {
+        return proof != null && MessageDigest.isEqual(proof.getBytes(StandardCharsets.UTF_8),
+                proof(txid, sender, receiver, amount).getBytes(StandardCharsets.UTF_8));
+    }
+}
+
+// Participant side of cross-shard transfers on one shard. PREPARE of a debit holds the
+// money (Account.held) so nothing else can spend it, COMMIT applies the change and ABORT
+// releases the hold. Each step is written to the balance ledger in the same record as the
+// account it changes (BalanceLedger.saveTransfer), so a restarted shard knows exactly which
+// transfers it has prepared and which it has already applied. COMMIT or ABORT of a
+// transfer the shard does not have prepared is acknowledged without touching any account:
+// it was resolved before, or never prepared here. Aborts are remembered either way, and a
+// PREPARE of an aborted transfer is refused. The sender's idempotency key travels with
+// its PREPARE and is logged with the committed TRANSFER_OUT, as on a single node.
+//   PREPARE <txid> <sender> -<amount> <receiver> [key]   -> OK <proof> | NO <TransferResult>
+//   PREPARE <txid> <receiver> <amount> <sender> <proof>  -> OK | NO <TransferResult>
+class ShardParticipant {
+    private static class Prepared {
+        final Account account;
+        final long delta;
+        final long counterparty;
+        final String key;
+        
+        Prepared(Account account, long delta, long counterparty, String key) {
+            this.account = account;
+            this.delta = delta;
+            this.counterparty = counterparty;
+            this.key = key;
+        }
+    }
+    
+    private final ATM atm;
+    private final BalanceLedger ledger;
+    private final ClusterSecret secret;
+    private final ConcurrentHashMap<String, Prepared> prepared = new ConcurrentHashMap<>();
+    
+    ShardParticipant(ATM atm, ClusterSecret secret) {
+        if (!(atm.store() instanceof BalanceLedger)) {
+            throw new IllegalStateException("A shard needs the ledger store (-Dbank.store=ledger)");
+        }
+        this.atm = atm;
+        this.ledger = (BalanceLedger) atm.store();
+        this.secret = secret;
+        for (Map.Entry<String, String[]> e : ledger.prepared().entrySet()) {
+            Account acc = atm.find(e.getValue()[0]);
+            long delta = Long.parseLong(e.getValue()[1]);
+            if (delta < 0) {
+                acc.held -= delta;
+                SnapshotClock.INSTANCE.commit(acc);
+            }
+            prepared.put(e.getKey(), new Prepared(acc, delta, Long.parseLong(e.getValue()[2]),
+                    e.getValue().length > 3 ? e.getValue()[3] : null));
+        }
+        if (!prepared.isEmpty()) {
+            System.out.println(prepared.size() + " prepared transfers waiting for an outcome");
+        }
+    }
+    
+    boolean admits(String candidate) {
+        return secret.matches(candidate);
+    }
+    
+    // Holds amount on the sender and replies with the proof its credit will need
+    String prepareDebit(String txid, String sender, long amount, String receiver, String key) {
+        if (amount <= 0) {
+            return "NO " + TransferResult.INVALID_AMOUNT;
+        }
+        String reply = prepare(txid, sender, -amount, Long.parseLong(receiver), key);
+        return reply.equals("OK") ? "OK " + secret.proof(txid, sender, receiver, amount) : reply;
+    }
+    
+    String prepareCredit(String txid, String receiver, long amount, String sender, String proof) {
+        if (amount <= 0 || !secret.verify(proof, txid, sender, receiver, amount)) {
+            return "NO " + TransferResult.UNAVAILABLE;
+        }
+        return prepare(txid, receiver, amount, Long.parseLong(sender), null);
+    }
+    
+    // delta is negative for the sender's side; replies OK or NO <TransferResult>
+    private String prepare(String txid, String accountNumber, long delta, long counterparty, String key) {
+        Account acc = atm.find(accountNumber);
+        if (acc == null) {
+            return "NO " + (delta < 0 ? TransferResult.NO_SENDER : TransferResult.NO_RECEIVER);
+        }
+        acc.lock.lock();
+        try {
+            if (prepared.containsKey(txid)) {
+                return "OK";
+            }
+            if (delta < 0 && acc.balance - acc.held < -delta) {
+                return "NO " + TransferResult.INSUFFICIENT_BALANCE;
+            }
+            if (!ledger.saveTransfer(acc, txid, 'P', delta, counterparty, key)) {
+                return "NO " + TransferResult.UNAVAILABLE;
+            }
+            if (delta < 0) {
+                acc.held -= delta;
+            }
+            SnapshotClock.INSTANCE.commit(acc);
+            prepared.put(txid, new Prepared(acc, delta, counterparty, key));
+        } finally {
+            acc.lock.unlock();
+        }
+        return "OK";
+    }
+    
+    String commit(String txid) {
+        Prepared p = prepared.get(txid);
+        if (p == null) {
+            return "OK";
+        }
+        Account acc = p.account;
+        acc.lock.lock();
+        try {
+            if (!prepared.containsKey(txid)) {
+                return "OK";
+            }
+            // Still prepared until the outcome is written, so a failed write can be retried
+            acc.balance += p.delta;
+            if (p.delta < 0) {
+                acc.held += p.delta;
+            }
+            try {
+                ledger.saveTransfer(acc, txid, 'C', p.delta, p.counterparty, null);
+            } catch (UncheckedIOException e) {
+                acc.balance -= p.delta;
+                if (p.delta < 0) {
+                    acc.held -= p.delta;
+                }
+                throw e;
+            }
+            prepared.remove(txid);
+            SnapshotClock.INSTANCE.commit(acc);
+        } finally {
+            acc.lock.unlock();
+        }
+        acc.logTransaction(p.delta < 0 ? TransactionRecord.Type.TRANSFER_OUT : TransactionRecord.Type.TRANSFER_IN,
+                Math.abs(p.delta), p.counterparty, p.key);
+        return "OK";
+    }
+    
+    // An abort of a transfer not prepared here is remembered, so a PREPARE that arrives late
+    // (after the router gave up waiting for it) cannot hold the money afterwards
+    String abort(String txid) {
+        Prepared p = prepared.get(txid);
+        if (p == null) {
+            String holder = ledger.saveAbort(txid);
+            if (holder == null) {
+                return "OK";
+            }
+            // A PREPARE is finishing; it holds the account's lock until it is in prepared
+            Account acc = atm.find(holder);
+            acc.lock.lock();
+            acc.lock.unlock();
+            p = prepared.get(txid);
+            if (p == null) {
+                return "OK";
+            }
+        }
+        Account acc = p.account;
+        acc.lock.lock();
+        try {
+            if (!prepared.containsKey(txid)) {
+                return "OK";
+            }
+            if (p.delta < 0) {
+                acc.held += p.delta;
+            }
+            try {
+                ledger.saveTransfer(acc, txid, 'A', p.delta, p.counterparty, null);
+            } catch (UncheckedIOException e) {
+                if (p.delta < 0) {
+                    acc.held -= p.delta;
+                }
+                throw e;
+            }
+            prepared.remove(txid);
+            SnapshotClock.INSTANCE.commit(acc);
+        } finally {
+            acc.lock.unlock();
+        }
+        return "OK";
+    }
+    
+    // OK <sum of balances> <sum held> <accounts> <prepared transfers>
+    String total() {
+        long balance = 0;
+        long held = 0;
+        int accounts = 0;
+        for (AccountSnapshot s : SnapshotClock.INSTANCE.read(atm.allAccounts())) {
+            balance += s.balance;
+            held += s.held;
+            accounts++;
+        }
+        return "OK " + balance + " " + held + " " + accounts + " " + prepared.size();
+    }
+}
+
+// One client connection to a shard (or a router) speaking the ATMServer line protocol
+class ShardConnection implements Closeable {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+    
+    ShardConnection(InetSocketAddress address) throws IOException {
+        socket = new Socket();
+        try {
+            socket.connect(address, 2000);
+            socket.setSoTimeout(10000);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+    
+    // Sends one request and returns its reply, including the lines that follow "OK <n>" for HISTORY
+    List<String> call(String request) throws IOException {
+        out.println(request);
+        out.flush();
+        List<String> reply = new ArrayList<>(1);
+        String first = in.readLine();
+        if (first == null) {
+            throw new EOFException("connection closed");
+        }
+        reply.add(first);
+        if (request.regionMatches(true, 0, "HISTORY", 0, 7) && first.startsWith("OK ")) {
+            for (int n = Integer.parseInt(first.substring(3)); n > 0; n--) {
+                reply.add(in.readLine());
+            }
+        }
+        return reply;
+    }
+    
+    String ask(String request) throws IOException {
+        return call(request).get(0);
+    }
+    
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {}
+    }
+}
+
+// Front end of a sharded cluster. Clients speak the ATMServer protocol to the router, which
+// forwards each session's commands to the shard owning its account (ShardRing) and spreads
+// CREATE over the shards. A transfer between two shards is a two-phase commit with the
+// router as coordinator:
+//   BEGIN is logged, the sender's shard and then the receiver's shard PREPARE, the
+//   decision is logged, COMMIT or ABORT goes to both, and END is logged once both have
+//   acknowledged it.
+// The decision line in router.log is the commit point. On start the router aborts every
+// transfer that never reached a decision; a resolver re-sends decisions that a shard has not
+// acknowledged yet every RETRY_MILLIS, which is also how a restarted shard learns the
+// outcome of what it had prepared.
+// A transfer's idempotency key is logged with its BEGIN line. Recovery keeps the keys of
+// committed transfers still inside the idempotency window as KEY lines and reloads them
+// into the router's cache, so a retry after a router restart is not applied twice.
+class ShardRouter {
+    private static final long RETRY_MILLIS = 500;
+    
+    private static class Transfer {
+        final String txid;
+        final String sender;
+        final String receiver;
+        final long amount;
+        final String key;
+        final long epochSecond;
+        volatile String decision;
+        
+        Transfer(String txid, String sender, String receiver, long amount, String key, long epochSecond) {
+            this.txid = txid;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.amount = amount;
+            this.key = key;
+            this.epochSecond = epochSecond;
+        }
+        
+        String begin() {
+            return "BEGIN " + txid + " " + sender + " " + receiver + " " + amount + (key != null ? " " + epochSecond + " " + key : "");
+        }
+    }
+    
+    private final InetSocketAddress[] shards;
+    private final ClusterSecret secret;
+    private final ShardRing ring;
+    private final int port;
+    private final Path logFile;
+    private PrintWriter log;
+    private final Map<String, Transfer> pending = new ConcurrentHashMap<>();
+    private final List<Queue<ShardConnection>> idle = new ArrayList<>();
+    private final IdempotencyCache recent = IdempotencyCache.fromSystemProperties();
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong nextTx = new AtomicLong();
+    private final AtomicInteger nextCreate = new AtomicInteger();
+    
+    ShardRouter(int port, Path directory, InetSocketAddress[] shards, ClusterSecret secret) throws IOException {
+        this.port = port;
+        this.shards = shards;
+        this.secret = secret;
+        this.ring = new ShardRing(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            idle.add(new ConcurrentLinkedQueue<>());
+        }
+        Files.createDirectories(directory);
+        logFile = directory.resolve("router.log");
+        recover();
+    }
+    
+    // Replays router.log, decides ABORT for transfers without a decision, reloads the keys of
+    // committed transfers and rewrites the log with only the unfinished transfers and the
+    // keys still inside the window
+    private void recover() throws IOException {
+        Map<String, Transfer> open = new LinkedHashMap<>();
+        List<String[]> keys = new ArrayList<>();
+        if (Files.exists(logFile)) {
+            for (String line : Files.readAllLines(logFile, StandardCharsets.UTF_8)) {
+                String[] f = line.split(" ");
+                if (f[0].equals("BEGIN") && (f.length == 5 || f.length == 7)) {
+                    open.put(f[1], new Transfer(f[1], f[2], f[3], Long.parseLong(f[4]),
+                            f.length == 7 ? f[6] : null, f.length == 7 ? Long.parseLong(f[5]) : 0));
+                } else if ((f[0].equals("COMMIT") || f[0].equals("ABORT")) && open.containsKey(f[1])) {
+                    open.get(f[1]).decision = f[0];
+                } else if (f[0].equals("END")) {
+                    Transfer t = open.remove(f[1]);
+                    if (t != null && t.key != null && "COMMIT".equals(t.decision)) {
+                        keys.add(new String[] { t.sender, t.key, Long.toString(t.epochSecond) });
+                    }
+                } else if (f[0].equals("KEY") && f.length == 4) {
+                    keys.add(new String[] { f[1], f[2], f[3] });
+                }
+            }
+        }
+        Path tmp = logFile.resolveSibling("router.log.tmp");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+            for (String[] k : keys) {
+                if (recent.restore(k[0], k[1], Long.parseLong(k[2]))) {
+                    out.println("KEY " + k[0] + " " + k[1] + " " + k[2]);
+                }
+            }
+            for (Transfer t : open.values()) {
+                if (t.decision == null) {
+                    t.decision = "ABORT";
+                }
+                if (t.key != null && t.decision.equals("COMMIT")) {
+                    recent.restore(t.sender, t.key, t.epochSecond);
+                }
+                out.println(t.begin());
+                out.println(t.decision + " " + t.txid);
+            }
+        }
+        Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = new PrintWriter(Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND));
+        pending.putAll(open);
+        if (!open.isEmpty()) {
+            System.out.println(open.size() + " unfinished cross-shard transfers to resolve");
+        }
+    }
+    
+    private void log(String line) {
+        synchronized (log) {
+            log.println(line);
+            log.flush();
+        }
+    }
+    
+    public void serve() throws IOException {
+        ScheduledExecutorService resolver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "transfer-resolver");
+            t.setDaemon(true);
+            return t;
+        });
+        resolver.scheduleWithFixedDelay(this::resolve, 0, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        ExecutorService executor = ATMServer.perTaskExecutor();
+        try (ServerSocket server = new ServerSocket()) {
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(port), 4096);
+            System.out.println("Router listening on port " + server.getLocalPort() + " for " + shards.length + " shards");
+            while (true) {
+                Socket socket = server.accept();
+                executor.execute(() -> session(socket));
+            }
+        } finally {
+            executor.shutdown();
+            resolver.shutdown();
+        }
+    }
+    
+    private void resolve() {
+        for (Transfer t : pending.values()) {
+            if (t.decision != null) {
+                finish(t);
+            }
+        }
+    }
+    
+    // Sends the decision to both shards and ends the transfer once both acknowledged it
+    private void finish(Transfer t) {
+        String sent = t.decision + " " + t.txid;
+        if ("OK".equals(ask(ring.shardFor(t.sender), sent)) && "OK".equals(ask(ring.shardFor(t.receiver), sent))
+                && pending.remove(t.txid) != null) {
+            log("END " + t.txid);
+        }
+    }
+    
+    // A reply from a pooled coordinator connection, or null if the shard cannot be reached
+    private String ask(int shard, String request) {
+        ShardConnection c = idle.get(shard).poll();
+        try {
+            if (c == null) {
+                c = new ShardConnection(shards[shard]);
+                if (!c.ask("PEER " + secret.value()).equals("OK")) {
+                    throw new IOException("shard " + shard + " refused the cluster secret");
+                }
+            }
+            String reply = c.ask(request);
+            idle.get(shard).offer(c);
+            return reply;
+        } catch (IOException e) {
+            if (c != null) {
+                c.close();
+            }
+            return null;
+        }
+    }
+    
+    TransferResult transfer(String sender, String receiver, long amount, String key) {
+        if (amount <= 0) {
+            return TransferResult.INVALID_AMOUNT;
+        }
+        Transfer t = new Transfer(epoch + "-" + nextTx.incrementAndGet(), sender, receiver, amount, key, Instant.now().getEpochSecond());
+        pending.put(t.txid, t);
+        log(t.begin());
+        String debit = ask(ring.shardFor(sender), "PREPARE " + t.txid + " " + sender + " " + -amount + " " + receiver
+                + (key != null ? " " + key : ""));
+        TransferResult result = vote(debit);
+        if (result == TransferResult.SUCCESS) {
+            // The debit's reply carries the proof the receiver's shard needs
+            result = vote(ask(ring.shardFor(receiver), "PREPARE " + t.txid + " " + receiver + " " + amount + " " + sender
+                    + " " + debit.substring(3)));
+        }
+        String decision = result == TransferResult.SUCCESS ? "COMMIT" : "ABORT";
+        log(decision + " " + t.txid);
+        t.decision = decision;
+        finish(t);
+        return result;
+    }
+    
+    private static TransferResult vote(String reply) {
+        if (reply == null) {
+            return TransferResult.UNAVAILABLE;
+        }
+        if (reply.equals("OK") || reply.startsWith("OK ")) {
+            return TransferResult.SUCCESS;
+        }
+        try {
+            return TransferResult.valueOf(reply.substring(3));
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            return TransferResult.UNAVAILABLE;
+        }
+    }
+    
+    // A client session: its own connection to each shard it uses, and the LOGIN line to
+    // replay if the home shard's connection has to be reopened
+    private void session(Socket socket) {
+        Map<Integer, ShardConnection> connections = new HashMap<>();
+        String account = null;
+        String login = null;
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                String[] args = line.split(" ");
+                String command = args[0].toUpperCase();
+                if (command.equals("QUIT")) {
+                    out.println("OK bye");
+                    out.flush();
+                    break;
+                }
+                int shard = -1;
+                try {
+                    List<String> reply;
+                    switch (command) {
+                        case "CREATE":
+                            shard = Math.floorMod(nextCreate.getAndIncrement(), shards.length);
+                            reply = forward(connections, shard, null, line);
+                            break;
+                        case "LOGIN":
+                            shard = ring.shardFor(args[1]);
+                            reply = forward(connections, shard, null, line);
+                            account = reply.get(0).startsWith("OK") ? args[1] : null;
+                            login = account != null ? line : null;
+                            break;
+                        case "PENDING":
+                            reply = Collections.singletonList("OK " + pending.size());
+                            break;
+                        default:
+                            if (account == null) {
+                                reply = Collections.singletonList("ERR not logged in");
+                            } else if (command.equals("TRANSFER") && ring.shardFor(args[1]) != ring.shardFor(account)) {
+                                String sender = account;
+                                long amount = Money.parse(args[2]);
+                                String key = args.length > 3 ? args[3] : null;
+                                TransferResult result = recent.run(sender, key, () -> transfer(sender, args[1], amount, key));
+                                reply = Collections.singletonList((result == TransferResult.SUCCESS ? "OK " : "ERR ") + result.message);
+                            } else {
+                                shard = ring.shardFor(account);
+                                reply = forward(connections, shard, login, line);
+                                if (command.equals("LOGOUT")) {
+                                    account = null;
+                                    login = null;
+                                }
+                            }
+                    }
+                    for (String r : reply) {
+                        out.println(r);
+                    }
+                } catch (NumberFormatException | ArithmeticException | ArrayIndexOutOfBoundsException e) {
+                    out.println("ERR bad arguments");
+                } catch (IOException e) {
+                    ShardConnection broken = connections.remove(shard);
+                    if (broken != null) {
+                        broken.close();
+                    }
+                    out.println("ERR shard unavailable");
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            for (ShardConnection c : connections.values()) {
+                c.close();
+            }
+        }
+    }
+    
+    private List<String> forward(Map<Integer, ShardConnection> connections, int shard, String login, String line) throws IOException {
+        ShardConnection c = connections.get(shard);
+        if (c == null) {
+            c = new ShardConnection(shards[shard]);
+            connections.put(shard, c);
+            if (login != null) {
+                c.ask(login);
+            }
+        }
+        return c.call(line);
+    }
+}
+
+// Runs a cluster as local JVMs talking over loopback: shard i on port + 1 + i with its
+// data in <directory>/shard-<i>, and the router on port with router.log in <directory>.
+// Children get the same class path and bank.* system properties as this JVM and write
+// their output to <directory>/<name>.out.
+class ShardCluster {
+    private final Path directory;
+    private final int port;
+    private final Process[] shards;
+    private Process router;
+    
+    ShardCluster(Path directory, int port, int shardCount) {
+        this.directory = directory;
+        this.port = port;
+        this.shards = new Process[shardCount];
+    }
+    
+    void start() throws IOException, InterruptedException {
+        // Children inherit it with the other bank.* properties
+        if (System.getProperty("bank.cluster.secret") == null) {
+            System.setProperty("bank.cluster.secret", ClusterSecret.generate());
+        }
+        for (int i = 0; i < shards.length; i++) {
+            startShard(i);
+        }
+        startRouter();
+    }
+    
+    void startShard(int i) throws IOException, InterruptedException {
+        shards[i] = spawn("shard-" + i, "shard", String.valueOf(i), String.valueOf(shards.length),
+                String.valueOf(port + 1 + i), directory.resolve("shard-" + i).toString());
+        awaitPort(port + 1 + i, shards[i]);
     }
     
-    public void saveUserDetails() {
-        List<String> users = new ArrayList<>();
-        boolean exists = false;
+    void startRouter() throws IOException, InterruptedException {
+        List<String> args = new ArrayList<>(Arrays.asList("router", String.valueOf(port), directory.toString()));
+        for (int i = 0; i < shards.length; i++) {
+            args.add(String.valueOf(port + 1 + i));
+        }
+        router = spawn("router", args.toArray(new String[0]));
+        awaitPort(port, router);
+    }
+    
+    // kill -9, as a crash would
+    void crashShard(int i) throws InterruptedException {
+        shards[i].destroyForcibly().waitFor();
+    }
+    
+    void crashRouter() throws InterruptedException {
+        router.destroyForcibly().waitFor();
+    }
+    
+    void stop() throws InterruptedException {
+        List<Process> all = new ArrayList<>(Arrays.asList(shards));
+        all.add(router);
+        for (Process p : all) {
+            if (p != null) {
+                p.destroy();
+            }
+        }
+        for (Process p : all) {
+            if (p != null) {
+                p.waitFor();
+            }
+        }
+    }
+    
+    private Process spawn(String name, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("bank.")) {
+                command.add("-D" + key + "=" + System.getProperty(key));
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("BankAccountPro");
+        command.addAll(Arrays.asList(args));
+        Files.createDirectories(directory);
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(directory.resolve(name + ".out").toFile()))
+                .start();
+    }
+    
+    private static void awaitPort(int port, Process process) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("process for port " + port + " exited with " + process.exitValue());
+            }
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("nothing listening on port " + port);
+    }
+    
+    // Runs the load client against clusters of each size and prints how throughput scales
+    static void benchmark(int[] shardCounts, int port, int sessions, int opsPerSession) throws Exception {
+        Map<Integer, Double> results = new LinkedHashMap<>();
+        for (int n : shardCounts) {
+            ShardCluster cluster = new ShardCluster(Files.createTempDirectory("bank-cluster"), port, n);
+            cluster.start();
+            try {
+                System.out.print(n + " shards: ");
+                results.put(n, ATMLoadClient.run("localhost", port, sessions, opsPerSession));
+            } finally {
+                cluster.stop();
+            }
+        }
+        double base = results.values().iterator().next();
+        System.out.printf("%-8s %14s %10s%n", "shards", "requests/s", "speedup");
+        results.forEach((n, rate) -> System.out.printf("%-8d %14.0f %10.2f%n", n, rate, rate / base));
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores available");
+    }
+    
+    // Random transfers between accounts spread over two shards while one shard and then
+    // the router are killed and restarted. Passes if, once every transfer is resolved, the
+    // shards together still hold exactly the money the accounts were opened with.
+    static boolean check(int port, int accountsCount, int threads, int seconds) throws Exception {
+        ShardCluster cluster = new ShardCluster(Files.createTempDirectory("bank-cluster-check"), port, 2);
+        cluster.start();
+        List<String> accounts = new ArrayList<>();
+        try (ShardConnection c = new ShardConnection(new InetSocketAddress("localhost", port))) {
+            for (int i = 0; i < accountsCount; i++) {
+                accounts.add(c.ask("CREATE 1234 1000 Check " + i).substring(3));
+            }
+        }
+        long expected = 100000L * accountsCount;
         
-        try (BufferedReader br = new BufferedReader(new FileReader(USER_FILE))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] details = line.split(",");
-                if (details[0].equals(accountNumber)) {
-                    exists = true;
-                    line = accountNumber + "," + pin + "," + name + "," + balance;
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong succeeded = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        AtomicLong unavailable = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                Random random = new Random();
+                while (running.get()) {
+                    try (ShardConnection c = new ShardConnection(new InetSocketAddress("localhost", port))) {
+                        if (!c.ask("LOGIN " + accounts.get(random.nextInt(accountsCount)) + " 1234").startsWith("OK")) {
+                            throw new IOException("login failed");
+                        }
+                        for (int i = 0; i < 50 && running.get(); i++) {
+                            String reply = c.ask("TRANSFER " + accounts.get(random.nextInt(accountsCount)) + " " + Money.format(1 + random.nextInt(3000)));
+                            if (reply.startsWith("OK")) {
+                                succeeded.incrementAndGet();
+                            } else if (reply.contains("unavailable") || reply.contains("try again")) {
+                                unavailable.incrementAndGet();
+                            } else {
+                                refused.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException e) {
+                        unavailable.incrementAndGet();
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
                 }
-                users.add(line);
-            }
-        } catch (IOException e) {}
+            });
+            workers[t].start();
+        }
         
-        if (!exists) {
-            users.add(accountNumber + "," + pin + "," + name + "," + balance);
+        long third = TimeUnit.SECONDS.toMillis(seconds) / 3;
+        Thread.sleep(third);
+        System.out.println("Killing shard 1");
+        cluster.crashShard(1);
+        Thread.sleep(500);
+        cluster.startShard(1);
+        Thread.sleep(third);
+        System.out.println("Killing the router");
+        cluster.crashRouter();
+        Thread.sleep(500);
+        cluster.startRouter();
+        Thread.sleep(third);
+        running.set(false);
+        for (Thread w : workers) {
+            w.join();
         }
         
-        try (PrintWriter out = new PrintWriter(new FileWriter(USER_FILE))) {
-            for (String user : users) {
-                out.println(user);
+        long balance = 0;
+        long held = 0;
+        long prepared = 0;
+        try (ShardConnection c = new ShardConnection(new InetSocketAddress("localhost", port))) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!c.ask("PENDING").equals("OK 0") && System.nanoTime() < deadline) {
+                Thread.sleep(100);
             }
-        } catch (IOException e) {
-            System.out.println("Error saving user details.");
+        }
+        for (int i = 0; i < 2; i++) {
+            try (ShardConnection c = new ShardConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(), port + 1 + i))) {
+                c.ask("PEER " + System.getProperty("bank.cluster.secret"));
+                String[] total = c.ask("TOTAL").split(" ");
+                System.out.println("shard " + i + ": " + total[3] + " accounts, balance " + Money.format(Long.parseLong(total[1]))
+                        + ", held " + Money.format(Long.parseLong(total[2])) + ", " + total[4] + " prepared");
+                balance += Long.parseLong(total[1]);
+                held += Long.parseLong(total[2]);
+                prepared += Long.parseLong(total[4]);
+            }
+        }
+        cluster.stop();
+        
+        System.out.printf("%d transfers succeeded, %d refused, %d failed while a process was down%n",
+                succeeded.get(), refused.get(), unavailable.get());
+        System.out.println("Expected total: " + Money.format(expected) + ", across shards: " + Money.format(balance));
+        boolean ok = balance == expected && held == 0 && prepared == 0;
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+}
+
+// Outcome of a transfer; the message is what the console prints for it
+enum TransferResult {
+    SUCCESS("Transfer successful!"),
+    NO_SENDER("Sender account does not exist."),
+    NO_RECEIVER("Receiver account does not exist."),
+    INVALID_AMOUNT("Transfer amount must be positive."),
+    INSUFFICIENT_BALANCE("Insufficient balance for transfer."),
+    SAME_ACCOUNT("Cannot transfer to your own account."),
+    UNAVAILABLE("Transfer could not be completed, please try again."),
+    INVALID_KEY("Idempotency key must be 1 to " + IdempotencyCache.MAX_KEY_LENGTH + " printable characters.");
+    
+    final String message;
+    
+    TransferResult(String message) {
+        this.message = message;
+    }
+}
+
+// Results of recent keyed operations, so a retried deposit, withdrawal or transfer is
+// answered with the first attempt's result instead of running again. Keys are scoped to
+// the account that submitted them. A concurrent retry waits for the attempt in flight.
+// Entries expire after ttlSeconds and the oldest go first once there are more than
+// capacity; since every entry lives equally long, a FIFO queue gives both orders. On start
+// the successful keyed records still inside the window are reloaded from the transaction
+// log. Failed attempts are only remembered until a restart, as they moved no money.
+class IdempotencyCache {
+    private static class Slot {
+        final String key;
+        final CompletableFuture<TransferResult> result;
+        final long expires;
+        
+        Slot(String key, CompletableFuture<TransferResult> result, long expires) {
+            this.key = key;
+            this.result = result;
+            this.expires = expires;
         }
     }
     
-    public void logTransaction(String transaction) {
-        String filename = accountNumber + ".txt";
-        try (PrintWriter out = new PrintWriter(new FileWriter(filename, true))) {
-            String timestamp = LocalDateTime.now().format(FORMATTER);
-            out.println(transaction + " on " + timestamp);
-        } catch (IOException e) {
-            System.out.println("Error saving transaction history.");
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private final ArrayDeque<Slot> order = new ArrayDeque<>();
+    private final int capacity;
+    private final long ttlSeconds;
+    private final LongAdder repeats = new LongAdder();
+    
+    IdempotencyCache(int capacity, long ttlSeconds) {
+        this.capacity = capacity;
+        this.ttlSeconds = ttlSeconds;
+    }
+    
+    static final int MAX_KEY_LENGTH = 64;
+    
+    // Keys are kept in the transaction log, so clients get 1 to MAX_KEY_LENGTH printable
+    // ASCII characters; null means no key
+    static boolean validKey(String key) {
+        if (key == null) {
+            return true;
         }
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) <= ' ' || key.charAt(i) > '~') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // -Dbank.idempotency.capacity and -Dbank.idempotency.seconds
+    static IdempotencyCache fromSystemProperties() {
+        return new IdempotencyCache(Integer.getInteger("bank.idempotency.capacity", 100000),
+                Long.getLong("bank.idempotency.seconds", 86400));
+    }
+    
+    // Runs op unless key was already used on this account; a null key always runs it, and
+    // an invalid one never does
+    TransferResult run(String accountNumber, String key, java.util.function.Supplier<TransferResult> op) {
+        if (key == null) {
+            return op.get();
+        }
+        if (!validKey(key)) {
+            return TransferResult.INVALID_KEY;
+        }
+        String k = accountNumber + ":" + key;
+        Slot mine = new Slot(k, new CompletableFuture<>(), System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        while (true) {
+            Slot existing = slots.putIfAbsent(k, mine);
+            if (existing == null) {
+                break;
+            }
+            if (existing.expires - System.nanoTime() > 0) {
+                repeats.increment();
+                return existing.result.join();
+            }
+            slots.remove(k, existing);
+        }
+        TransferResult result;
+        try {
+            result = op.get();
+        } catch (RuntimeException e) {
+            slots.remove(k, mine);
+            mine.result.completeExceptionally(e);
+            throw e;
+        }
+        mine.result.complete(result);
+        remember(mine);
+        return result;
+    }
+    
+    private void remember(Slot slot) {
+        synchronized (order) {
+            order.add(slot);
+            long now = System.nanoTime();
+            for (Slot head = order.peek(); head != null && (order.size() > capacity || head.expires - now <= 0); head = order.peek()) {
+                order.poll();
+                slots.remove(head.key, head);
+            }
+        }
+    }
+    
+    // Reloads keys from the newest segments backwards, stopping at the first segment with
+    // nothing inside the window
+    void restore(TransactionHistory history) throws IOException {
+        long now = Instant.now().getEpochSecond();
+        long cutoff = now - ttlSeconds;
+        List<TransactionRecord> keyed = new ArrayList<>();
+        Map<Integer, Integer> segments = history.beginScan();
+        try {
+            List<Integer> ids = new ArrayList<>(segments.keySet());
+            for (int i = ids.size() - 1; i >= 0; i--) {
+                boolean[] inWindow = new boolean[1];
+                history.scan(ids.get(i), 0, segments.get(ids.get(i)), r -> {
+                    if (r.epochSecond >= cutoff) {
+                        inWindow[0] = true;
+                        if (r.key != null) {
+                            keyed.add(r);
+                        }
+                    }
+                });
+                if (!inWindow[0]) {
+                    break;
+                }
+            }
+        } finally {
+            history.endScan();
+        }
+        keyed.sort(Comparator.comparingLong(r -> r.epochSecond));
+        for (TransactionRecord r : keyed.subList(Math.max(0, keyed.size() - capacity), keyed.size())) {
+            restore(Long.toString(r.account), r.key, r.epochSecond);
+        }
+    }
+    
+    // Remembers a key that succeeded at epochSecond; false if it is already outside the window
+    boolean restore(String accountNumber, String key, long epochSecond) {
+        long left = epochSecond + ttlSeconds - Instant.now().getEpochSecond();
+        if (left <= 0) {
+            return false;
+        }
+        String k = accountNumber + ":" + key;
+        Slot slot = new Slot(k, CompletableFuture.completedFuture(TransferResult.SUCCESS),
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(left));
+        slots.put(k, slot);
+        remember(slot);
+        return true;
+    }
+    
+    int size() {
+        return slots.size();
+    }
+    
+    long repeats() {
+        return repeats.sum();
     }
 }
 
 class ATM {
     private static final String USER_FILE = "users.csv";
-    private Map<String, Account> accounts = new HashMap<>();
+    private static final String LEDGER_FILE = "ledger.log";
+    private static final String DATA_FILE = "accounts.dat";
+    private static final String SEQUENCE_FILE = "accounts.seq";
+    private final String directory;
+    private final AccountIndex accounts = new AccountIndex();
+    private final TransactionJournal journal;
+    private final AccountStore store;
+    private final AccountNumberAllocator numbers;
+    // PIN hashing runs here, bounded to the cores, instead of on the session threads
+    private final ExecutorService verifiers;
+    private volatile CredentialCache credentials = CredentialCache.fromSystemProperties();
+    private final IdempotencyCache recent = IdempotencyCache.fromSystemProperties();
+    // Which account numbers this ATM may create; a shard only takes the ones it owns
+    private volatile java.util.function.LongPredicate owns = number -> true;
     
     public ATM() {
+        this(".");
+    }
+    
+    public ATM(String directory) {
+        this.directory = directory;
+        journal = TransactionJournal.fromSystemProperties(directory);
+        store = createStore();
+        numbers = new AccountNumberAllocator(Paths.get(directory, SEQUENCE_FILE).toString());
+        verifiers = Executors.newFixedThreadPool(Integer.getInteger("bank.pin.threads", Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "pin-verifier");
+            t.setDaemon(true);
+            return t;
+        });
+        long started = System.nanoTime();
         loadUsers();
+        System.out.printf("Loaded %d accounts in %d ms%n", accounts.size(), (System.nanoTime() - started) / 1000000);
+        try {
+            recent.restore(journal.history());
+        } catch (IOException e) {
+            System.out.println("Error restoring idempotency keys: " + e.getMessage());
+        }
+    }
+    
+    private AccountStore createStore() {
+        String users = Paths.get(directory, USER_FILE).toString();
+        if (System.getProperty("bank.store", "ledger").equals("mapped")) {
+            return new MappedAccountStore(Paths.get(directory, DATA_FILE).toString(), users, accounts, journal);
+        }
+        return new BalanceLedger(users, Paths.get(directory, LEDGER_FILE).toString(), accounts, journal);
     }
     
     private void loadUsers() {
-        try (BufferedReader br = new BufferedReader(new FileReader(USER_FILE))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] details = line.split(",");
-                if (details.length == 4) {
-                    accounts.put(details[0], new Account(details[0], Integer.parseInt(details[1]), details[2], Double.parseDouble(details[3])));
-                }
-            }
-        } catch (IOException e) {
-            System.out.println("User data not found. Creating a new database.");
+        store.load();
+    }
+    
+    // Writes the current balances back to users.csv (export) and stops the journal
+    public void close() {
+        verifiers.shutdown();
+        store.close();
+        journal.close();
+    }
+    
+    public void createAccount(String name, int pin, long balance) {
+        if (!validName(name)) {
+            System.out.println("Names cannot contain commas or line breaks.");
+            return;
         }
+        Account acc = openAccount(name, pin, balance);
+        System.out.println("Your account number is: " + acc.accountNumber);
+    }
+    
+    // Account records are comma separated lines (users.csv, the balance ledger)
+    static boolean validName(String name) {
+        return name != null && name.indexOf(',') < 0 && name.indexOf('\n') < 0 && name.indexOf('\r') < 0;
     }
     
-    public void createAccount(String name, int pin, double balance) {
-        String accountNumber = String.valueOf((long) (Math.random() * 9000000000L) + 1000000000L);
-        System.out.println("Your account number is: " + accountNumber);
-        Account acc = new Account(accountNumber, pin, name, balance);
-        acc.logTransaction("Initial deposit: " + balance);
-        accounts.put(accountNumber, acc);
+    public Account openAccount(String name, int pin, long balance) {
+        if (!validName(name)) {
+            throw new IllegalArgumentException("Names cannot contain commas or line breaks.");
+        }
+        // Numbers from the allocator never repeat, but accounts created before it
+        // existed have random numbers that a new one could still hit
+        String pinHash = PinHasher.hash(pin);
+        Account acc;
+        do {
+            String number = numbers.next();
+            while (!owns.test(Long.parseLong(number))) {
+                number = numbers.next();
+            }
+            acc = new Account(number, pinHash, name, balance, store, journal);
+        } while (accounts.putIfAbsent(acc) != null);
+        acc.saveUserDetails();
+        acc.logTransaction(TransactionRecord.Type.OPEN, balance, 0, null);
+        return acc;
     }
     
     public Account login(String accountNumber, int pin) {
-        if (accounts.containsKey(accountNumber) && accounts.get(accountNumber).pin == pin) {
-            System.out.println("Login successful!");
-            return accounts.get(accountNumber);
+        Account acc = authenticate(accountNumber, pin);
+        System.out.println(acc != null ? "Login successful!" : "Invalid credentials");
+        return acc;
+    }
+    
+    // For callers that can wait for the check; ATMServer sessions use authenticateAsync
+    public Account authenticate(String accountNumber, int pin) {
+        return authenticateAsync(accountNumber, pin).join();
+    }
+    
+    // Completes with the account, or null for bad credentials. A recently verified PIN is
+    // answered from the cache on the calling thread; otherwise the hash is checked on the
+    // verifier pool.
+    public CompletableFuture<Account> authenticateAsync(String accountNumber, int pin) {
+        long start = System.nanoTime();
+        Account acc = accounts.get(accountNumber);
+        if (acc == null) {
+            BankMetrics.INSTANCE.record(BankMetrics.Op.LOGIN, start, false);
+            return CompletableFuture.completedFuture(null);
         }
-        System.out.println("Invalid credentials");
-        return null;
+        if (credentials.contains(acc, pin)) {
+            BankMetrics.INSTANCE.record(BankMetrics.Op.LOGIN, start, true);
+            return CompletableFuture.completedFuture(acc);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            Account found = verify(acc, pin);
+            BankMetrics.INSTANCE.record(BankMetrics.Op.LOGIN, start, found != null);
+            return found;
+        }, verifiers);
+    }
+    
+    private Account verify(Account acc, int pin) {
+        String stored = acc.pinHash;
+        if (!PinHasher.verify(stored, pin)) {
+            return null;
+        }
+        if (PinHasher.needsRehash(stored)) {
+            String upgraded = PinHasher.hash(pin);
+            acc.lock.lock();
+            try {
+                if (acc.pinHash.equals(stored)) {
+                    acc.pinHash = upgraded;
+                    try {
+                        store.saveCredential(acc);
+                    } catch (UncheckedIOException e) {
+                        // the PIN is right; the upgrade waits for a later login
+                        acc.pinHash = stored;
+                    }
+                }
+            } finally {
+                acc.lock.unlock();
+            }
+        }
+        credentials.put(acc, pin);
+        return acc;
+    }
+    
+    // Hashes every remaining plaintext PIN up front instead of waiting for each
+    // account's next login. Returns how many were upgraded.
+    public int upgradePins() {
+        AtomicInteger upgraded = new AtomicInteger();
+        accounts.values().parallelStream().forEach(acc -> {
+            String stored = acc.pinHash;
+            if (!PinHasher.isLegacy(stored)) {
+                return;
+            }
+            String hashed = PinHasher.hash(Integer.parseInt(stored));
+            acc.lock.lock();
+            try {
+                if (acc.pinHash.equals(stored)) {
+                    acc.pinHash = hashed;
+                    store.saveCredential(acc);
+                    upgraded.incrementAndGet();
+                }
+            } finally {
+                acc.lock.unlock();
+            }
+        });
+        return upgraded.get();
+    }
+    
+    void credentialCache(CredentialCache cache) {
+        credentials = cache;
+    }
+    
+    void ownership(java.util.function.LongPredicate owns) {
+        this.owns = owns;
+    }
+    
+    public void deposit(Account acc, long amount) {
+        deposit(acc, amount, null);
+    }
+    
+    // The keyed operations below return the first call's result for every repeat of the
+    // same key on the same account (within the idempotency window) without doing it again
+    public TransferResult deposit(Account acc, long amount, String key) {
+        return recent.run(acc.accountNumber, key, () -> {
+            long start = System.nanoTime();
+            acc.lock.lock();
+            try {
+                acc.balance += amount;
+                try {
+                    acc.saveUserDetails();
+                } catch (UncheckedIOException e) {
+                    acc.balance -= amount;
+                    throw e;
+                }
+                SnapshotClock.INSTANCE.commit(acc);
+            } finally {
+                acc.lock.unlock();
+            }
+            acc.logTransaction(TransactionRecord.Type.DEPOSIT, amount, 0, key);
+            BankMetrics.INSTANCE.record(BankMetrics.Op.DEPOSIT, start, true);
+            return TransferResult.SUCCESS;
+        });
+    }
+    
+    public boolean withdraw(Account acc, long amount) {
+        return withdraw(acc, amount, null) == TransferResult.SUCCESS;
+    }
+    
+    // Balance check and debit happen under the account lock, so two sessions
+    // cannot both withdraw the same money
+    public TransferResult withdraw(Account acc, long amount, String key) {
+        return recent.run(acc.accountNumber, key, () -> {
+            long start = System.nanoTime();
+            acc.lock.lock();
+            try {
+                if (amount <= 0 || amount > acc.balance - acc.held) {
+                    BankMetrics.INSTANCE.record(BankMetrics.Op.WITHDRAW, start, false);
+                    return amount <= 0 ? TransferResult.INVALID_AMOUNT : TransferResult.INSUFFICIENT_BALANCE;
+                }
+                acc.balance -= amount;
+                try {
+                    acc.saveUserDetails();
+                } catch (UncheckedIOException e) {
+                    acc.balance += amount;
+                    throw e;
+                }
+                SnapshotClock.INSTANCE.commit(acc);
+            } finally {
+                acc.lock.unlock();
+            }
+            acc.logTransaction(TransactionRecord.Type.WITHDRAWAL, amount, 0, key);
+            BankMetrics.INSTANCE.record(BankMetrics.Op.WITHDRAW, start, true);
+            return TransferResult.SUCCESS;
+        });
     }
     
     // New method for transferring money between accounts
-    public boolean transferMoney(Account sender, String receiverAccountNumber, double amount) {
+    public boolean transferMoney(Account sender, String receiverAccountNumber, long amount) {
+        TransferResult result = transfer(sender, receiverAccountNumber, amount);
+        System.out.println(result.message);
+        return result == TransferResult.SUCCESS;
+    }
+    
+    public TransferResult transfer(Account sender, String receiverAccountNumber, long amount) {
+        return transfer(sender, receiverAccountNumber, amount, null);
+    }
+    
+    public TransferResult transfer(Account sender, String receiverAccountNumber, long amount, String key) {
+        return recent.run(sender.accountNumber, key, () -> {
+            long start = System.nanoTime();
+            TransferResult result = transferChecked(sender, receiverAccountNumber, amount, key);
+            BankMetrics.INSTANCE.transfer(result, start);
+            return result;
+        });
+    }
+    
+    private TransferResult transferChecked(Account sender, String receiverAccountNumber, long amount, String key) {
         // Check if receiver account exists
-        if (!accounts.containsKey(receiverAccountNumber)) {
-            System.out.println("Receiver account does not exist.");
-            return false;
+        Account receiver = accounts.get(receiverAccountNumber);
+        if (receiver == null) {
+            return TransferResult.NO_RECEIVER;
         }
         
         // Check if transfer amount is valid
         if (amount <= 0) {
-            System.out.println("Transfer amount must be positive.");
-            return false;
+            return TransferResult.INVALID_AMOUNT;
         }
         
-        // Check if sender has sufficient balance
-        if (sender.balance < amount) {
-            System.out.println("Insufficient balance for transfer.");
-            return false;
+        TransferResult result = move(sender, receiver, amount, true);
+        if (result == TransferResult.SUCCESS) {
+            // Log the transaction for both sender and receiver
+            sender.logTransaction(TransactionRecord.Type.TRANSFER_OUT, amount, receiver.number, key);
+            receiver.logTransaction(TransactionRecord.Type.TRANSFER_IN, amount, sender.number, null);
         }
-        
-        // Cannot transfer to your own account
-        if (sender.accountNumber.equals(receiverAccountNumber)) {
-            System.out.println("Cannot transfer to your own account.");
-            return false;
+        return result;
+    }
+    
+    // Balance and self checks plus the actual move, under both account locks.
+    // Batch settlement passes save=false and commits all touched accounts at the end.
+    TransferResult move(Account sender, Account receiver, long amount, boolean save) {
+        // Lock both accounts in account number order so opposite transfers cannot deadlock
+        Account first = sender.number <= receiver.number ? sender : receiver;
+        Account second = first == sender ? receiver : sender;
+        first.lock.lock();
+        second.lock.lock();
+        try {
+            // Check if sender has sufficient balance
+            if (sender.balance - sender.held < amount) {
+                return TransferResult.INSUFFICIENT_BALANCE;
+            }
+            
+            // Cannot transfer to your own account
+            if (sender == receiver) {
+                return TransferResult.SAME_ACCOUNT;
+            }
+            
+            // Perform the transfer
+            sender.balance -= amount;
+            receiver.balance += amount;
+            
+            // Save the updated account information; if that fails the transfer is undone in
+            // memory, and a sender record already written is put right by its next save
+            if (save) {
+                try {
+                    sender.saveUserDetails();
+                    receiver.saveUserDetails();
+                } catch (UncheckedIOException e) {
+                    sender.balance += amount;
+                    receiver.balance -= amount;
+                    throw e;
+                }
+            }
+            SnapshotClock.INSTANCE.commit(sender, receiver);
+        } finally {
+            second.lock.unlock();
+            first.lock.unlock();
         }
-        
-        // Get receiver account
-        Account receiver = accounts.get(receiverAccountNumber);
-        
-        // Perform the transfer
-        sender.balance -= amount;
-        receiver.balance += amount;
-        
-        // Log the transaction for both sender and receiver
-        sender.logTransaction("Transferred " + amount + " to account " + receiverAccountNumber);
-        receiver.logTransaction("Received " + amount + " from account " + sender.accountNumber);
-        
-        // Save the updated account information
-        sender.saveUserDetails();
-        receiver.saveUserDetails();
-        
-        System.out.println("Transfer successful!");
-        return true;
+        return TransferResult.SUCCESS;
+    }
+    
+    public Account find(String accountNumber) {
+        return accounts.get(accountNumber);
+    }
+    
+    AccountStore store() {
+        return store;
+    }
+    
+    TransactionJournal journal() {
+        return journal;
     }
     
     // Helper method to get account name (for displaying in transfer confirmation)
     public String getAccountName(String accountNumber) {
-        if (accounts.containsKey(accountNumber)) {
-            return accounts.get(accountNumber).name;
-        }
-        return null;
+        Account acc = accounts.get(accountNumber);
+        return acc != null ? acc.snapshot().name : null;
+    }
+    
+    public TransactionHistory history() {
+        return journal.history();
+    }
+    
+    public Collection<Account> allAccounts() {
+        return accounts.values();
     }
 }
 
 public class BankAccountPro {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("journal-bench")) {
+            // java BankAccountPro journal-bench [threads] [recordsPerThread] [accounts]
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+            int perThread = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+            int accountsCount = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+            TransactionJournal.benchmark(threads, perThread, accountsCount);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("index-bench")) {
+            // java BankAccountPro index-bench [accounts]
+            AccountIndex.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("load-bench")) {
+            // java BankAccountPro load-bench [accounts]
+            ParallelCsvLoader.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+            return;
+        }
+        if (args.length > 2 && args[0].equals("settle")) {
+            // java BankAccountPro settle <instructions> <results>
+            ATM atm = new ATM();
+            new SettlementEngine(atm).settle(args[1], args[2]);
+            atm.close();
+            return;
+        }
+        if (args.length > 2 && args[0].equals("settle-gen")) {
+            // java BankAccountPro settle-gen <file> <count>
+            ATM atm = new ATM();
+            SettlementEngine.generate(atm, args[1], Integer.parseInt(args[2]));
+            atm.close();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            // java BankAccountPro serve [port]
+            ATM atm = new ATM();
+            Runtime.getRuntime().addShutdownHook(new Thread(atm::close));
+            new ATMServer(atm, args.length > 1 ? Integer.parseInt(args[1]) : 7000).serve();
+            return;
+        }
+        if (args.length > 3 && args[0].equals("shard")) {
+            // java -Dbank.cluster.secret=<secret> BankAccountPro shard <index> <shards> <port> [directory]
+            int index = Integer.parseInt(args[1]);
+            ShardRing ring = new ShardRing(Integer.parseInt(args[2]));
+            String dir = args.length > 4 ? args[4] : ".";
+            Files.createDirectories(Paths.get(dir));
+            ATM atm = new ATM(dir);
+            atm.ownership(number -> ring.shardFor(number) == index);
+            Runtime.getRuntime().addShutdownHook(new Thread(atm::close));
+            new ATMServer(atm, Integer.parseInt(args[3]), new ShardParticipant(atm, ClusterSecret.fromSystemProperties())).serve();
+            return;
+        }
+        if (args.length > 3 && args[0].equals("router")) {
+            // java -Dbank.cluster.secret=<secret> BankAccountPro router <port> <directory> <shardPort>...
+            InetSocketAddress[] shards = new InetSocketAddress[args.length - 3];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[3 + i]));
+            }
+            new ShardRouter(Integer.parseInt(args[1]), Paths.get(args[2]), shards, ClusterSecret.fromSystemProperties()).serve();
+            return;
+        }
+        if (args.length > 1 && args[0].equals("cluster")) {
+            // java BankAccountPro cluster <shards> [port] [directory]
+            ShardCluster cluster = new ShardCluster(Paths.get(args.length > 3 ? args[3] : "cluster"),
+                    args.length > 2 ? Integer.parseInt(args[2]) : 7000, Integer.parseInt(args[1]));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    cluster.stop();
+                } catch (InterruptedException e) {}
+            }));
+            cluster.start();
+            System.out.println("Cluster running; router on port " + (args.length > 2 ? args[2] : "7000"));
+            Thread.currentThread().join();
+        }
+        if (args.length > 0 && args[0].equals("cluster-bench")) {
+            // java BankAccountPro cluster-bench [sessions] [opsPerSession] [shardCounts...]
+            if (System.getProperty("bank.pin.iterations") == null) {
+                System.setProperty("bank.pin.iterations", "1000");
+            }
+            int[] counts = args.length > 3
+                    ? Arrays.stream(args, 3, args.length).mapToInt(Integer::parseInt).toArray()
+                    : new int[] { 1, 2, 4 };
+            ShardCluster.benchmark(counts, 7100, args.length > 1 ? Integer.parseInt(args[1]) : 200,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 50);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("cluster-check")) {
+            // java BankAccountPro cluster-check [accounts] [threads] [seconds]
+            if (System.getProperty("bank.pin.iterations") == null) {
+                System.setProperty("bank.pin.iterations", "1000");
+            }
+            System.exit(ShardCluster.check(7200, args.length > 1 ? Integer.parseInt(args[1]) : 50,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 8,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 9) ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("txlog-check")) {
+            // java BankAccountPro txlog-check [rounds] [recordsPerRound]
+            System.exit(TransactionHistory.check(args.length > 1 ? Integer.parseInt(args[1]) : 12,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 1000) ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("loadclient")) {
+            // java BankAccountPro loadclient [host] [port] [sessions] [opsPerSession]
+            ATMLoadClient.run(args.length > 1 ? args[1] : "localhost",
+                    args.length > 2 ? Integer.parseInt(args[2]) : 7000,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 1000,
+                    args.length > 4 ? Integer.parseInt(args[4]) : 20);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("migrate-logs")) {
+            // java BankAccountPro migrate-logs [directory]
+            String dir = args.length > 1 ? args[1] : ".";
+            TransactionHistory history = new TransactionHistory(dir);
+            System.out.println("Imported " + history.migrate(dir) + " more transaction history files");
+            history.close();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("allocator-bench")) {
+            // java BankAccountPro allocator-bench [threads] [numbersPerThread]
+            AccountNumberAllocator.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 8,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 250000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("login-bench")) {
+            // java BankAccountPro login-bench [threads] [accounts] [seconds]
+            CredentialCache.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 8,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 32,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 5);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("hash-pins")) {
+            // java BankAccountPro hash-pins
+            ATM atm = new ATM();
+            System.out.println("Hashed " + atm.upgradePins() + " plaintext PINs");
+            atm.close();
+            return;
+        }
+        if (args.length > 2 && args[0].equals("report")) {
+            // java BankAccountPro report <from yyyy-MM-dd> <to yyyy-MM-dd> [top] [statementDirectory]
+            // Opening the history seals and compacts it, so it cannot run beside a live server
+            TransactionHistory history;
+            try {
+                history = new TransactionHistory(".");
+            } catch (IllegalStateException e) {
+                System.out.println(e.getMessage() + "; stop the server first, or report on a copy of the directory.");
+                System.exit(1);
+                return;
+            }
+            TransactionAnalytics.report(history, LocalDate.parse(args[1]), LocalDate.parse(args[2]),
+                    args.length > 3 ? Integer.parseInt(args[3]) : 10, args.length > 4 ? Paths.get(args[4]) : null);
+            history.close();
+            return;
+        }
+        if (args.length > 2 && args[0].equals("workload") && args[1].equals("generate")) {
+            // java BankAccountPro workload generate <file> [sessions] [opsPerSession] [accounts] [skew] [rate]
+            List<String> lines = Workload.generate(args.length > 3 ? Integer.parseInt(args[3]) : 1000,
+                    args.length > 4 ? Integer.parseInt(args[4]) : 20, args.length > 5 ? Integer.parseInt(args[5]) : 1000,
+                    args.length > 6 ? Double.parseDouble(args[6]) : 1.0, args.length > 7 ? Double.parseDouble(args[7]) : 0,
+                    Long.getLong("bank.workload.seed", 1));
+            Files.write(Paths.get(args[2]), lines, StandardCharsets.UTF_8);
+            System.out.println("Wrote " + (lines.size() - 2) + " requests to " + args[2]);
+            return;
+        }
+        if (args.length > 2 && args[0].equals("workload") && args[1].equals("replay")) {
+            // java BankAccountPro workload replay <file> [threads] [speed] [directory]
+            Workload.replay(Files.readAllLines(Paths.get(args[2]), StandardCharsets.UTF_8),
+                    args.length > 3 ? Integer.parseInt(args[3]) : 8, args.length > 4 ? Double.parseDouble(args[4]) : 0,
+                    args.length > 5 ? args[5] : Files.createTempDirectory("bank-replay").toString());
+            return;
+        }
+        if (args.length > 1 && args[0].equals("workload") && args[1].equals("run")) {
+            // java BankAccountPro workload run [sessions] [opsPerSession] [accounts] [skew] [threads]
+            Workload.replay(Workload.generate(args.length > 2 ? Integer.parseInt(args[2]) : 1000,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 20, args.length > 4 ? Integer.parseInt(args[4]) : 1000,
+                    args.length > 5 ? Double.parseDouble(args[5]) : 1.0, 0, Long.getLong("bank.workload.seed", 1)),
+                    args.length > 6 ? Integer.parseInt(args[6]) : 8, 0, Files.createTempDirectory("bank-replay").toString());
+            return;
+        }
+        if (args.length > 0 && args[0].equals("snapshot-bench")) {
+            // java BankAccountPro snapshot-bench [accounts] [readers] [writers] [seconds]
+            SnapshotClock.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 10000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 4,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 4,
+                    args.length > 4 ? Integer.parseInt(args[4]) : 5);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("stress")) {
+            // java BankAccountPro stress [accounts] [threads] [transfersPerThread]
+            int accountsCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+            int perThread = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+            System.exit(stress(accountsCount, threads, perThread) ? 0 : 1);
+        }
+        
         Scanner s = new Scanner(System.in);
         ATM atm = new ATM();
         boolean running = true;
@@ -169,7 +5787,7 @@ public class BankAccountPro {
                     System.out.print("Enter a PIN: ");
                     int pin = s.nextInt();
                     System.out.print("Enter initial deposit amount: ");
-                    double balance = s.nextDouble();
+                    long balance = Money.parse(s.next());
                     atm.createAccount(name, pin, balance);
                     break;
                 case 2:
@@ -187,34 +5805,21 @@ public class BankAccountPro {
                             switch (action) {
                                 case 1:
                                     System.out.print("Enter deposit amount: ");
-                                    double depositAmount = s.nextDouble();
-                                    acc.balance += depositAmount;
-                                    acc.logTransaction("Deposited " + depositAmount);
-                                    acc.saveUserDetails();
+                                    long depositAmount = Money.parse(s.next());
+                                    atm.deposit(acc, depositAmount);
                                     break;
                                 case 2:
                                     System.out.print("Enter withdrawal amount: ");
-                                    double withdrawAmount = s.nextDouble();
-                                    if (withdrawAmount > 0 && withdrawAmount <= acc.balance) {
-                                        acc.balance -= withdrawAmount;
-                                        acc.logTransaction("Withdrawn " + withdrawAmount);
-                                        acc.saveUserDetails();
-                                    } else {
+                                    long withdrawAmount = Money.parse(s.next());
+                                    if (!atm.withdraw(acc, withdrawAmount)) {
                                         System.out.println("Insufficient balance or invalid amount.");
                                     }
                                     break;
                                 case 3:
-                                    System.out.println("Current balance: " + acc.balance);
+                                    System.out.println("Current balance: " + Money.format(acc.snapshot().balance));
                                     break;
                                 case 4:
-                                    try (BufferedReader br = new BufferedReader(new FileReader(acc.accountNumber + ".txt"))) {
-                                        String line;
-                                        while ((line = br.readLine()) != null) {
-                                            System.out.println(line);
-                                        }
-                                    } catch (IOException e) {
-                                        System.out.println("No transaction history available.");
-                                    }
+                                    showHistory(s, atm.history(), acc.accountNumber);
                                     break;
                                 case 5:
                                     // New case for money transfer
@@ -230,10 +5835,10 @@ public class BankAccountPro {
                                     
                                     System.out.println("Transferring to: " + receiverName);
                                     System.out.print("Enter transfer amount: ");
-                                    double transferAmount = s.nextDouble();
+                                    long transferAmount = Money.parse(s.next());
                                     
                                     // Confirm transfer
-                                    System.out.print("Confirm transfer of " + transferAmount + " to " + receiverName + " (Y/N): ");
+                                    System.out.print("Confirm transfer of " + Money.format(transferAmount) + " to " + receiverName + " (Y/N): ");
                                     String confirm = s.next();
                                     if (confirm.equalsIgnoreCase("Y")) {
                                         atm.transferMoney(acc, receiverAccNum, transferAmount);
@@ -253,6 +5858,7 @@ public class BankAccountPro {
                     break;
                 case 3:
                     running = false;
+                    atm.close();
                     System.out.println("Thank you for using THE Bank.");
                     break;
                 default:
@@ -261,4 +5867,116 @@ public class BankAccountPro {
         }
         s.close();
     }
+    
+    private static void showHistory(Scanner s, TransactionHistory history, String accountNumber) {
+        try {
+            long total = history.count(accountNumber);
+            if (total == 0) {
+                System.out.println("No transaction history available.");
+                return;
+            }
+            System.out.println(total + " transactions.\n1. Last N transactions\n2. Page\n3. Date range\n4. Everything");
+            List<String> lines;
+            switch (s.nextInt()) {
+                case 1:
+                    System.out.print("How many: ");
+                    lines = history.last(accountNumber, s.nextInt());
+                    break;
+                case 2:
+                    System.out.print("Page size: ");
+                    int pageSize = s.nextInt();
+                    System.out.print("Page number (1-" + ((total + pageSize - 1) / pageSize) + "): ");
+                    lines = history.page(accountNumber, s.nextInt(), pageSize);
+                    break;
+                case 3:
+                    System.out.print("From date (yyyy-MM-dd): ");
+                    LocalDate from = LocalDate.parse(s.next());
+                    System.out.print("To date (yyyy-MM-dd): ");
+                    LocalDate to = LocalDate.parse(s.next());
+                    lines = history.between(accountNumber, from.atStartOfDay(), to.atTime(23, 59, 59));
+                    break;
+                case 4:
+                    lines = history.range(accountNumber, 0, total);
+                    break;
+                default:
+                    System.out.println("Invalid choice.");
+                    return;
+            }
+            for (String line : lines) {
+                System.out.println(line);
+            }
+        } catch (IOException e) {
+            System.out.println("No transaction history available.");
+        } catch (java.time.format.DateTimeParseException e) {
+            System.out.println("Invalid date.");
+        }
+    }
+    
+    // Runs random transfers between a fresh set of accounts from many threads and
+    // checks that the total amount of money is unchanged, both in memory and after
+    // reloading the accounts from disk
+    static boolean stress(int accountsCount, int threads, int perThread) throws Exception {
+        if (System.getProperty("bank.journal") == null) {
+            System.setProperty("bank.journal", "async");
+        }
+        if (System.getProperty("bank.pin.iterations") == null) {
+            System.setProperty("bank.pin.iterations", "1000");
+        }
+        String dir = Files.createTempDirectory("bank-stress").toString();
+        ATM atm = new ATM(dir);
+        List<Account> list = new ArrayList<>();
+        for (int i = 0; i < accountsCount; i++) {
+            list.add(atm.openAccount("Stress " + i, 1234, 100000));
+        }
+        long expected = 100000L * accountsCount;
+        
+        AtomicInteger succeeded = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                Random random = new Random();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    Account from = list.get(random.nextInt(accountsCount));
+                    Account to = list.get(random.nextInt(accountsCount));
+                    if (atm.transfer(from, to.accountNumber, 1 + random.nextInt(20000)) == TransferResult.SUCCESS) {
+                        succeeded.incrementAndGet();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        double seconds = (System.nanoTime() - began) / 1e9;
+        
+        long total = 0;
+        for (Account acc : atm.allAccounts()) {
+            total += acc.balance;
+        }
+        atm.close();
+        
+        long reloaded = 0;
+        ATM check = new ATM(dir);
+        for (Account acc : check.allAccounts()) {
+            reloaded += acc.balance;
+        }
+        check.close();
+        
+        System.out.printf("%d transfers attempted, %d succeeded in %.2f s (%.0f/s)%n",
+                threads * perThread, succeeded.get(), seconds, threads * perThread / seconds);
+        System.out.print(BankMetrics.INSTANCE.report());
+        System.out.println("Expected total: " + expected + ", in memory: " + total + ", after reload: " + reloaded);
+        boolean ok = total == expected && reloaded == expected;
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
 }
\ No newline at end of file
@@ -13,7 +13,15 @@
  Default admin login: username "admin", password "admin123"
  */
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.zip.CRC32;
 
 class User implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -35,57 +43,2038 @@ class User implements Serializable {
     public void addExamResult(String result) {
         examHistory.add(result);
     }
+    
+    static String examResult(java.time.LocalDate date, int score, int total) {
+        return "Exam Date: " + date + ", Score: " + score + "/" + total + " (" + (score * 100 / total) + "%)";
+    }
 }
 
 class Question implements Serializable {
     private static final long serialVersionUID = 1L;
     
-    String questionText;
-    String[] options;
-    char correctAnswer;
+    // Stable identity in the QuestionBank (or old ExamStore records); 0 until first saved
+    int id;
+    String questionText;
+    String[] options;
+    char correctAnswer;
+    // Null and 0 in questions serialized before there were topics; the bank makes those
+    // "general" and 1
+    String topic;
+    int difficulty;
+    
+    public Question(String questionText, String[] options, char correctAnswer) {
+        this(questionText, options, correctAnswer, "general", 1);
+    }
+    
+    public Question(String questionText, String[] options, char correctAnswer, String topic, int difficulty) {
+        this.questionText = questionText;
+        this.options = options;
+        this.correctAnswer = correctAnswer;
+        this.topic = topic;
+        this.difficulty = difficulty;
+    }
+}
+
+// Hashed timer wheel for exam deadlines: one ticker thread, a ring of BUCKETS lists, one
+// bucket per tick. A timeout sits in the bucket of its deadline's tick, with the number of
+// whole turns of the wheel still to wait. Scheduling queues the timeout for the ticker to
+// place; cancelling and extending only change the timeout itself, and the ticker drops a
+// cancelled timeout or moves an extended one when it reaches its bucket. So all three are
+// O(1), and a timeout costs one small object instead of a sleeping thread.
+//
+// A timeout's state changes under its own lock, which makes it fire at most once and never
+// after a successful cancel or (before its new deadline) after a successful extend. Due
+// tasks run on the given executor so slow ones do not hold up the ticker.
+class TimerWheel {
+    private static final int BUCKETS = 1024;
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+    
+    final class Timeout {
+        private final Runnable task;
+        private long deadline;
+        private int state = PENDING;
+        // Bucket list links and turns left; used by the ticker thread only
+        private Timeout prev;
+        private Timeout next;
+        private long rounds;
+        
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+        
+        // False if the task already ran or is running, or was cancelled before
+        public synchronized boolean cancel() {
+            if (state != PENDING) {
+                return false;
+            }
+            state = CANCELLED;
+            return true;
+        }
+        
+        // Moves the deadline later; false if it is too late for that
+        public synchronized boolean extend(long delay, TimeUnit unit) {
+            if (state != PENDING || delay < 0) {
+                return false;
+            }
+            deadline += unit.toNanos(delay);
+            return true;
+        }
+        
+        public synchronized long remaining(TimeUnit unit) {
+            return unit.convert(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        
+        // Ticker: EXPIRED and true if due at now, false (and still PENDING) if extended past it
+        private synchronized boolean expire(long now) {
+            if (state != PENDING || deadline > now) {
+                return false;
+            }
+            state = EXPIRED;
+            return true;
+        }
+        
+        private synchronized boolean isCancelled() {
+            return state == CANCELLED;
+        }
+        
+        private synchronized long deadline() {
+            return deadline;
+        }
+    }
+    
+    private final long tickNanos;
+    private final Executor executor;
+    private final Timeout[] buckets = new Timeout[BUCKETS];
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final long start = System.nanoTime();
+    private final Thread ticker;
+    // Ticks done so far; the ticker's own
+    private long tick;
+    
+    TimerWheel(long tick, TimeUnit unit, Executor executor) {
+        this.tickNanos = unit.toNanos(tick);
+        this.executor = executor;
+        ticker = new Thread(this::run, "timer-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+    
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        pending.incrementAndGet();
+        incoming.add(t);
+        return t;
+    }
+    
+    // Scheduled and neither run nor dropped yet (cancelled ones count until their bucket comes up)
+    public long pending() {
+        return pending.get();
+    }
+    
+    private void run() {
+        while (true) {
+            long next = start + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < next) {
+                LockSupport.parkNanos(next - now);
+            }
+            tick++;
+            for (Timeout t; (t = incoming.poll()) != null; ) {
+                place(t, tick);
+            }
+            int b = (int) (tick & (BUCKETS - 1));
+            Timeout t = buckets[b];
+            while (t != null) {
+                Timeout following = t.next;
+                if (t.isCancelled()) {
+                    unlink(t, b);
+                    pending.decrementAndGet();
+                } else if (t.rounds > 0) {
+                    t.rounds--;
+                } else if (t.expire(now)) {
+                    unlink(t, b);
+                    pending.decrementAndGet();
+                    try {
+                        executor.execute(t.task);
+                    } catch (RuntimeException e) {
+                        // a rejected task is lost, as if it had thrown
+                    }
+                } else if (!t.isCancelled()) {
+                    // extended: move it to the bucket of its new deadline
+                    unlink(t, b);
+                    place(t, tick + 1);
+                }
+                t = following;
+            }
+        }
+    }
+    
+    // Puts t in the bucket for its deadline, but not before tick earliest. The bucket is
+    // first visited at earliest or after, so the rounds count from there: one moved on from
+    // the bucket being run a whole turn ahead waits for that bucket's next visit, not one more.
+    private void place(Timeout t, long earliest) {
+        long due = (t.deadline() - start + tickNanos - 1) / tickNanos;
+        long target = Math.max(due, earliest);
+        t.rounds = (target - earliest) / BUCKETS;
+        int b = (int) (target & (BUCKETS - 1));
+        t.prev = null;
+        t.next = buckets[b];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        buckets[b] = t;
+    }
+    
+    private void unlink(Timeout t, int b) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            buckets[b] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+    }
+    
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+    
+    // Resident set size from /proc, or -1 where there is none
+    private static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux
+        }
+        return -1;
+    }
+    
+    private static long percentile(long[] sorted, double quantile) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+    
+    // Memory per pending deadline (wheel, ScheduledThreadPoolExecutor, a sleeping thread as
+    // startExam used to start) and how late the wheel fires n deadlines spread over a few
+    // seconds, with a quarter of them cancelled and a quarter extended. Also checks that
+    // every deadline fires exactly once unless cancelled, and that one extended by exactly a
+    // turn of the wheel (so it goes back into the bucket being run) fires on time.
+    static boolean benchmark(int n, long tickMillis) throws Exception {
+        Runnable nothing = () -> {};
+        long before = usedHeap();
+        TimerWheel idle = new TimerWheel(tickMillis, TimeUnit.MILLISECONDS, Runnable::run);
+        List<Timeout> held = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            held.add(idle.schedule(nothing, 1, TimeUnit.HOURS));
+        }
+        Thread.sleep(3 * tickMillis);
+        long wheelBytes = usedHeap() - before - 4L * n;
+        
+        before = usedHeap();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        List<ScheduledFuture<?>> futures = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            futures.add(executor.schedule(nothing, 1, TimeUnit.HOURS));
+        }
+        long executorBytes = usedHeap() - before - 4L * n;
+        executor.shutdownNow();
+        
+        int threads = Math.min(n, 1000);
+        long rssBefore = residentBytes();
+        CountDownLatch started = new CountDownLatch(threads);
+        List<Thread> sleepers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.HOURS.toMillis(1));
+                } catch (InterruptedException e) {
+                    // done
+                }
+            });
+            t.start();
+            sleepers.add(t);
+        }
+        started.await();
+        long rssThreads = residentBytes() - rssBefore;
+        for (Thread t : sleepers) {
+            t.interrupt();
+        }
+        
+        System.out.printf("%-34s %12s%n", "pending deadline", "bytes each");
+        System.out.printf("%-34s %12.0f%n", "TimerWheel", (double) wheelBytes / n);
+        System.out.printf("%-34s %12.0f%n", "ScheduledThreadPoolExecutor", (double) executorBytes / n);
+        System.out.printf("%-34s %12s%n", "sleeping Thread (RSS, " + threads + " threads)",
+                rssThreads < 0 ? "n/a" : String.format("%.0f", (double) rssThreads / threads));
+        System.out.printf("%-34s %12d%n", "sleeping Thread (reserved stack)", 1024L * 1024);
+        held.clear();
+        
+        TimerWheel wheel = new TimerWheel(tickMillis, TimeUnit.MILLISECONDS, Runnable::run);
+        long[] lateness = new long[n];
+        AtomicIntegerArray fired = new AtomicIntegerArray(n);
+        long[] due = new long[n];
+        Timeout[] timeouts = new Timeout[n];
+        boolean[] cancelled = new boolean[n];
+        Random random = new Random(1);
+        for (int i = 0; i < n; i++) {
+            int id = i;
+            long delay = TimeUnit.MILLISECONDS.toNanos(1000 + random.nextInt(2000));
+            due[i] = System.nanoTime() + delay;
+            timeouts[i] = wheel.schedule(() -> {
+                lateness[id] = System.nanoTime() - due[id];
+                fired.incrementAndGet(id);
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+        for (int i = 0; i < n; i++) {
+            if (i % 4 == 1) {
+                cancelled[i] = timeouts[i].cancel();
+            } else if (i % 4 == 2 && timeouts[i].extend(500, TimeUnit.MILLISECONDS)) {
+                due[i] += TimeUnit.MILLISECONDS.toNanos(500);
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (wheel.pending() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        int twice = 0;
+        int missed = 0;
+        int afterCancel = 0;
+        int early = 0;
+        List<Long> late = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int f = fired.get(i);
+            if (cancelled[i]) {
+                afterCancel += f;
+            } else if (f == 0) {
+                missed++;
+            } else {
+                twice += f > 1 ? 1 : 0;
+                early += lateness[i] < 0 ? 1 : 0;
+                late.add(lateness[i]);
+            }
+        }
+        long[] sorted = late.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("%d deadlines, tick %d ms: %d fired, %d cancelled%n", n, tickMillis, sorted.length, n - sorted.length - missed);
+        System.out.printf("lateness ms: p50 %.2f, p99 %.2f, p999 %.2f, max %.2f%n", percentile(sorted, 0.5) / 1e6,
+                percentile(sorted, 0.99) / 1e6, percentile(sorted, 0.999) / 1e6, sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+        System.out.printf("%d missed, %d fired twice, %d fired after cancel, %d early%n", missed, twice, afterCancel, early);
+        
+        // 1 ms ticks, so a turn is BUCKETS ms: due at 200 ms, and once in its bucket
+        // extended to 200 + BUCKETS
+        TimerWheel fine = new TimerWheel(1, TimeUnit.MILLISECONDS, Runnable::run);
+        int wraps = 16;
+        long[] wrapLate = new long[wraps];
+        Timeout[] wrapTimeouts = new Timeout[wraps];
+        CountDownLatch wrapped = new CountDownLatch(wraps);
+        for (int i = 0; i < wraps; i++) {
+            int id = i;
+            long wrapDue = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200 + BUCKETS);
+            wrapTimeouts[i] = fine.schedule(() -> {
+                wrapLate[id] = System.nanoTime() - wrapDue;
+                wrapped.countDown();
+            }, 200, TimeUnit.MILLISECONDS);
+        }
+        Thread.sleep(50);
+        for (Timeout t : wrapTimeouts) {
+            t.extend(BUCKETS, TimeUnit.MILLISECONDS);
+        }
+        boolean wrapsFired = wrapped.await(200 + 3 * BUCKETS, TimeUnit.MILLISECONDS);
+        long wrapMax = Arrays.stream(wrapLate).max().getAsLong();
+        System.out.printf("extended by one turn (%d ms): %s, max lateness %.2f ms%n", BUCKETS,
+                wrapsFired ? "all fired" : wrapped.getCount() + " not fired", wrapMax / 1e6);
+        boolean ok = missed == 0 && twice == 0 && afterCancel == 0 && early == 0
+                && wrapsFired && wrapMax < TimeUnit.MILLISECONDS.toNanos(BUCKETS / 4);
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+}
+
+// Binary store for users and questions in exam.dat: a header (magic "OEXM", format version)
+// and then one record per change, each a user or question as it is now or the deletion of
+// one. Loading replays the records, the last one for a user or question winning. Changes
+// are appended and flushed as they happen, so a crash loses at most the record being
+// written; a torn record at the end fails its CRC and is cut off on the next load. Once
+// the file holds COMPACT_SLACK more records than there are users and questions it is
+// rewritten with one record each. Questions now live in the QuestionBank; question records
+// are only read, from files written before it, to move them there.
+//
+// Record: byte kind, int payload length, payload, int CRC32 of kind and payload
+//   USER:             UTF username, UTF password, UTF name, int score, int n, n x result
+//   result:           byte 1, int epoch day, short score, short total (as User.examResult
+//                     writes it), or byte 0, UTF text
+//   USER_DELETED:     UTF username
+//   QUESTION:         int id, UTF text, byte n, n x UTF option, byte correct answer
+//   QUESTION_DELETED: int id
+class ExamStore implements Closeable {
+    static final String FILE = "exam.dat";
+    private static final int MAGIC = 0x4F45584D;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int MAX_RECORD = 1 << 24;
+    private static final int COMPACT_SLACK = 10000;
+    private static final byte USER = 1;
+    private static final byte USER_DELETED = 2;
+    private static final byte QUESTION = 3;
+    private static final byte QUESTION_DELETED = 4;
+    
+    private final Path file;
+    private final Map<String, User> users;
+    private final List<Question> questions;
+    private FileChannel channel;
+    private long records;
+    private int lastQuestionId;
+    
+    // Loads the file into users and questions, which the store then keeps writing from
+    ExamStore(Path file, Map<String, User> users, List<Question> questions) throws IOException {
+        this.file = file;
+        this.users = users;
+        this.questions = questions;
+        load();
+    }
+    
+    private void load() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER) {
+            channel.truncate(0);
+            channel.write(ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION).flip(), 0);
+            channel.position(HEADER);
+            return;
+        }
+        TreeMap<Integer, Question> byId = new TreeMap<>();
+        long good = HEADER;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not an exam store");
+            }
+            int version = in.readInt();
+            if (version > VERSION) {
+                throw new IOException(file + " has format version " + version + ", newer than this program");
+            }
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[256];
+            while (true) {
+                int kind = in.read();
+                if (kind < 0) {
+                    break;
+                }
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD) {
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                    crc.reset();
+                    crc.update(kind);
+                    crc.update(payload, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                // A complete record that does not decode is damage, not a torn write: stop
+                // rather than cut off everything after it
+                try {
+                    apply(kind, new DataInputStream(new ByteArrayInputStream(payload, 0, length)), byId);
+                } catch (IOException e) {
+                    throw new IOException("unreadable record at offset " + good + " of " + file, e);
+                }
+                good += 9 + length;
+                records++;
+            }
+        }
+        if (good < channel.size()) {
+            System.out.println("Dropped an incomplete record at the end of " + file);
+            channel.truncate(good);
+        }
+        channel.position(good);
+        questions.addAll(byId.values());
+    }
+    
+    private void apply(int kind, DataInputStream in, Map<Integer, Question> byId) throws IOException {
+        switch (kind) {
+            case USER: {
+                User user = new User(in.readUTF(), in.readUTF(), in.readUTF());
+                user.score = in.readInt();
+                int results = in.readInt();
+                user.examHistory.ensureCapacity(results);
+                for (int i = 0; i < results; i++) {
+                    user.examHistory.add(in.readByte() == 1
+                            ? User.examResult(java.time.LocalDate.ofEpochDay(in.readInt()), in.readShort(), in.readShort())
+                            : in.readUTF());
+                }
+                users.put(user.username, user);
+                break;
+            }
+            case USER_DELETED:
+                users.remove(in.readUTF());
+                break;
+            case QUESTION: {
+                int id = in.readInt();
+                String text = in.readUTF();
+                String[] options = new String[in.readUnsignedByte()];
+                for (int i = 0; i < options.length; i++) {
+                    options[i] = in.readUTF();
+                }
+                Question q = new Question(text, options, (char) in.readUnsignedByte());
+                q.id = id;
+                byId.put(id, q);
+                lastQuestionId = Math.max(lastQuestionId, id);
+                break;
+            }
+            case QUESTION_DELETED: {
+                int id = in.readInt();
+                byId.remove(id);
+                lastQuestionId = Math.max(lastQuestionId, id);
+                break;
+            }
+            default:
+                // written by a later version of the same format; nothing to do with it here
+        }
+    }
+    
+    // A user no longer in the map was deleted meanwhile and is not written back. Callers
+    // must not hold the user's lock: the store takes it, after its own, to read the user.
+    public synchronized void saveUser(User user) throws IOException {
+        if (users.get(user.username) == user) {
+            append(USER, encode(user));
+        }
+    }
+    
+    // Called once user is out of the map. If a new user has taken the name since, its own
+    // record replaces the old one, and a deletion written now would remove it instead.
+    public synchronized void deleteUser(User user) throws IOException {
+        if (users.containsKey(user.username)) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(user.username);
+        append(USER_DELETED, bytes.toByteArray());
+    }
+    
+    private void append(byte kind, byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(frame(kind, payload));
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        if (++records > users.size() + questions.size() + COMPACT_SLACK) {
+            compact();
+        }
+    }
+    
+    private static byte[] frame(byte kind, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(kind);
+        crc.update(payload);
+        return ByteBuffer.allocate(9 + payload.length).put(kind).putInt(payload.length).put(payload)
+                .putInt((int) crc.getValue()).array();
+    }
+    
+    private static byte[] encode(User user) throws IOException {
+        synchronized (user) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 48 * user.examHistory.size());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(user.username);
+            out.writeUTF(user.password);
+            out.writeUTF(user.name);
+            out.writeInt(user.score);
+            out.writeInt(user.examHistory.size());
+            for (String result : user.examHistory) {
+                writeResult(out, result);
+            }
+            return bytes.toByteArray();
+        }
+    }
+    
+    // A result in User.examResult's format takes 9 bytes instead of about 45
+    private static void writeResult(DataOutputStream out, String result) throws IOException {
+        // "Exam Date: yyyy-mm-dd, Score: s/t (p%)"; anything else is kept as text
+        int slash = result.indexOf('/', 30);
+        int open = result.indexOf(" (", slash + 1);
+        if (result.startsWith("Exam Date: ") && result.startsWith(", Score: ", 21) && slash > 30 && open > slash + 1
+                && slash - 30 <= 5 && open - slash - 1 <= 5) {
+            int year = digits(result, 11, 15);
+            int month = digits(result, 16, 18);
+            int day = digits(result, 19, 21);
+            int score = digits(result, 30, slash);
+            int total = digits(result, slash + 1, open);
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31 && score >= 0 && score <= Short.MAX_VALUE
+                    && total > 0 && total <= Short.MAX_VALUE && result.charAt(15) == '-' && result.charAt(18) == '-') {
+                try {
+                    java.time.LocalDate date = java.time.LocalDate.of(year, month, day);
+                    if (User.examResult(date, score, total).equals(result)) {
+                        out.writeByte(1);
+                        out.writeInt((int) date.toEpochDay());
+                        out.writeShort(score);
+                        out.writeShort(total);
+                        return;
+                    }
+                } catch (java.time.DateTimeException e) {
+                    // not a real date
+                }
+            }
+        }
+        out.writeByte(0);
+        out.writeUTF(result);
+    }
+    
+    // Value of the decimal digits in text[from, to), or -1 if there is anything else
+    private static int digits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+    
+    private static byte[] encode(Question q) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(q.id);
+        out.writeUTF(q.questionText);
+        out.writeByte(q.options.length);
+        for (String option : q.options) {
+            out.writeUTF(option);
+        }
+        out.writeByte(q.correctAnswer);
+        return bytes.toByteArray();
+    }
+    
+    // Rewrites the file with one record per user and question, then swaps it in
+    public synchronized void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long written = 0;
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (User user : users.values()) {
+                out.write(frame(USER, encode(user)));
+                written++;
+            }
+            for (Question q : questions) {
+                if (q.id == 0) {
+                    q.id = ++lastQuestionId;
+                }
+                out.write(frame(QUESTION, encode(q)));
+                written++;
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        channel.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        records = written;
+    }
+    
+    public synchronized void close() throws IOException {
+        if (records > users.size() + questions.size()) {
+            compact();
+        }
+        channel.close();
+    }
+    
+    private interface Step {
+        void run() throws Exception;
+    }
+    
+    // Fastest of three runs, in milliseconds
+    private static double best(Step step) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            step.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e6;
+    }
+    
+    // Save and load time and file size for a synthetic roster, Java serialization of the
+    // whole map and list (as users.dat / questions.dat were written) against exam.dat, and
+    // what it costs to persist 1000 changed users either way
+    static void benchmark(int userCount) throws Exception {
+        HashMap<String, User> users = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < userCount; i++) {
+            User user = new User("student" + i, "pw" + random.nextInt(1000000), "Student Number " + i);
+            for (int e = random.nextInt(6); e > 0; e--) {
+                int score = random.nextInt(4);
+                user.addExamResult(User.examResult(java.time.LocalDate.of(2026, 1 + e, 10 + e), score, 3));
+                user.score += score;
+            }
+            users.put(user.username, user);
+        }
+        ArrayList<Question> questions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            questions.add(new Question("Question number " + i + ": which of these is right?",
+                    new String[] { "A. First", "B. Second", "C. Third", "D. Fourth" }, (char) ('A' + i % 4)));
+        }
+        Path dir = Files.createTempDirectory("exam-store");
+        Path usersDat = dir.resolve("users.dat");
+        Path questionsDat = dir.resolve("questions.dat");
+        Path examDat = dir.resolve(FILE);
+        List<User> changed = new ArrayList<>(users.values()).subList(0, Math.min(1000, userCount));
+        
+        Step serialSave = () -> {
+            try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(usersDat)))) {
+                oos.writeObject(users);
+            }
+            try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(questionsDat)))) {
+                oos.writeObject(questions);
+            }
+        };
+        double serialSaveMs = best(serialSave);
+        int[] loaded = new int[2];
+        double serialLoadMs = best(() -> {
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(usersDat)))) {
+                loaded[0] = ((Map<?, ?>) ois.readObject()).size();
+            }
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(questionsDat)))) {
+                loaded[1] = ((List<?>) ois.readObject()).size();
+            }
+        });
+        long serialBytes = Files.size(usersDat) + Files.size(questionsDat);
+        // Before, every change meant saving everything again
+        double serialChangedMs = serialSaveMs;
+        
+        ExamStore store = new ExamStore(examDat, users, questions);
+        double storeSaveMs = best(store::compact);
+        long storeBytes = Files.size(examDat);
+        double storeChangedMs = best(() -> {
+            for (User user : changed) {
+                user.score++;
+                store.saveUser(user);
+            }
+        });
+        store.close();
+        double storeLoadMs = best(() -> {
+            Map<String, User> u = new HashMap<>(userCount * 2);
+            List<Question> q = new ArrayList<>();
+            new ExamStore(examDat, u, q).close();
+            loaded[0] = u.size();
+            loaded[1] = q.size();
+        });
+        
+        System.out.printf("%d users, %d questions%n", loaded[0], loaded[1]);
+        System.out.printf("%-22s %12s %12s %16s %14s%n", "", "save all ms", "load ms", "1000 changed ms", "bytes");
+        System.out.printf("%-22s %12.1f %12.1f %16.1f %14d%n", "serialization", serialSaveMs, serialLoadMs, serialChangedMs, serialBytes);
+        System.out.printf("%-22s %12.1f %12.1f %16.1f %14d%n", FILE, storeSaveMs, storeLoadMs, storeChangedMs, storeBytes);
+        for (Path p : new Path[] { usersDat, questionsDat, examDat }) {
+            Files.deleteIfExists(p);
+        }
+        Files.deleteIfExists(dir);
+    }
+}
+
+// Question bank in questions.bank, for banks too big to keep as Question objects. The file
+// is mapped one PAGE at a time, so the OS keeps in memory only the pages papers are drawn
+// from, and the file can grow past what one buffer can map. The heap holds just the index:
+// per question the offset of its record and its place in the list for its topic and
+// difficulty. Papers are drawn from those lists by position, so drawing one costs about
+// the same whatever the size of the bank.
+//
+// Header: int magic "OEQB", int version, long end (the records before it are complete)
+// Record: int length of the rest, byte flags (1 = deleted), byte difficulty, topic, text,
+//         byte n, n x option, byte correct answer; each string a short length and UTF-8
+// A record never crosses into the next page: a length of 0, or less than 4 bytes left,
+// means the rest of the page is unused. A question's id is its record's number plus one.
+// Deleting a question only flags its record, which keeps its number and its space.
+class QuestionBank implements Closeable {
+    static final String FILE = "questions.bank";
+    static final int MAX_DIFFICULTY = 5;
+    private static final int MAGIC = 0x4F455142;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int PAGE_BITS = 26;
+    private static final long PAGE = 1L << PAGE_BITS;
+    private static final int MAX_RECORD = 1 << 20;
+    private static final byte DELETED = 1;
+    
+    // One part of a paper: count questions on topic (null for any) at difficulty (0 for any)
+    static final class Part {
+        final String topic;
+        final int difficulty;
+        final int count;
+        
+        Part(String topic, int difficulty, int count) {
+            this.topic = topic;
+            this.difficulty = difficulty;
+            this.count = count;
+        }
+    }
+    
+    // Growable list of record numbers
+    private static final class Slots {
+        int[] items = new int[4];
+        int size;
+        
+        int add(int slot) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size] = slot;
+            return size++;
+        }
+        
+        // Fills the gap with the last item; returns that item, or -1 if i was the last
+        int removeAt(int i) {
+            int last = items[--size];
+            if (i == size) {
+                return -1;
+            }
+            items[i] = last;
+            return last;
+        }
+    }
+    
+    private final FileChannel channel;
+    // Replaced, never changed, when a page is added, so readers need no lock
+    private volatile MappedByteBuffer[] pages = new MappedByteBuffer[0];
+    // The rest is guarded by this
+    private final Map<String, Slots[]> topics = new TreeMap<>();
+    private long[] offsets = new long[1024];
+    private int[] places = new int[1024]; // in its topic's Slots, or -1 when deleted
+    private int records;
+    private int live;
+    private long end;
+    private int firstDirtyPage = Integer.MAX_VALUE;
+    
+    QuestionBank(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        MappedByteBuffer first = page(0);
+        if (size < HEADER) {
+            first.putInt(0, MAGIC).putInt(4, VERSION);
+            end = HEADER;
+            firstDirtyPage = 0;
+            force();
+            return;
+        }
+        if (first.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a question bank");
+        }
+        if (first.getInt(4) > VERSION) {
+            throw new IOException(file + " has format version " + first.getInt(4) + ", newer than this program");
+        }
+        long stored = first.getLong(8);
+        if (stored < HEADER || stored > size) {
+            throw new IOException(file + " is damaged: records end at " + stored + " of " + size + " bytes");
+        }
+        long offset = HEADER;
+        while (offset < stored) {
+            ByteBuffer page = page(offset).duplicate();
+            int at = (int) (offset & (PAGE - 1));
+            int length = at + 4 <= PAGE ? page.getInt(at) : 0;
+            if (length == 0) {
+                offset = (offset | (PAGE - 1)) + 1;
+                continue;
+            }
+            if (length < 3 || at + 4L + length > PAGE) {
+                throw new IOException(file + " is damaged: bad record at offset " + offset);
+            }
+            page.position(at + 4);
+            boolean deleted = (page.get() & DELETED) != 0;
+            int difficulty = page.get();
+            index(records++, offset, deleted ? null : readString(page), difficulty);
+            offset += 4 + length;
+        }
+        end = stored;
+    }
+    
+    // "topic:difficulty:count,..." with * for any topic or difficulty, e.g. "*:*:40" or
+    // "algebra:1:20,algebra:3:15,*:5:5"
+    static List<Part> parts(String spec) {
+        List<Part> parts = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] fields = part.trim().split(":");
+            try {
+                if (fields.length != 3) {
+                    throw new NumberFormatException();
+                }
+                int difficulty = fields[1].equals("*") ? 0 : Integer.parseInt(fields[1]);
+                int count = Integer.parseInt(fields[2]);
+                if (difficulty < 0 || difficulty > MAX_DIFFICULTY || count < 0) {
+                    throw new NumberFormatException();
+                }
+                parts.add(new Part(fields[0].equals("*") ? null : topic(fields[0]), difficulty, count));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad paper part '" + part + "', expected topic:difficulty:count");
+            }
+        }
+        return parts;
+    }
+    
+    static String topic(String name) {
+        String topic = name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+        return topic.isEmpty() ? "general" : topic;
+    }
+    
+    // Writes a new bank holding questions, complete or not at all
+    static void create(Path file, Collection<Question> questions) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        try (QuestionBank bank = new QuestionBank(tmp)) {
+            bank.addAll(questions);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    public synchronized int size() {
+        return live;
+    }
+    
+    // Gives the question its id
+    public synchronized void add(Question q) throws IOException {
+        append(q);
+        force();
+    }
+    
+    public synchronized void addAll(Collection<Question> questions) throws IOException {
+        for (Question q : questions) {
+            append(q);
+        }
+        force();
+    }
+    
+    // False if there is no such question
+    public synchronized boolean delete(int id) throws IOException {
+        int slot = id - 1;
+        if (slot < 0 || slot >= records || places[slot] < 0) {
+            return false;
+        }
+        long offset = offsets[slot];
+        MappedByteBuffer page = pages[(int) (offset >>> PAGE_BITS)];
+        ByteBuffer record = page.duplicate();
+        record.position((int) (offset & (PAGE - 1)) + 5);
+        int difficulty = record.get();
+        Slots slots = topics.get(readString(record))[difficulty];
+        int moved = slots.removeAt(places[slot]);
+        if (moved >= 0) {
+            places[moved] = places[slot];
+        }
+        places[slot] = -1;
+        live--;
+        page.put((int) (offset & (PAGE - 1)) + 4, DELETED);
+        page.force();
+        return true;
+    }
+    
+    // Null if there is no such question
+    public Question get(int id) {
+        long offset;
+        synchronized (this) {
+            if (id < 1 || id > records || places[id - 1] < 0) {
+                return null;
+            }
+            offset = offsets[id - 1];
+        }
+        return read(id - 1, offset);
+    }
+    
+    // Up to max questions from id on, in id order
+    public List<Question> list(int id, int max) {
+        List<Integer> slots = new ArrayList<>();
+        long[] at;
+        synchronized (this) {
+            for (int slot = Math.max(0, id - 1); slot < records && slots.size() < max; slot++) {
+                if (places[slot] >= 0) {
+                    slots.add(slot);
+                }
+            }
+            at = new long[slots.size()];
+            for (int i = 0; i < at.length; i++) {
+                at[i] = offsets[slots.get(i)];
+            }
+        }
+        List<Question> questions = new ArrayList<>(at.length);
+        for (int i = 0; i < at.length; i++) {
+            questions.add(read(slots.get(i), at[i]));
+        }
+        return questions;
+    }
+    
+    // Questions per topic, by difficulty (index 1 to MAX_DIFFICULTY)
+    public synchronized Map<String, int[]> counts() {
+        Map<String, int[]> counts = new TreeMap<>();
+        for (Map.Entry<String, Slots[]> e : topics.entrySet()) {
+            int[] n = new int[MAX_DIFFICULTY + 1];
+            for (int d = 1; d <= MAX_DIFFICULTY; d++) {
+                n[d] = e.getValue()[d] == null ? 0 : e.getValue()[d].size;
+            }
+            counts.put(e.getKey(), n);
+        }
+        return counts;
+    }
+    
+    // A paper for one candidate, in random order: for each part, count questions picked at
+    // random from those it matches, none twice in the paper. A part that matches too few
+    // questions gets all there are.
+    public List<Question> paper(List<Part> parts, Random random) {
+        Set<Integer> chosen = new LinkedHashSet<>();
+        long[] at;
+        synchronized (this) {
+            for (Part part : parts) {
+                List<Slots> lists = new ArrayList<>();
+                for (Slots[] byDifficulty : part.topic == null ? topics.values()
+                        : Collections.singletonList(topics.get(part.topic))) {
+                    for (int d = 1; byDifficulty != null && d <= MAX_DIFFICULTY; d++) {
+                        if ((part.difficulty == 0 || part.difficulty == d) && byDifficulty[d] != null && byDifficulty[d].size > 0) {
+                            lists.add(byDifficulty[d]);
+                        }
+                    }
+                }
+                // Position i of the part's questions is in lists.get(l) where starts[l] <= i
+                int[] starts = new int[lists.size() + 1];
+                for (int l = 0; l < lists.size(); l++) {
+                    starts[l + 1] = starts[l] + lists.get(l).size;
+                }
+                int n = starts[lists.size()];
+                int want = Math.min(part.count, n);
+                int picked = 0;
+                // Few out of many: draw positions until enough are new
+                if (want * 2 < n) {
+                    for (int tries = 0; picked < want && tries < 4 * want + 64; tries++) {
+                        int i = random.nextInt(n);
+                        int l = Arrays.binarySearch(starts, i);
+                        l = l >= 0 ? l : -l - 2;
+                        if (chosen.add(lists.get(l).items[i - starts[l]])) {
+                            picked++;
+                        }
+                    }
+                }
+                // Most of them, or other parts took many: shuffle what is left
+                if (picked < want) {
+                    int[] rest = new int[n];
+                    int r = 0;
+                    for (Slots slots : lists) {
+                        for (int k = 0; k < slots.size; k++) {
+                            if (!chosen.contains(slots.items[k])) {
+                                rest[r++] = slots.items[k];
+                            }
+                        }
+                    }
+                    for (int k = 0; picked < want && k < r; k++, picked++) {
+                        int j = k + random.nextInt(r - k);
+                        int slot = rest[j];
+                        rest[j] = rest[k];
+                        chosen.add(slot);
+                    }
+                }
+            }
+            at = new long[chosen.size()];
+            int i = 0;
+            for (int slot : chosen) {
+                at[i++] = offsets[slot];
+            }
+        }
+        List<Question> paper = new ArrayList<>(at.length);
+        int i = 0;
+        for (int slot : chosen) {
+            paper.add(read(slot, at[i++]));
+        }
+        Collections.shuffle(paper, random);
+        return paper;
+    }
+    
+    public synchronized void close() throws IOException {
+        force();
+        channel.close();
+    }
+    
+    private void append(Question q) throws IOException {
+        String topic = topic(q.topic);
+        int difficulty = Math.max(1, Math.min(MAX_DIFFICULTY, q.difficulty));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(0);
+        out.writeByte(difficulty);
+        writeString(out, topic);
+        writeString(out, q.questionText);
+        if (q.options.length > 255) {
+            throw new IOException("a question can have at most 255 options");
+        }
+        out.writeByte(q.options.length);
+        for (String option : q.options) {
+            writeString(out, option);
+        }
+        out.writeByte(q.correctAnswer);
+        if (bytes.size() > MAX_RECORD) {
+            throw new IOException("question is too long to save");
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.capacity() - 4);
+        
+        int at = (int) (end & (PAGE - 1));
+        if (at + record.capacity() > PAGE) {
+            if (at + 4 <= PAGE) {
+                // clear what a torn write may have left, so loading skips to the next page
+                page(end).putInt(at, 0);
+                markDirty(end);
+            }
+            end = (end | (PAGE - 1)) + 1;
+            at = 0;
+        }
+        ByteBuffer page = page(end).duplicate();
+        page.position(at);
+        page.put(record);
+        markDirty(end);
+        int slot = records++;
+        index(slot, end, topic, difficulty);
+        end += record.capacity();
+        q.topic = topic;
+        q.difficulty = difficulty;
+        q.id = slot + 1;
+    }
+    
+    private void index(int slot, long offset, String topic, int difficulty) {
+        if (slot == offsets.length) {
+            offsets = Arrays.copyOf(offsets, slot * 2);
+            places = Arrays.copyOf(places, slot * 2);
+        }
+        offsets[slot] = offset;
+        places[slot] = -1;
+        if (topic != null) {
+            Slots[] byDifficulty = topics.computeIfAbsent(topic, t -> new Slots[MAX_DIFFICULTY + 1]);
+            if (byDifficulty[difficulty] == null) {
+                byDifficulty[difficulty] = new Slots();
+            }
+            places[slot] = byDifficulty[difficulty].add(slot);
+            live++;
+        }
+    }
+    
+    private Question read(int slot, long offset) {
+        ByteBuffer record = pages[(int) (offset >>> PAGE_BITS)].duplicate();
+        record.position((int) (offset & (PAGE - 1)) + 5);
+        int difficulty = record.get();
+        String topic = readString(record);
+        String text = readString(record);
+        String[] options = new String[record.get() & 0xFF];
+        for (int i = 0; i < options.length; i++) {
+            options[i] = readString(record);
+        }
+        Question q = new Question(text, options, (char) (record.get() & 0xFF), topic, difficulty);
+        q.id = slot + 1;
+        return q;
+    }
+    
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("question text is too long to save");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+    }
+    
+    // The page holding offset, mapping it and any before it first
+    private MappedByteBuffer page(long offset) throws IOException {
+        int p = (int) (offset >>> PAGE_BITS);
+        MappedByteBuffer[] current = pages;
+        if (p >= current.length) {
+            current = Arrays.copyOf(current, p + 1);
+            for (int i = pages.length; i <= p; i++) {
+                current[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i << PAGE_BITS, PAGE);
+            }
+            pages = current;
+        }
+        return current[p];
+    }
+    
+    private void markDirty(long offset) {
+        firstDirtyPage = Math.min(firstDirtyPage, (int) (offset >>> PAGE_BITS));
+    }
+    
+    // Records reach the disk before the header that counts them
+    private void force() {
+        MappedByteBuffer[] current = pages;
+        for (int p = firstDirtyPage; p < current.length; p++) {
+            current[p].force();
+        }
+        current[0].putLong(8, end);
+        current[0].force();
+        firstDirtyPage = Integer.MAX_VALUE;
+    }
+    
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+    
+    private static Question sample(Random random, int i) {
+        String[] options = { "A. Option one for " + i, "B. Option two", "C. Option three", "D. Option four" };
+        return new Question("Generated question " + i + ": which of these is the right answer?", options,
+                (char) ('A' + random.nextInt(4)), "topic" + random.nextInt(50), 1 + random.nextInt(MAX_DIFFICULTY));
+    }
+    
+    // Builds a bank of n generated questions over 50 topics and every difficulty, reports
+    // how long building and opening it take, its size on disk, the heap its index uses
+    // against the same questions as Question objects (measured on up to 100000), and how
+    // long drawing a 40-question paper takes. Passes if every paper has the asked-for mix
+    // and no question twice.
+    static boolean benchmark(int n) throws Exception {
+        Path dir = Files.createTempDirectory("question-bank");
+        Path file = dir.resolve(FILE);
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        try (QuestionBank bank = new QuestionBank(file)) {
+            List<Question> batch = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                batch.add(sample(random, i));
+                if (batch.size() == 10000 || i == n - 1) {
+                    bank.addAll(batch);
+                    batch.clear();
+                }
+            }
+        }
+        double buildMs = (System.nanoTime() - start) / 1e6;
+        
+        int objects = Math.min(n, 100000);
+        long before = usedHeap();
+        List<Question> onHeap = new ArrayList<>(objects);
+        for (int i = 0; i < objects; i++) {
+            onHeap.add(sample(random, i));
+        }
+        double objectBytes = (double) (usedHeap() - before) / objects;
+        onHeap.clear();
+        
+        before = usedHeap();
+        start = System.nanoTime();
+        QuestionBank bank = new QuestionBank(file);
+        double openMs = (System.nanoTime() - start) / 1e6;
+        double indexBytes = (double) (usedHeap() - before) / n;
+        
+        List<Part> parts = parts("topic1:1:10,topic2:2:10,topic3:*:10,*:*:10");
+        int papers = 100000;
+        int bad = 0;
+        start = System.nanoTime();
+        for (int p = 0; p < papers; p++) {
+            List<Question> paper = bank.paper(parts, random);
+            Set<Integer> ids = new HashSet<>();
+            int[] matched = new int[3];
+            for (Question q : paper) {
+                ids.add(q.id);
+                matched[0] += q.topic.equals("topic1") && q.difficulty == 1 ? 1 : 0;
+                matched[1] += q.topic.equals("topic2") && q.difficulty == 2 ? 1 : 0;
+                matched[2] += q.topic.equals("topic3") ? 1 : 0;
+            }
+            if (paper.size() != Math.min(40, n) || ids.size() != paper.size()
+                    || (n >= 100000 && (matched[0] < 10 || matched[1] < 10 || matched[2] < 10))) {
+                bad++;
+            }
+        }
+        double paperMicros = (System.nanoTime() - start) / 1e3 / papers;
+        long fileBytes = bank.end;
+        bank.close();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+        
+        System.out.printf("%d questions: built in %.0f ms, opened in %.0f ms, %d bytes of records%n", n, buildMs, openMs, fileBytes);
+        System.out.printf("heap per question: %.0f bytes of index, %.0f bytes as Question objects%n", indexBytes, objectBytes);
+        System.out.printf("%d papers of %s: %.1f us each, %d wrong%n", papers, "topic1:1:10,topic2:2:10,topic3:*:10,*:*:10", paperMicros, bad);
+        System.out.println(bad == 0 ? "PASS" : "FAIL");
+        return bad == 0;
+    }
+}
+
+// Grades answer sheets in bulk against a key of questions. A sheet's answers are packed two
+// bits per question (A to D as 0 to 3), 32 questions to a long, with a matching word that
+// has bit 2i set if question i was answered, so a blank never matches the key. Per word,
+// XOR with the key leaves 00 in the fields that match, and a popcount of those fields,
+// masked by the answered bits, is the word's share of the score.
+//
+// Sheets are lines of "candidate,answers", one letter per question in key order; anything
+// but A to D (either case) is a blank, and so is every question after the end of the line.
+// Lines are graded in batches on a pool of workers, each keeping its own statistics, and
+// the scores are written in the order of the sheets.
+class BulkGrader {
+    private static final long EVEN = 0x5555555555555555L;
+    private static final int BATCH = 4096;
+    
+    // Per question: how often it was answered right and left blank, and the total score of
+    // the sheets that got it right; summed per worker and then merged
+    static final class Statistics {
+        final long[] correct;
+        final long[] blank;
+        final long[] scoreWhenCorrect;
+        long sheets;
+        long scoreSum;
+        long scoreSquares;
+        long rejected;
+        
+        Statistics(int questions) {
+            correct = new long[questions];
+            blank = new long[questions];
+            scoreWhenCorrect = new long[questions];
+        }
+        
+        void merge(Statistics other) {
+            for (int q = 0; q < correct.length; q++) {
+                correct[q] += other.correct[q];
+                blank[q] += other.blank[q];
+                scoreWhenCorrect[q] += other.scoreWhenCorrect[q];
+            }
+            sheets += other.sheets;
+            scoreSum += other.scoreSum;
+            scoreSquares += other.scoreSquares;
+            rejected += other.rejected;
+        }
+        
+        // Point-biserial correlation of getting q right with the total score: near 1 if
+        // strong candidates get it right and weak ones wrong, near 0 or below if it does not
+        // tell them apart
+        double discrimination(int q) {
+            if (sheets == 0 || correct[q] == 0 || correct[q] == sheets) {
+                return 0;
+            }
+            double mean = (double) scoreSum / sheets;
+            double sd = Math.sqrt(Math.max(0, (double) scoreSquares / sheets - mean * mean));
+            double p = (double) correct[q] / sheets;
+            return sd == 0 ? 0 : ((double) scoreWhenCorrect[q] / correct[q] - mean) / sd * Math.sqrt(p / (1 - p));
+        }
+    }
+    
+    private final List<Question> key;
+    private final int words;
+    private final long[] keyWords;
+    // The answered bits a sheet can have: EVEN, except past the last question
+    private final long[] valid;
+    
+    BulkGrader(List<Question> key) {
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("the answer key has no questions");
+        }
+        this.key = key;
+        words = (key.size() + 31) / 32;
+        keyWords = new long[words];
+        valid = new long[words];
+        for (int i = 0; i < key.size(); i++) {
+            Question q = key.get(i);
+            int answer = q.correctAnswer - 'A';
+            if (answer < 0 || answer > 3) {
+                throw new IllegalArgumentException("question " + q.id + " has answer " + q.correctAnswer + "; sheets can only mark A to D");
+            }
+            keyWords[i >> 5] |= (long) answer << ((i & 31) * 2);
+            valid[i >> 5] |= 1L << ((i & 31) * 2);
+        }
+    }
+    
+    // Packs the answers on line from start into answers and answered
+    void pack(CharSequence line, int start, long[] answers, long[] answered) {
+        Arrays.fill(answers, 0);
+        Arrays.fill(answered, 0);
+        int n = Math.min(key.size(), line.length() - start);
+        for (int i = 0; i < n; i++) {
+            int answer = (line.charAt(start + i) | 0x20) - 'a';
+            if (answer >= 0 && answer < 4) {
+                int shift = (i & 31) * 2;
+                answers[i >> 5] |= (long) answer << shift;
+                answered[i >> 5] |= 1L << shift;
+            }
+        }
+    }
+    
+    // The score of a packed sheet; same gets bit 2i set for each question i it got right
+    int grade(long[] answers, long[] answered, long[] same) {
+        int score = 0;
+        for (int w = 0; w < words; w++) {
+            long x = answers[w] ^ keyWords[w];
+            same[w] = ~(x | (x >>> 1)) & answered[w] & EVEN;
+            score += Long.bitCount(same[w]);
+        }
+        return score;
+    }
+    
+    // Only walks the questions got right and the ones left blank
+    private void count(Statistics stats, int score, long[] same, long[] answered) {
+        stats.sheets++;
+        stats.scoreSum += score;
+        stats.scoreSquares += (long) score * score;
+        for (int w = 0; w < words; w++) {
+            for (long m = same[w]; m != 0; m &= m - 1) {
+                int q = (w << 5) + (Long.numberOfTrailingZeros(m) >> 1);
+                stats.correct[q]++;
+                stats.scoreWhenCorrect[q] += score;
+            }
+            for (long m = ~answered[w] & valid[w]; m != 0; m &= m - 1) {
+                stats.blank[(w << 5) + (Long.numberOfTrailingZeros(m) >> 1)]++;
+            }
+        }
+    }
+    
+    // "candidate,score,total,percent" lines for a batch of sheets
+    private String gradeBatch(List<String> lines, Statistics stats) {
+        long[] answers = new long[words];
+        long[] answered = new long[words];
+        long[] same = new long[words];
+        StringBuilder out = new StringBuilder(lines.size() * 24);
+        for (String line : lines) {
+            int comma = line.indexOf(',');
+            if (comma < 0) {
+                if (!line.trim().isEmpty()) {
+                    stats.rejected++;
+                }
+                continue;
+            }
+            pack(line, comma + 1, answers, answered);
+            int score = grade(answers, answered, same);
+            count(stats, score, same, answered);
+            out.append(line, 0, comma).append(',').append(score).append(',').append(key.size()).append(',')
+                    .append(score * 100 / key.size()).append('\n');
+        }
+        return out.toString();
+    }
+    
+    // Grades every sheet in sheets on threads workers, writing the scores to scores
+    Statistics gradeFile(Path sheets, Path scores, int threads) throws IOException, InterruptedException {
+        List<Statistics> perWorker = Collections.synchronizedList(new ArrayList<>());
+        ThreadLocal<Statistics> local = ThreadLocal.withInitial(() -> {
+            Statistics stats = new Statistics(key.size());
+            perWorker.add(stats);
+            return stats;
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // Batches being graded, oldest first; kept short so reading does not run far ahead
+        ArrayDeque<Future<String>> window = new ArrayDeque<>();
+        try (BufferedReader in = Files.newBufferedReader(sheets);
+             BufferedWriter out = Files.newBufferedWriter(scores)) {
+            out.write("candidate,score,total,percent\n");
+            List<String> batch = new ArrayList<>(BATCH);
+            for (String line; ; ) {
+                line = in.readLine();
+                if (line != null) {
+                    batch.add(line);
+                }
+                if (batch.size() == BATCH || (line == null && !batch.isEmpty())) {
+                    List<String> lines = batch;
+                    window.add(pool.submit(() -> gradeBatch(lines, local.get())));
+                    batch = new ArrayList<>(BATCH);
+                }
+                while (!window.isEmpty() && (window.size() > 2 * threads || line == null)) {
+                    try {
+                        out.write(window.poll().get());
+                    } catch (ExecutionException e) {
+                        throw new IOException("grading failed", e.getCause());
+                    }
+                }
+                if (line == null) {
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        Statistics total = new Statistics(key.size());
+        for (Statistics stats : perWorker) {
+            total.merge(stats);
+        }
+        return total;
+    }
+    
+    void writeStatistics(Path file, Statistics stats) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("question,id,topic,difficulty,correct %,blank %,discrimination");
+            for (int q = 0; q < key.size(); q++) {
+                Question question = key.get(q);
+                out.printf(Locale.ROOT, "%d,%d,%s,%d,%.1f,%.1f,%.3f%n", q + 1, question.id, question.topic, question.difficulty,
+                        100.0 * stats.correct[q] / Math.max(1, stats.sheets), 100.0 * stats.blank[q] / Math.max(1, stats.sheets),
+                        stats.discrimination(q));
+            }
+        }
+    }
+    
+    // Grades n sheets of a generated key, first from memory one question at a time (as
+    // startExam does) and packed, then from a file end to end on one worker and on every
+    // core. Passes if every way gives every sheet the score it was generated with.
+    static boolean benchmark(int n, int questions) throws Exception {
+        Random random = new Random(1);
+        List<Question> key = new ArrayList<>();
+        for (int q = 0; q < questions; q++) {
+            key.add(new Question("Question " + q, new String[] { "A. a", "B. b", "C. c", "D. d" }, (char) ('A' + random.nextInt(4))));
+        }
+        BulkGrader grader = new BulkGrader(key);
+        Path dir = Files.createTempDirectory("bulk-grade");
+        Path sheets = dir.resolve("sheets.txt");
+        Path scores = dir.resolve("scores.csv");
+        int[] expected = new int[n];
+        int sample = Math.min(n, 200000);
+        List<String> inMemory = new ArrayList<>(sample);
+        try (BufferedWriter out = Files.newBufferedWriter(sheets)) {
+            char[] answers = new char[questions];
+            for (int i = 0; i < n; i++) {
+                double ability = 0.3 + 0.65 * random.nextDouble();
+                for (int q = 0; q < questions; q++) {
+                    char right = key.get(q).correctAnswer;
+                    double roll = random.nextDouble();
+                    answers[q] = roll < 0.03 ? '-' : roll < ability ? right : (char) ('A' + (right - 'A' + 1 + random.nextInt(3)) % 4);
+                    expected[i] += answers[q] == right ? 1 : 0;
+                }
+                String line = "C" + i + "," + new String(answers);
+                out.write(line);
+                out.write('\n');
+                if (i < sample) {
+                    inMemory.add(line);
+                }
+            }
+        }
+        boolean ok = true;
+        
+        // Best of three rounds, so the JIT has compiled each loop
+        double naiveNs = Double.MAX_VALUE;
+        double packNs = Double.MAX_VALUE;
+        double gradeNs = Double.MAX_VALUE;
+        int words = (questions + 31) / 32;
+        long[][] packed = new long[sample][words];
+        long[][] answered = new long[sample][words];
+        long[] same = new long[words];
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < sample; i++) {
+                String line = inMemory.get(i);
+                int from = line.indexOf(',') + 1;
+                int score = 0;
+                for (int q = 0; q < questions; q++) {
+                    if (Character.toUpperCase(line.charAt(from + q)) == key.get(q).correctAnswer) {
+                        score++;
+                    }
+                }
+                ok &= score == expected[i];
+            }
+            naiveNs = Math.min(naiveNs, (double) (System.nanoTime() - start) / sample);
+            
+            start = System.nanoTime();
+            for (int i = 0; i < sample; i++) {
+                String line = inMemory.get(i);
+                grader.pack(line, line.indexOf(',') + 1, packed[i], answered[i]);
+            }
+            packNs = Math.min(packNs, (double) (System.nanoTime() - start) / sample);
+            
+            start = System.nanoTime();
+            for (int i = 0; i < sample; i++) {
+                ok &= grader.grade(packed[i], answered[i], same) == expected[i];
+            }
+            gradeNs = Math.min(gradeNs, (double) (System.nanoTime() - start) / sample);
+        }
+        System.out.printf("%d sheets of %d questions in memory, ns per sheet:%n", sample, questions);
+        System.out.printf("  one question at a time %8.1f%n  packing %23.1f%n  packed grading %16.1f%n", naiveNs, packNs, gradeNs);
+        
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : cores > 1 ? new int[] { 1, cores } : new int[] { 1 }) {
+            long start = System.nanoTime();
+            Statistics stats = grader.gradeFile(sheets, scores, threads);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int wrong = 0;
+            try (BufferedReader in = Files.newBufferedReader(scores)) {
+                in.readLine();
+                int i = 0;
+                for (String line; (line = in.readLine()) != null; i++) {
+                    String[] fields = line.split(",");
+                    wrong += i >= n || Integer.parseInt(fields[1]) != expected[i] ? 1 : 0;
+                }
+                wrong += n - Math.min(n, i);
+            }
+            System.out.printf("%d sheets from file on %d worker(s): %.2f s (%.0f sheets/s), mean %.1f/%d, %d wrong%n", n, threads,
+                    seconds, n / seconds, (double) stats.scoreSum / stats.sheets, questions, wrong);
+            ok &= wrong == 0 && stats.sheets == n;
+        }
+        Files.deleteIfExists(sheets);
+        Files.deleteIfExists(scores);
+        Files.deleteIfExists(dir);
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+}
+
+// Users ranked by score, highest first, in an indexable skip list: each link also records
+// how many places it skips, so the position of a user, and the user at a position, are
+// found in O(log n) like any lookup. Ties are ordered by username, and share a rank: a
+// user's rank is one more than the number of users with a higher score. Changing a score
+// moves just that user's entry, so the board stays current as exams finish.
+class Leaderboard {
+    private static final int MAX_LEVEL = 32;
+    
+    static final class Entry {
+        final int rank;
+        final int position;
+        final String username;
+        final int score;
+        
+        Entry(int rank, int position, String username, int score) {
+            this.rank = rank;
+            this.position = position;
+            this.username = username;
+            this.score = score;
+        }
+    }
+    
+    private static final class Node {
+        final String username;
+        final int score;
+        final Node[] next;
+        // Places from this node to next[i], or to the end of the list if there is none
+        final int[] span;
+        
+        Node(String username, int score, int levels) {
+            this.username = username;
+            this.score = score;
+            next = new Node[levels];
+            span = new int[levels];
+        }
+    }
+    
+    // All guarded by this
+    private final Node head = new Node(null, 0, MAX_LEVEL);
+    private final Map<String, Node> byUser = new HashMap<>();
+    private int levels = 1;
+    
+    // Whether n goes before a user with score and username
+    private static boolean before(Node n, int score, String username) {
+        return n.score > score || (n.score == score && n.username.compareTo(username) < 0);
+    }
+    
+    public synchronized int size() {
+        return byUser.size();
+    }
+    
+    public synchronized void update(String username, int score) {
+        Node old = byUser.get(username);
+        if (old != null && old.score == score) {
+            return;
+        }
+        if (old != null) {
+            byUser.remove(username);
+            unlink(old);
+        }
+        byUser.put(username, insert(username, score));
+    }
+    
+    public synchronized void remove(String username) {
+        Node old = byUser.remove(username);
+        if (old != null) {
+            unlink(old);
+        }
+    }
     
-    public Question(String questionText, String[] options, char correctAnswer) {
-        this.questionText = questionText;
-        this.options = options;
-        this.correctAnswer = correctAnswer;
+    // 0 if the user is not on the board
+    public synchronized int rank(String username) {
+        Node n = byUser.get(username);
+        return n == null ? 0 : above(n.score) + 1;
+    }
+    
+    public List<Entry> top(int count) {
+        return range(1, count);
+    }
+    
+    // Up to count entries from position from (1 is the top)
+    public synchronized List<Entry> range(int from, int count) {
+        List<Entry> entries = new ArrayList<>(Math.max(0, Math.min(count, byUser.size() - from + 1)));
+        Node n = from >= 1 && from <= byUser.size() ? at(from) : null;
+        int rank = n == null ? 0 : above(n.score) + 1;
+        for (int position = from; n != null && entries.size() < count; position++, n = n.next[0]) {
+            if (!entries.isEmpty() && n.score != entries.get(entries.size() - 1).score) {
+                rank = position;
+            }
+            entries.add(new Entry(rank, position, n.username, n.score));
+        }
+        return entries;
+    }
+    
+    // The user's entry with up to before entries above it and after below it
+    public synchronized List<Entry> around(String username, int before, int after) {
+        Node n = byUser.get(username);
+        if (n == null) {
+            return new ArrayList<>();
+        }
+        int position = position(n);
+        int from = Math.max(1, position - before);
+        return range(from, position - from + 1 + after);
+    }
+    
+    // Users with a higher score than score
+    private int above(int score) {
+        int count = 0;
+        Node x = head;
+        for (int i = levels - 1; i >= 0; i--) {
+            while (x.next[i] != null && x.next[i].score > score) {
+                count += x.span[i];
+                x = x.next[i];
+            }
+        }
+        return count;
+    }
+    
+    private int position(Node n) {
+        int position = 0;
+        Node x = head;
+        for (int i = levels - 1; i >= 0; i--) {
+            while (x.next[i] != null && (x.next[i] == n || before(x.next[i], n.score, n.username))) {
+                position += x.span[i];
+                x = x.next[i];
+            }
+        }
+        return position;
+    }
+    
+    private Node at(int position) {
+        int passed = 0;
+        Node x = head;
+        for (int i = levels - 1; i >= 0; i--) {
+            while (x.next[i] != null && passed + x.span[i] <= position) {
+                passed += x.span[i];
+                x = x.next[i];
+            }
+        }
+        return x;
+    }
+    
+    private Node insert(String username, int score) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] passed = new int[MAX_LEVEL];
+        Node x = head;
+        for (int i = levels - 1; i >= 0; i--) {
+            passed[i] = i == levels - 1 ? 0 : passed[i + 1];
+            while (x.next[i] != null && before(x.next[i], score, username)) {
+                passed[i] += x.span[i];
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+        // Each level up holds a quarter of the nodes of the one below
+        int height = 1;
+        while (height < MAX_LEVEL && ThreadLocalRandom.current().nextInt(4) == 0) {
+            height++;
+        }
+        for (int i = levels; i < height; i++) {
+            passed[i] = 0;
+            update[i] = head;
+            head.span[i] = byUser.size();
+        }
+        levels = Math.max(levels, height);
+        Node n = new Node(username, score, height);
+        for (int i = 0; i < height; i++) {
+            n.next[i] = update[i].next[i];
+            update[i].next[i] = n;
+            n.span[i] = update[i].span[i] - (passed[0] - passed[i]);
+            update[i].span[i] = passed[0] - passed[i] + 1;
+        }
+        for (int i = height; i < levels; i++) {
+            update[i].span[i]++;
+        }
+        return n;
+    }
+    
+    private void unlink(Node n) {
+        Node x = head;
+        for (int i = levels - 1; i >= 0; i--) {
+            while (x.next[i] != null && before(x.next[i], n.score, n.username)) {
+                x = x.next[i];
+            }
+            if (x.next[i] == n) {
+                x.span[i] += n.span[i] - 1;
+                x.next[i] = n.next[i];
+            } else {
+                x.span[i]--;
+            }
+        }
+        while (levels > 1 && head.next[levels - 1] == null) {
+            levels--;
+        }
+    }
+    
+    // Checks a board of users "student0" on, with those scores, against the scores sorted:
+    // the number of users with the wrong rank, plus any entries out of order
+    static int wrongRanks(Leaderboard board, int[] scores) {
+        int[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        int wrong = board.size() == scores.length ? 0 : 1;
+        for (int i = 0; i < scores.length; i++) {
+            // users with a higher score: those after the last copy of scores[i] in sorted
+            int lo = 0;
+            int hi = sorted.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sorted[mid] <= scores[i]) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            wrong += board.rank("student" + i) == sorted.length - lo + 1 ? 0 : 1;
+        }
+        List<Entry> all = board.range(1, scores.length);
+        for (int p = 1; p < all.size(); p++) {
+            Entry a = all.get(p - 1);
+            Entry b = all.get(p);
+            wrong += b.position == p + 1 && (a.score > b.score || (a.score == b.score && a.username.compareTo(b.username) < 0)) ? 0 : 1;
+        }
+        return wrong;
+    }
+    
+    // Times building a board of n users, updating scores as finishExam does, and rank, top-10
+    // and neighbourhood queries, against ranking one user by sorting everyone. Then updaters
+    // and readers run at once; passes if every rank, and the order of the whole board, then
+    // agree with the final scores sorted.
+    static boolean benchmark(int n) throws Exception {
+        Random random = new Random(1);
+        int[] scores = new int[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = "student" + i;
+            scores[i] = random.nextInt(1000);
+        }
+        Leaderboard board = new Leaderboard();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            board.update(names[i], scores[i]);
+        }
+        double buildNs = (double) (System.nanoTime() - start) / n;
+        
+        int ops = 1000000;
+        start = System.nanoTime();
+        for (int k = 0; k < ops; k++) {
+            int i = random.nextInt(n);
+            scores[i] += random.nextInt(4);
+            board.update(names[i], scores[i]);
+        }
+        double updateNs = (double) (System.nanoTime() - start) / ops;
+        long sink = 0;
+        start = System.nanoTime();
+        for (int k = 0; k < ops; k++) {
+            sink += board.rank(names[random.nextInt(n)]);
+        }
+        double rankNs = (double) (System.nanoTime() - start) / ops;
+        start = System.nanoTime();
+        for (int k = 0; k < ops; k++) {
+            sink += board.top(10).size();
+        }
+        double topNs = (double) (System.nanoTime() - start) / ops;
+        start = System.nanoTime();
+        for (int k = 0; k < ops; k++) {
+            sink += board.around(names[random.nextInt(n)], 10, 10).size();
+        }
+        double aroundNs = (double) (System.nanoTime() - start) / ops;
+        start = System.nanoTime();
+        int[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        double sortMs = (System.nanoTime() - start) / 1e6;
+        
+        System.out.printf("%d users on the board (checksum %d)%n", n, sink);
+        System.out.printf("  insert %22.0f ns%n  update score %16.0f ns%n  rank %24.0f ns%n  top 10 %22.0f ns%n  10 above and below %10.0f ns%n",
+                buildNs, updateNs, rankNs, topNs, aroundNs);
+        System.out.printf("  rank by sorting all %10.1f ms%n", sortMs);
+        
+        // Each updater owns a slice of the users; readers check what they see is in order
+        int updaters = 4;
+        int readers = 2;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger disorder = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(updaters + readers);
+        List<Future<?>> work = new ArrayList<>();
+        for (int u = 0; u < updaters; u++) {
+            int slice = u;
+            work.add(pool.submit(() -> {
+                Random r = new Random(slice);
+                for (int k = 0; k < 200000; k++) {
+                    int i = slice + updaters * r.nextInt((n - slice + updaters - 1) / updaters);
+                    scores[i] = r.nextInt(10) == 0 ? 0 : scores[i] + r.nextInt(4);
+                    board.update(names[i], scores[i]);
+                }
+            }));
+        }
+        for (int t = 0; t < readers; t++) {
+            pool.submit(() -> {
+                Random r = new Random();
+                while (!done.get()) {
+                    List<Entry> page = r.nextBoolean() ? board.top(10) : board.around(names[r.nextInt(n)], 5, 5);
+                    for (int p = 1; p < page.size(); p++) {
+                        Entry a = page.get(p - 1);
+                        Entry b = page.get(p);
+                        if (a.score < b.score || b.position != a.position + 1 || b.rank < a.rank) {
+                            disorder.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Future<?> f : work) {
+            f.get();
+        }
+        done.set(true);
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        int wrong = wrongRanks(board, scores);
+        System.out.println(updaters + " updaters with " + readers + " readers: " + wrong + " wrong ranks, " + disorder.get() + " pages out of order");
+        boolean ok = wrong == 0 && disorder.get() == 0;
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
     }
 }
 
 public class OnlineExamSystem {
-    private static HashMap<String, User> users = new HashMap<>();
-    private static ArrayList<Question> questions = new ArrayList<>();
-    private static User currentUser = null;
-    private static Scanner scanner = new Scanner(System.in);
-    private static boolean examInProgress = false;
+    // Shared by every session in the JVM
+    private static final Map<String, User> users = new ConcurrentHashMap<>();
+    private static ExamStore store;
+    private static QuestionBank bank;
+    private static final Leaderboard leaderboard = new Leaderboard();
+    // What each candidate's paper is drawn from, as topic:difficulty:count parts
+    private static final List<QuestionBank.Part> PAPER = QuestionBank.parts(System.getProperty("exam.paper", "*:*:40"));
+    private static final TimerWheel deadlines = new TimerWheel(Long.getLong("exam.timer.tickMillis", 10), TimeUnit.MILLISECONDS, perTaskExecutor());
+    private static final long EXAM_SECONDS = Long.getLong("exam.seconds", 100);
+    // Sessions with an exam running, for extending their time
+    private static final Set<OnlineExamSystem> running = ConcurrentHashMap.newKeySet();
     private static final String ADMIN_USERNAME = "admin";
     private static final String ADMIN_PASSWORD = "admin123";
+    
+    // One console session: its input and output, who is logged in and the exam running.
+    // The exam fields are guarded by this session's lock, since the deadline can end the
+    // exam from another thread; a user's score and examHistory by the User's own lock.
+    private final Scanner scanner;
+    private final PrintStream out;
+    private User currentUser = null;
+    private boolean examInProgress = false;
+    // Counts the exams started, so a deadline knows whether its exam is still the one running
+    private long examNumber;
+    private int examScore;
+    private int examQuestions;
+    private volatile TimerWheel.Timeout deadline;
+    
+    OnlineExamSystem(Scanner scanner, PrintStream out) {
+        this.scanner = scanner;
+        this.out = out;
+    }
 
     public static void main(String[] args) {
-        loadUsers(); // Load users from file
-        loadQuestions(); // Load questions from file
+        if (args.length > 0 && args[0].equals("store-bench")) {
+            // java OnlineExamSystem store-bench [users]
+            try {
+                ExamStore.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 500000);
+            } catch (Exception e) {
+                System.out.println("Benchmark failed: " + e);
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("leaderboard-bench")) {
+            // java OnlineExamSystem leaderboard-bench [users]
+            try {
+                System.exit(Leaderboard.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 1000000) ? 0 : 1);
+            } catch (Exception e) {
+                System.out.println("Benchmark failed: " + e);
+                System.exit(1);
+            }
+        }
+        if (args.length > 0 && args[0].equals("grade")) {
+            // java OnlineExamSystem grade <sheets> <scores.csv> <questions.csv> [questionIds]
+            System.exit(gradeSheets(args) ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("grade-bench")) {
+            // java OnlineExamSystem grade-bench [sheets] [questions]
+            try {
+                System.exit(BulkGrader.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 1000000,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 100) ? 0 : 1);
+            } catch (Exception e) {
+                System.out.println("Benchmark failed: " + e);
+                System.exit(1);
+            }
+        }
+        if (args.length > 0 && args[0].equals("bank-bench")) {
+            // java OnlineExamSystem bank-bench [questions]
+            try {
+                System.exit(QuestionBank.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 1000000) ? 0 : 1);
+            } catch (Exception e) {
+                System.out.println("Benchmark failed: " + e);
+                System.exit(1);
+            }
+        }
+        if (args.length > 0 && args[0].equals("timer-bench")) {
+            // java OnlineExamSystem timer-bench [pendingExams] [tickMillis]
+            try {
+                System.exit(TimerWheel.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 100000,
+                        args.length > 2 ? Long.parseLong(args[2]) : 10) ? 0 : 1);
+            } catch (Exception e) {
+                System.out.println("Benchmark failed: " + e);
+                System.exit(1);
+            }
+        }
+        if (args.length > 0 && args[0].equals("exam-check")) {
+            // java OnlineExamSystem exam-check [students] [examsPerSession]
+            try {
+                System.exit(concurrencyCheck(args.length > 1 ? Integer.parseInt(args[1]) : 2000,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 5) ? 0 : 1);
+            } catch (Exception e) {
+                System.out.println("Check failed: " + e);
+                System.exit(1);
+            }
+        }
+        
+        Path file = Paths.get(ExamStore.FILE);
+        if (!openStore(file, file.resolveSibling("users.dat"), file.resolveSibling("questions.dat"))) {
+            return;
+        }
         
         if (users.isEmpty()) {
             initializeUsers();
         }
         
-        if (questions.isEmpty()) {
+        if (bank.size() == 0) {
             initializeQuestions();
         }
         
+        new OnlineExamSystem(new Scanner(System.in), System.out).run();
+        closeStore();
+        System.out.println("Exiting...");
+    }
+    
+    // The main menu, until the user chooses Exit
+    void run() {
         while (true) {
-            System.out.println("\n===== ONLINE EXAM SYSTEM =====");
-            System.out.println("1. Student Login");
-            System.out.println("2. Admin Login");
-            System.out.println("3. Create New Account");
-            System.out.println("4. Exit");
-            System.out.print("Enter your choice: ");
+            out.println("\n===== ONLINE EXAM SYSTEM =====");
+            out.println("1. Student Login");
+            out.println("2. Admin Login");
+            out.println("3. Create New Account");
+            out.println("4. Exit");
+            out.print("Enter your choice: ");
             
             int choice;
             try {
                 choice = scanner.nextInt();
                 scanner.nextLine(); // Consume newline
             } catch (Exception e) {
-                System.out.println("Invalid input. Please enter a number.");
+                out.println("Invalid input. Please enter a number.");
                 scanner.nextLine(); // Clear invalid input
                 continue;
             }
@@ -101,12 +2090,9 @@ public class OnlineExamSystem {
                     createNewUser();
                     break;
                 case 4:
-                    saveUsers(); // Save users to file before exiting
-                    saveQuestions(); // Save questions to file before exiting
-                    System.out.println("Exiting...");
                     return;
                 default:
-                    System.out.println("Invalid choice. Please try again.");
+                    out.println("Invalid choice. Please try again.");
             }
         }
     }
@@ -114,118 +2100,128 @@ public class OnlineExamSystem {
     private static void initializeUsers() {
         // Predefined admin user
         users.put(ADMIN_USERNAME, new User(ADMIN_USERNAME, ADMIN_PASSWORD, "Admin"));
+        saveUser(users.get(ADMIN_USERNAME));
     }
     
     private static void initializeQuestions() {
-        questions.add(new Question(
+        addQuestion(new Question(
             "What is the capital of France?",
             new String[]{"A. Paris", "B. London", "C. Berlin", "D. Madrid"},
-            'A'
+            'A', "geography", 1
         ));
         
-        questions.add(new Question(
+        addQuestion(new Question(
             "Which planet is known as the Red Planet?",
             new String[]{"A. Earth", "B. Mars", "C. Jupiter", "D. Saturn"},
-            'B'
+            'B', "science", 1
         ));
         
-        questions.add(new Question(
+        addQuestion(new Question(
             "What is the largest mammal?",
             new String[]{"A. Elephant", "B. Blue Whale", "C. Giraffe", "D. Shark"},
-            'B'
+            'B', "science", 1
         ));
     }
 
-    private static void studentLogin() {
-        System.out.println("\n===== STUDENT LOGIN =====");
-        System.out.print("Enter username: ");
+    private void studentLogin() {
+        out.println("\n===== STUDENT LOGIN =====");
+        out.print("Enter username: ");
         String username = scanner.nextLine();
         
         // Check if it's the admin account
         if (username.equals(ADMIN_USERNAME)) {
-            System.out.println("This login is for students only. Please use Admin Login option.");
+            out.println("This login is for students only. Please use Admin Login option.");
             return;
         }
         
-        System.out.print("Enter password: ");
+        out.print("Enter password: ");
         String password = scanner.nextLine();
 
         if (users.containsKey(username) && users.get(username).password.equals(password)) {
             currentUser = users.get(username);
-            System.out.println("Login successful! Welcome, " + currentUser.name + ".");
+            out.println("Login successful! Welcome, " + currentUser.name + ".");
             userMenu();
         } else {
-            System.out.println("Invalid username or password.");
+            out.println("Invalid username or password.");
         }
     }
     
-    private static void adminLogin() {
-        System.out.println("\n===== ADMIN LOGIN =====");
-        System.out.print("Enter admin username: ");
+    private void adminLogin() {
+        out.println("\n===== ADMIN LOGIN =====");
+        out.print("Enter admin username: ");
         String username = scanner.nextLine();
-        System.out.print("Enter admin password: ");
+        out.print("Enter admin password: ");
         String password = scanner.nextLine();
 
         if (username.equals(ADMIN_USERNAME) && password.equals(ADMIN_PASSWORD)) {
             currentUser = users.get(ADMIN_USERNAME);
-            System.out.println("Admin login successful! Welcome, Administrator.");
+            out.println("Admin login successful! Welcome, Administrator.");
             adminMenu();
         } else {
-            System.out.println("Invalid admin credentials.");
+            out.println("Invalid admin credentials.");
         }
     }
 
-    private static void createNewUser() {
-        System.out.println("\n===== CREATE NEW ACCOUNT =====");
-        System.out.print("Enter a new username: ");
+    private void createNewUser() {
+        out.println("\n===== CREATE NEW ACCOUNT =====");
+        out.print("Enter a new username: ");
         String username = scanner.nextLine();
 
         if (users.containsKey(username)) {
-            System.out.println("Username already exists. Please choose a different username.");
+            out.println("Username already exists. Please choose a different username.");
             return;
         }
         
         if (username.equals(ADMIN_USERNAME)) {
-            System.out.println("This username is reserved. Please choose a different username.");
+            out.println("This username is reserved. Please choose a different username.");
             return;
         }
 
-        System.out.print("Enter a new password: ");
+        out.print("Enter a new password: ");
         String password = scanner.nextLine();
-        System.out.print("Confirm password: ");
+        out.print("Confirm password: ");
         String confirmPassword = scanner.nextLine();
 
         if (!password.equals(confirmPassword)) {
-            System.out.println("Passwords do not match. Please try again.");
+            out.println("Passwords do not match. Please try again.");
             return;
         }
 
-        System.out.print("Enter your full name: ");
+        out.print("Enter your full name: ");
         String name = scanner.nextLine();
 
-        users.put(username, new User(username, password, name));
-        System.out.println("User created successfully! You can now login.");
+        User created = new User(username, password, name);
+        if (users.putIfAbsent(username, created) != null) {
+            out.println("Username already exists. Please choose a different username.");
+            return;
+        }
+        synchronized (created) {
+            rankUser(created);
+        }
+        saveUser(created);
+        out.println("User created successfully! You can now login.");
     }
 
-    private static void adminMenu() {
+    private void adminMenu() {
         while (true) {
-            System.out.println("\n===== ADMIN MENU =====");
-            System.out.println("1. View All Users");
-            System.out.println("2. Delete User");
-            System.out.println("3. Add New Question");
-            System.out.println("4. View All Questions");
-            System.out.println("5. Remove Question");
-            System.out.println("6. Reset User Score");
-            System.out.println("7. Change Admin Password");
-            System.out.println("8. Logout");
-            System.out.print("Enter your choice: ");
+            out.println("\n===== ADMIN MENU =====");
+            out.println("1. View All Users");
+            out.println("2. Delete User");
+            out.println("3. Add New Question");
+            out.println("4. View All Questions");
+            out.println("5. Remove Question");
+            out.println("6. Reset User Score");
+            out.println("7. Change Admin Password");
+            out.println("8. Extend Exam Time");
+            out.println("9. Logout");
+            out.print("Enter your choice: ");
             
             int choice;
             try {
                 choice = scanner.nextInt();
                 scanner.nextLine(); // Consume newline
             } catch (Exception e) {
-                System.out.println("Invalid input. Please enter a number.");
+                out.println("Invalid input. Please enter a number.");
                 scanner.nextLine(); // Clear invalid input
                 continue;
             }
@@ -253,59 +2249,81 @@ public class OnlineExamSystem {
                     changeAdminPassword();
                     break;
                 case 8:
+                    extendExamTime();
+                    break;
+                case 9:
                     logout();
                     return;
                 default:
-                    System.out.println("Invalid choice. Please try again.");
+                    out.println("Invalid choice. Please try again.");
             }
         }
     }
 
-    private static void viewAllUsers() {
-        System.out.println("\n===== ALL USERS =====");
-        if (users.size() <= 1) {
-            System.out.println("No regular users found.");
+    // In rank order, a page at a time
+    private void viewAllUsers() {
+        final int PAGE = 20;
+        out.println("\n===== ALL USERS =====");
+        if (leaderboard.size() == 0) {
+            out.println("No regular users found.");
             return;
         }
         
-        for (User user : users.values()) {
-            if (!user.username.equals(ADMIN_USERNAME)) {
-                System.out.println("Username: " + user.username + ", Name: " + user.name + ", Score: " + user.score);
+        for (int from = 1; ; from += PAGE) {
+            for (Leaderboard.Entry entry : leaderboard.range(from, PAGE)) {
+                User user = users.get(entry.username);
+                if (user != null) {
+                    out.println(entry.rank + ". Username: " + user.username + ", Name: " + user.name + ", Score: " + entry.score);
+                }
+            }
+            if (from + PAGE > leaderboard.size()) {
+                return;
+            }
+            out.print("Press Enter for more, or Q to stop: ");
+            if (scanner.nextLine().trim().equalsIgnoreCase("Q")) {
+                return;
             }
         }
     }
 
-    private static void deleteUser() {
-        System.out.print("\nEnter the username to delete: ");
+    private void deleteUser() {
+        out.print("\nEnter the username to delete: ");
         String username = scanner.nextLine();
 
-        if (users.containsKey(username)) {
+        User user = users.get(username);
+        if (user != null) {
             if (username.equals(ADMIN_USERNAME)) {
-                System.out.println("Cannot delete admin user.");
+                out.println("Cannot delete admin user.");
             } else {
-                users.remove(username);
-                System.out.println("User deleted successfully.");
+                // Off the board before out of the map, so a new user of the same name
+                // cannot be created in between and then taken off in its place
+                synchronized (user) {
+                    leaderboard.remove(username);
+                    users.remove(username, user);
+                }
+                deleteSavedUser(user);
+                out.println("User deleted successfully.");
             }
         } else {
-            System.out.println("User not found.");
+            out.println("User not found.");
         }
     }
     
-    private static void addNewQuestion() {
-        System.out.println("\n===== ADD NEW QUESTION =====");
-        System.out.print("Enter question text: ");
+    private void addNewQuestion() {
+        out.println("\n===== ADD NEW QUESTION =====");
+        out.print("Enter question text: ");
         String questionText = scanner.nextLine();
         
         String[] options = new String[4];
-        System.out.println("Enter 4 options:");
+        out.println("Enter 4 options:");
         for (int i = 0; i < 4; i++) {
-            System.out.print("Option " + (char)('A' + i) + ": ");
+            out.print("Option " + (char)('A' + i) + ": ");
             options[i] = (char)('A' + i) + ". " + scanner.nextLine();
         }
         
         char correctAnswer;
         while (true) {
-            System.out.print("Enter correct answer (A/B/C/D): ");
+            out.print("Enter correct answer (A/B/C/D): ");
             String answerInput = scanner.nextLine().toUpperCase();
             if (answerInput.length() > 0 && 
                 (answerInput.charAt(0) == 'A' || answerInput.charAt(0) == 'B' || 
@@ -313,110 +2331,176 @@ public class OnlineExamSystem {
                 correctAnswer = answerInput.charAt(0);
                 break;
             } else {
-                System.out.println("Invalid answer. Please enter A, B, C, or D.");
+                out.println("Invalid answer. Please enter A, B, C, or D.");
             }
         }
         
-        questions.add(new Question(questionText, options, correctAnswer));
-        System.out.println("Question added successfully.");
+        out.print("Enter topic: ");
+        String topic = QuestionBank.topic(scanner.nextLine());
+        
+        int difficulty;
+        while (true) {
+            out.print("Enter difficulty (1-" + QuestionBank.MAX_DIFFICULTY + "): ");
+            try {
+                difficulty = Integer.parseInt(scanner.nextLine().trim());
+                if (difficulty >= 1 && difficulty <= QuestionBank.MAX_DIFFICULTY) {
+                    break;
+                }
+            } catch (NumberFormatException e) {
+                // asked again below
+            }
+            out.println("Invalid difficulty. Please enter a number from 1 to " + QuestionBank.MAX_DIFFICULTY + ".");
+        }
+        
+        if (addQuestion(new Question(questionText, options, correctAnswer, topic, difficulty))) {
+            out.println("Question added successfully.");
+        }
     }
     
-    private static void viewAllQuestions() {
-        System.out.println("\n===== ALL QUESTIONS =====");
-        if (questions.isEmpty()) {
-            System.out.println("No questions found.");
+    // Questions per topic and difficulty, then the first QUESTIONS_SHOWN of them by id
+    private void viewAllQuestions() {
+        final int QUESTIONS_SHOWN = 100;
+        out.println("\n===== ALL QUESTIONS =====");
+        int total = bank.size();
+        if (total == 0) {
+            out.println("No questions found.");
             return;
         }
         
-        for (int i = 0; i < questions.size(); i++) {
-            Question q = questions.get(i);
-            System.out.println((i+1) + ". " + q.questionText);
+        for (Map.Entry<String, int[]> e : bank.counts().entrySet()) {
+            StringBuilder line = new StringBuilder(e.getKey() + ":");
+            for (int d = 1; d <= QuestionBank.MAX_DIFFICULTY; d++) {
+                line.append(" level ").append(d).append(" x ").append(e.getValue()[d]).append(d < QuestionBank.MAX_DIFFICULTY ? "," : "");
+            }
+            out.println(line);
+        }
+        out.println();
+        
+        for (Question q : bank.list(1, QUESTIONS_SHOWN)) {
+            out.println(q.id + ". [" + q.topic + ", level " + q.difficulty + "] " + q.questionText);
             for (String option : q.options) {
-                System.out.println("   " + option);
+                out.println("   " + option);
             }
-            System.out.println("   Correct Answer: " + q.correctAnswer);
-            System.out.println();
+            out.println("   Correct Answer: " + q.correctAnswer);
+            out.println();
+        }
+        if (total > QUESTIONS_SHOWN) {
+            out.println("... and " + (total - QUESTIONS_SHOWN) + " more.");
         }
     }
     
-    private static void removeQuestion() {
+    private void removeQuestion() {
         viewAllQuestions();
         
-        if (questions.isEmpty()) {
+        if (bank.size() == 0) {
             return;
         }
         
-        System.out.print("Enter question number to remove: ");
+        out.print("Enter question number to remove: ");
         try {
             int questionNum = scanner.nextInt();
             scanner.nextLine(); // Consume newline
             
-            if (questionNum > 0 && questionNum <= questions.size()) {
-                questions.remove(questionNum - 1);
-                System.out.println("Question removed successfully.");
+            if (deleteQuestion(questionNum)) {
+                out.println("Question removed successfully.");
             } else {
-                System.out.println("Invalid question number.");
+                out.println("Invalid question number.");
             }
         } catch (Exception e) {
-            System.out.println("Invalid input. Please enter a number.");
+            out.println("Invalid input. Please enter a number.");
             scanner.nextLine(); // Clear invalid input
         }
     }
     
-    private static void resetUserScore() {
-        System.out.print("\nEnter the username to reset score: ");
+    private void resetUserScore() {
+        out.print("\nEnter the username to reset score: ");
         String username = scanner.nextLine();
 
         if (users.containsKey(username) && !username.equals(ADMIN_USERNAME)) {
             User user = users.get(username);
-            user.score = 0;
-            user.examHistory.clear();
-            System.out.println("Score reset successfully for " + username);
+            synchronized (user) {
+                user.score = 0;
+                user.examHistory.clear();
+                rankUser(user);
+            }
+            saveUser(user);
+            out.println("Score reset successfully for " + username);
         } else {
-            System.out.println("User not found or cannot reset admin score.");
+            out.println("User not found or cannot reset admin score.");
+        }
+    }
+    
+    // Gives a student's running exams more time
+    private void extendExamTime() {
+        out.print("\nEnter the username whose exam to extend: ");
+        String username = scanner.nextLine();
+        out.print("Extra seconds: ");
+        long seconds;
+        try {
+            seconds = Long.parseLong(scanner.nextLine().trim());
+        } catch (NumberFormatException e) {
+            out.println("Invalid input. Please enter a number.");
+            return;
+        }
+        
+        int extended = 0;
+        for (OnlineExamSystem session : running) {
+            TimerWheel.Timeout t = session.deadline;
+            if (session.currentUser != null && session.currentUser.username.equals(username) && t != null
+                    && t.extend(seconds, TimeUnit.SECONDS)) {
+                extended++;
+                out.println("Exam extended; " + t.remaining(TimeUnit.SECONDS) + " seconds left.");
+            }
+        }
+        if (extended == 0) {
+            out.println("No running exam found for " + username);
         }
     }
     
-    private static void changeAdminPassword() {
-        System.out.print("Enter current password: ");
+    private void changeAdminPassword() {
+        out.print("Enter current password: ");
         String currentPassword = scanner.nextLine();
         
         if (!currentPassword.equals(currentUser.password)) {
-            System.out.println("Incorrect current password.");
+            out.println("Incorrect current password.");
             return;
         }
         
-        System.out.print("Enter new password: ");
+        out.print("Enter new password: ");
         String newPassword = scanner.nextLine();
-        System.out.print("Confirm new password: ");
+        out.print("Confirm new password: ");
         String confirmPassword = scanner.nextLine();
 
         if (!newPassword.equals(confirmPassword)) {
-            System.out.println("Passwords do not match. Please try again.");
+            out.println("Passwords do not match. Please try again.");
             return;
         }
 
-        currentUser.password = newPassword;
+        synchronized (currentUser) {
+            currentUser.password = newPassword;
+        }
         users.put(ADMIN_USERNAME, currentUser);
-        System.out.println("Admin password changed successfully.");
+        saveUser(currentUser);
+        out.println("Admin password changed successfully.");
     }
 
-    private static void userMenu() {
+    private void userMenu() {
         while (true) {
-            System.out.println("\n===== USER MENU =====");
-            System.out.println("1. Update Profile");
-            System.out.println("2. Start Exam");
-            System.out.println("3. View Exam Results");
-            System.out.println("4. View Exam History");
-            System.out.println("5. Logout");
-            System.out.print("Enter your choice: ");
+            out.println("\n===== USER MENU =====");
+            out.println("1. Update Profile");
+            out.println("2. Start Exam");
+            out.println("3. View Exam Results");
+            out.println("4. View Exam History");
+            out.println("5. View Leaderboard");
+            out.println("6. Logout");
+            out.print("Enter your choice: ");
             
             int choice;
             try {
                 choice = scanner.nextInt();
                 scanner.nextLine(); // Consume newline
             } catch (Exception e) {
-                System.out.println("Invalid input. Please enter a number.");
+                out.println("Invalid input. Please enter a number.");
                 scanner.nextLine(); // Clear invalid input
                 continue;
             }
@@ -435,198 +2519,492 @@ public class OnlineExamSystem {
                     viewExamHistory();
                     break;
                 case 5:
+                    viewLeaderboard();
+                    break;
+                case 6:
                     logout();
                     return;
                 default:
-                    System.out.println("Invalid choice. Please try again.");
+                    out.println("Invalid choice. Please try again.");
             }
         }
     }
 
-    private static void updateProfile() {
-        System.out.println("\n===== UPDATE PROFILE =====");
-        System.out.print("Enter new name (leave blank to keep current): ");
+    private void updateProfile() {
+        out.println("\n===== UPDATE PROFILE =====");
+        out.print("Enter new name (leave blank to keep current): ");
         String newName = scanner.nextLine();
         if (!newName.isEmpty()) {
-            currentUser.name = newName;
+            synchronized (currentUser) {
+                currentUser.name = newName;
+            }
         }
         
-        System.out.print("Do you want to change password? (Y/N): ");
+        out.print("Do you want to change password? (Y/N): ");
         String changePassword = scanner.nextLine();
         
         if (changePassword.equalsIgnoreCase("Y")) {
-            System.out.print("Enter current password: ");
+            out.print("Enter current password: ");
             String currentPassword = scanner.nextLine();
             
             if (!currentPassword.equals(currentUser.password)) {
-                System.out.println("Incorrect current password.");
+                out.println("Incorrect current password.");
                 return;
             }
             
-            System.out.print("Enter new password: ");
+            out.print("Enter new password: ");
             String newPassword = scanner.nextLine();
-            System.out.print("Confirm new password: ");
+            out.print("Confirm new password: ");
             String confirmPassword = scanner.nextLine();
 
             if (!newPassword.equals(confirmPassword)) {
-                System.out.println("Passwords do not match. Please try again.");
+                out.println("Passwords do not match. Please try again.");
                 return;
             }
 
-            currentUser.password = newPassword;
+            synchronized (currentUser) {
+                currentUser.password = newPassword;
+            }
         }
         
         users.put(currentUser.username, currentUser);
-        System.out.println("Profile updated successfully.");
+        saveUser(currentUser);
+        out.println("Profile updated successfully.");
     }
 
-    private static void startExam() {
-        if (examInProgress) {
-            System.out.println("Exam is already in progress.");
-            return;
-        }
-        
-        if (questions.isEmpty()) {
-            System.out.println("No questions available for the exam.");
-            return;
+    private void startExam() {
+        // The paper is drawn for this candidate when the exam starts and stays fixed,
+        // whatever admins change meanwhile
+        List<Question> paper = bank.paper(PAPER, ThreadLocalRandom.current());
+        long exam;
+        synchronized (this) {
+            if (examInProgress) {
+                out.println("Exam is already in progress.");
+                return;
+            }
+            
+            if (paper.isEmpty()) {
+                out.println("No questions available for the exam.");
+                return;
+            }
+            
+            examInProgress = true;
+            exam = ++examNumber;
+            examScore = 0;
+            examQuestions = paper.size();
         }
-
-        examInProgress = true;
-        int previousScore = currentUser.score;
-        currentUser.score = 0; // Reset score for this exam
         
-        System.out.println("\n===== EXAM STARTED =====");
-        System.out.println("You have 100 seconds to answer " + questions.size() + " questions.");
+        out.println("\n===== EXAM STARTED =====");
+        out.println("You have " + EXAM_SECONDS + " seconds to answer " + paper.size() + " questions.");
 
-        Thread timerThread = new Thread(() -> {
-            try {
-                Thread.sleep(100000); // 100 seconds
-                autoSubmit();
-            } catch (InterruptedException e) {
-                System.out.println("Exam submitted.");
-            }
-        });
-        timerThread.start();
+        deadline = deadlines.schedule(() -> autoSubmit(exam), EXAM_SECONDS, TimeUnit.SECONDS);
+        running.add(this);
 
-        for (int i = 0; i < questions.size(); i++) {
-            if (!examInProgress) {
+        for (int i = 0; i < paper.size(); i++) {
+            if (!isExamInProgress()) {
                 break; // Exit if the exam is auto-submitted
             }
             
-            Question q = questions.get(i);
-            System.out.println("\nQuestion " + (i+1) + ": " + q.questionText);
+            Question q = paper.get(i);
+            out.println("\nQuestion " + (i+1) + ": " + q.questionText);
             for (String option : q.options) {
-                System.out.println(option);
+                out.println(option);
             }
             
-            System.out.print("Your answer (A/B/C/D): ");
+            out.print("Your answer (A/B/C/D): ");
             String userInput = scanner.nextLine().toUpperCase();
             if (userInput.length() > 0) {
                 char userAnswer = userInput.charAt(0);
                 if (userAnswer == q.correctAnswer) {
-                    currentUser.score++;
+                    correctAnswer();
                 }
             } else {
-                System.out.println("No answer provided. Skipping to the next question.");
+                out.println("No answer provided. Skipping to the next question.");
             }
         }
 
+        if (deadline.cancel()) {
+            out.println("Exam submitted.");
+        }
+        finishExam();
+    }
+    
+    private synchronized boolean isExamInProgress() {
+        return examInProgress;
+    }
+    
+    // An answer given after the deadline no longer counts
+    private synchronized void correctAnswer() {
         if (examInProgress) {
-            timerThread.interrupt();
-            examInProgress = false;
-            finishExam(previousScore);
+            examScore++;
         }
     }
     
-    private static void finishExam(int previousScore) {
-        String result = "Exam Date: " + java.time.LocalDate.now() + 
-                       ", Score: " + currentUser.score + "/" + questions.size() + 
-                       " (" + (currentUser.score * 100 / questions.size()) + "%)";
-        
-        currentUser.addExamResult(result);
-        
-        System.out.println("\n===== EXAM FINISHED =====");
-        System.out.println("Your score: " + currentUser.score + "/" + questions.size());
-        System.out.println("Percentage: " + (currentUser.score * 100 / questions.size()) + "%");
+    // Ends the exam once, whether from the session or from the deadline. The result goes
+    // into the user's record in one step, so two sessions of the same user cannot mix
+    // their scores.
+    private synchronized void finishExam() {
+        if (!examInProgress) {
+            return;
+        }
+        examInProgress = false;
+        running.remove(this);
+        String result = User.examResult(java.time.LocalDate.now(), examScore, examQuestions);
         
-        // Set the final score (cumulative)
-        currentUser.score += previousScore;
+        synchronized (currentUser) {
+            currentUser.addExamResult(result);
+            // Set the final score (cumulative)
+            currentUser.score += examScore;
+            rankUser(currentUser);
+        }
+        saveUser(currentUser);
         
-        users.put(currentUser.username, currentUser);
+        out.println("\n===== EXAM FINISHED =====");
+        out.println("Your score: " + examScore + "/" + examQuestions);
+        out.println("Percentage: " + (examScore * 100 / examQuestions) + "%");
     }
 
-    private static void viewExamResults() {
-        System.out.println("\n===== EXAM RESULTS =====");
-        System.out.println("Your current total score: " + currentUser.score);
+    private void viewExamResults() {
+        out.println("\n===== EXAM RESULTS =====");
+        out.println("Your current total score: " + currentUser.score);
     }
     
-    private static void viewExamHistory() {
-        System.out.println("\n===== EXAM HISTORY =====");
-        if (currentUser.examHistory.isEmpty()) {
-            System.out.println("No exam history found.");
+    private void viewExamHistory() {
+        out.println("\n===== EXAM HISTORY =====");
+        List<String> history;
+        synchronized (currentUser) {
+            history = new ArrayList<>(currentUser.examHistory);
+        }
+        if (history.isEmpty()) {
+            out.println("No exam history found.");
             return;
         }
         
-        for (int i = 0; i < currentUser.examHistory.size(); i++) {
-            System.out.println((i+1) + ". " + currentUser.examHistory.get(i));
+        for (int i = 0; i < history.size(); i++) {
+            out.println((i+1) + ". " + history.get(i));
         }
     }
 
-    private static void autoSubmit() {
-        if (examInProgress) {
-            System.out.println("\nTime's up! Auto-submitting your exam...");
-            examInProgress = false;
-            int previousScore = currentUser.score;
-            finishExam(previousScore);
+    // The top ten, then the user's own rank with the two places either side
+    private void viewLeaderboard() {
+        final int TOP = 10;
+        out.println("\n===== LEADERBOARD =====");
+        List<Leaderboard.Entry> top = leaderboard.top(TOP);
+        if (top.isEmpty()) {
+            out.println("No scores yet.");
+            return;
+        }
+        
+        for (Leaderboard.Entry entry : top) {
+            out.println((entry.username.equals(currentUser.username) ? "> " : "  ") + entry.rank + ". " + entry.username + " - " + entry.score);
+        }
+        List<Leaderboard.Entry> around = leaderboard.around(currentUser.username, 2, 2);
+        if (!around.isEmpty() && around.get(around.size() - 1).position > TOP) {
+            if (around.get(0).position > TOP + 1) {
+                out.println("  ...");
+            }
+            for (Leaderboard.Entry entry : around) {
+                if (entry.position > TOP) {
+                    out.println((entry.username.equals(currentUser.username) ? "> " : "  ") + entry.rank + ". " + entry.username + " - " + entry.score);
+                }
+            }
+        }
+        int rank = leaderboard.rank(currentUser.username);
+        if (rank > 0) {
+            out.println("Your rank: " + rank + " of " + leaderboard.size());
+        }
+    }
+
+    // A deadline that fired just as its exam was submitted may get here after the next exam
+    // has started; it only ends the exam it was set for
+    private synchronized void autoSubmit(long exam) {
+        if (examInProgress && examNumber == exam) {
+            out.println("\nTime's up! Auto-submitting your exam...");
+            finishExam();
         }
     }
 
-    private static void logout() {
+    private void logout() {
         currentUser = null;
-        System.out.println("Logged out successfully.");
+        out.println("Logged out successfully.");
+    }
+
+    // Opens exam.dat and the question bank beside it. The first time, oldUsers and
+    // oldQuestions (users.dat and questions.dat from before) are imported and kept with a
+    // .v0 suffix. Questions from either, or from an exam.dat older than the bank, go into a
+    // new bank, and only once it is complete are they dropped from exam.dat.
+    private static boolean openStore(Path file, Path oldUsers, Path oldQuestions) {
+        boolean imported = !Files.exists(file) && (Files.exists(oldUsers) || Files.exists(oldQuestions));
+        Path bankFile = file.resolveSibling(QuestionBank.FILE);
+        List<Question> older = new ArrayList<>();
+        try {
+            store = new ExamStore(file, users, older);
+            if (imported) {
+                loadUsers(oldUsers);
+                loadQuestions(oldQuestions, older);
+            }
+            if (!Files.exists(bankFile)) {
+                QuestionBank.create(bankFile, older);
+            }
+            if (imported || !older.isEmpty()) {
+                older.clear();
+                store.compact();
+            }
+            if (imported) {
+                for (Path old : new Path[] { oldUsers, oldQuestions }) {
+                    if (Files.exists(old)) {
+                        Files.move(old, old.resolveSibling(old.getFileName() + ".v0"), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+            bank = new QuestionBank(bankFile);
+            for (User user : users.values()) {
+                synchronized (user) {
+                    rankUser(user);
+                }
+            }
+            System.out.println("Loaded " + users.size() + " users and " + bank.size() + " questions.");
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error opening " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    private static void closeStore() {
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.out.println("Error closing " + ExamStore.FILE + ": " + e.getMessage());
+        }
+        try {
+            bank.close();
+        } catch (IOException e) {
+            System.out.println("Error closing " + QuestionBank.FILE + ": " + e.getMessage());
+        }
+    }
+    
+    private static void saveUser(User user) {
+        try {
+            store.saveUser(user);
+        } catch (IOException e) {
+            System.out.println("Error saving user: " + e.getMessage());
+        }
+    }
+    
+    private static void deleteSavedUser(User user) {
+        try {
+            store.deleteUser(user);
+        } catch (IOException e) {
+            System.out.println("Error saving user: " + e.getMessage());
+        }
+    }
+    
+    // Puts the user's score on the leaderboard. The caller holds the user's lock, so one
+    // user's scores reach the board in the order they changed; a user deleted meanwhile,
+    // and the admin, stay off it.
+    private static void rankUser(User user) {
+        if (!user.username.equals(ADMIN_USERNAME) && users.get(user.username) == user) {
+            leaderboard.update(user.username, user.score);
+        }
+    }
+    
+    private static boolean addQuestion(Question q) {
+        try {
+            bank.add(q);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error saving question: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    private static boolean deleteQuestion(int id) {
+        try {
+            return bank.delete(id);
+        } catch (IOException e) {
+            System.out.println("Error saving question: " + e.getMessage());
+            return false;
+        }
     }
 
-    private static void saveUsers() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("users.dat"))) {
-            oos.writeObject(users);
-            System.out.println("Users saved successfully.");
+    // Grades offline answer sheets against questions from the bank: the ids given, comma
+    // separated, in that order, or else every question in id order. Workers default to one
+    // per core (grade.threads).
+    private static boolean gradeSheets(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Usage: java OnlineExamSystem grade <sheets> <scores.csv> <questions.csv> [questionIds]");
+            return false;
+        }
+        Path bankFile = Paths.get(QuestionBank.FILE);
+        if (!Files.exists(bankFile)) {
+            System.out.println("No question bank found in " + bankFile.toAbsolutePath());
+            return false;
+        }
+        try (QuestionBank questions = new QuestionBank(bankFile)) {
+            List<Question> key = new ArrayList<>();
+            if (args.length > 4) {
+                for (String id : args[4].split(",")) {
+                    Question q = questions.get(Integer.parseInt(id.trim()));
+                    if (q == null) {
+                        System.out.println("No question with id " + id.trim());
+                        return false;
+                    }
+                    key.add(q);
+                }
+            } else {
+                key = questions.list(1, Integer.MAX_VALUE);
+            }
+            BulkGrader grader = new BulkGrader(key);
+            int threads = Integer.getInteger("grade.threads", Runtime.getRuntime().availableProcessors());
+            long start = System.nanoTime();
+            BulkGrader.Statistics stats = grader.gradeFile(Paths.get(args[1]), Paths.get(args[2]), threads);
+            grader.writeStatistics(Paths.get(args[3]), stats);
+            System.out.printf("Graded %d sheets against %d questions in %.2f s, mean score %.2f%n", stats.sheets, key.size(),
+                    (System.nanoTime() - start) / 1e9, stats.sheets == 0 ? 0.0 : (double) stats.scoreSum / stats.sheets);
+            if (stats.rejected > 0) {
+                System.out.println("Skipped " + stats.rejected + " lines without a comma after the candidate");
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            System.out.println("Question ids must be numbers: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Cannot grade: " + e.getMessage());
         } catch (IOException e) {
-            System.out.println("Error saving users: " + e.getMessage());
+            System.out.println("Error grading sheets: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() on JDK 21+, a cached pool otherwise
+    private static ExecutorService perTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
+    // Two sessions per student take exams at the same time, each answering from a script
+    // that fixes its scores (every check question's answer is A, so papers drawn in any
+    // order score the same). Passes if every student ends up with exactly the sum of their
+    // sessions' scores and their results in examHistory, both in memory and after
+    // reloading the store, and with the rank those sums give them on the leaderboard.
+    static boolean concurrencyCheck(int students, int examsPerSession) throws Exception {
+        Path dir = Files.createTempDirectory("exam-check");
+        Path file = dir.resolve(ExamStore.FILE);
+        // Everything beside the temporary exam.dat, so the real files are never imported
+        if (!openStore(file, dir.resolve("users.dat"), dir.resolve("questions.dat"))) {
+            return false;
+        }
+        int paperSize = 10;
+        for (int q = 0; q < paperSize; q++) {
+            addQuestion(new Question("Check question " + q, new String[] { "A. a", "B. b", "C. c", "D. d" }, 'A'));
+        }
+        List<User> roster = new ArrayList<>();
+        for (int i = 0; i < students; i++) {
+            User user = new User("student" + i, "pw", "Student " + i);
+            users.put(user.username, user);
+            saveUser(user);
+            roster.add(user);
         }
+        
+        int[] expectedScore = new int[students];
+        List<List<String>> expectedHistory = new ArrayList<>();
+        List<OnlineExamSystem> sessions = new ArrayList<>();
+        for (int i = 0; i < students; i++) {
+            expectedHistory.add(new ArrayList<>());
+            for (int s = 0; s < 2; s++) {
+                StringBuilder script = new StringBuilder();
+                for (int k = 0; k < examsPerSession; k++) {
+                    int score = 0;
+                    for (int q = 0; q < paperSize; q++) {
+                        char correct = 'A';
+                        boolean right = (i + s * 7 + k * 3 + q) % 4 != 0;
+                        script.append(right ? correct : (char) ('A' + (correct - 'A' + 1) % 4)).append('\n');
+                        score += right ? 1 : 0;
+                    }
+                    expectedScore[i] += score;
+                    expectedHistory.get(i).add(User.examResult(java.time.LocalDate.now(), score, paperSize));
+                }
+                OnlineExamSystem session = new OnlineExamSystem(new Scanner(script.toString()), new PrintStream(OutputStream.nullOutputStream()));
+                session.currentUser = roster.get(i);
+                sessions.add(session);
+            }
+        }
+        
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = perTaskExecutor();
+        CountDownLatch start = new CountDownLatch(1);
+        long began = System.nanoTime();
+        for (OnlineExamSystem session : sessions) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    for (int k = 0; k < examsPerSession; k++) {
+                        session.startExam();
+                    }
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - began) / 1e9;
+        closeStore();
+        int misranked = Leaderboard.wrongRanks(leaderboard, expectedScore);
+        
+        Map<String, User> reloaded = new HashMap<>();
+        new ExamStore(file, reloaded, new ArrayList<>()).close();
+        int wrong = 0;
+        for (int i = 0; i < students; i++) {
+            List<String> expected = new ArrayList<>(expectedHistory.get(i));
+            Collections.sort(expected);
+            for (User user : new User[] { roster.get(i), reloaded.get("student" + i) }) {
+                List<String> history = user == null ? Collections.emptyList() : new ArrayList<>(user.examHistory);
+                Collections.sort(history);
+                if (user == null || user.score != expectedScore[i] || !history.equals(expected)) {
+                    wrong++;
+                }
+            }
+        }
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.resolveSibling(QuestionBank.FILE));
+        Files.deleteIfExists(dir);
+        
+        int exams = sessions.size() * examsPerSession;
+        System.out.printf("%d sessions, %d exams in %.2f s (%.0f exams/s)%n", sessions.size(), exams, seconds, exams / seconds);
+        System.out.println(wrong + " students with a wrong score or history (in memory or reloaded), " + misranked
+                + " wrong on the leaderboard, " + failed.get() + " sessions failed");
+        boolean ok = wrong == 0 && misranked == 0 && failed.get() == 0;
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
     }
 
-    private static void loadUsers() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream("users.dat"))) {
-            users = (HashMap<String, User>) ois.readObject();
+    // Reads users.dat as written by Java serialization before exam.dat
+    private static void loadUsers(Path file) {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file.toFile()))) {
+            users.putAll((HashMap<String, User>) ois.readObject());
             System.out.println("Users loaded successfully.");
         } catch (FileNotFoundException e) {
             System.out.println("No saved users found. Starting with default users.");
-            users = new HashMap<>();
         } catch (IOException | ClassNotFoundException e) {
             System.out.println("Error loading users: " + e.getMessage());
-            users = new HashMap<>();
-        }
-    }
-    
-    private static void saveQuestions() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("questions.dat"))) {
-            oos.writeObject(questions);
-            System.out.println("Questions saved successfully.");
-        } catch (IOException e) {
-            System.out.println("Error saving questions: " + e.getMessage());
         }
     }
     
-    private static void loadQuestions() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream("questions.dat"))) {
-            questions = (ArrayList<Question>) ois.readObject();
+    private static void loadQuestions(Path file, List<Question> questions) {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file.toFile()))) {
+            questions.addAll((ArrayList<Question>) ois.readObject());
             System.out.println("Questions loaded successfully.");
         } catch (FileNotFoundException e) {
             System.out.println("No saved questions found. Starting with default questions.");
-            questions = new ArrayList<>();
         } catch (IOException | ClassNotFoundException e) {
             System.out.println("Error loading questions: " + e.getMessage());
-            questions = new ArrayList<>();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package bench;
+
+import java.io.Closeable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The ATM and Account hot paths at 1K, 100K and 1M accounts. The code under test lives in
+// the unnamed package, which a named package cannot refer to, so the fixture
+// (BankBenchmark in BankAccountPro.java) is created reflectively once per trial and hands
+// out each operation as a Callable. Returned values go back to JMH, which sinks them.
+//   gradle jmh                                          all benchmarks, with -prof gc
+//   java -jar build/libs/*-jmh.jar -p accounts=1000 -prof gc login
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BankBenchmarks {
+    @Param({ "1000", "100000", "1000000" })
+    public int accounts;
+    
+    private Closeable fixture;
+    private Callable<Object> loadUsers;
+    private Callable<Object> login;
+    private Callable<Object> transferMoney;
+    private Callable<Object> saveUserDetails;
+    private Callable<Object> logTransaction;
+    private Callable<Object> createAccount;
+    
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        Class<?> type = Class.forName("BankBenchmark");
+        Constructor<?> constructor = type.getDeclaredConstructor(int.class);
+        constructor.setAccessible(true);
+        fixture = (Closeable) constructor.newInstance(accounts);
+        Method operations = type.getDeclaredMethod("operations");
+        operations.setAccessible(true);
+        Map<String, Callable<Object>> ops = (Map<String, Callable<Object>>) operations.invoke(fixture);
+        loadUsers = ops.get("ATM.loadUsers");
+        login = ops.get("ATM.login");
+        transferMoney = ops.get("ATM.transferMoney");
+        saveUserDetails = ops.get("Account.saveUserDetails");
+        logTransaction = ops.get("Account.logTransaction");
+        createAccount = ops.get("ATM.createAccount");
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+    
+    // Reads a freshly written users.csv with an empty ledger on every call
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public Object loadUsers() throws Exception {
+        return loadUsers.call();
+    }
+    
+    @Benchmark
+    public Object login() throws Exception {
+        return login.call();
+    }
+    
+    @Benchmark
+    public Object transferMoney() throws Exception {
+        return transferMoney.call();
+    }
+    
+    @Benchmark
+    public Object saveUserDetails() throws Exception {
+        return saveUserDetails.call();
+    }
+    
+    @Benchmark
+    public Object logTransaction() throws Exception {
+        return logTransaction.call();
+    }
+    
+    @Benchmark
+    public Object createAccount() throws Exception {
+        return createAccount.call();
+    }
+}